@@ -0,0 +1,58 @@
+package com.firebird.controller;
+
+import com.firebird.dto.ApiResponse;
+import com.firebird.dto.DamagedFile;
+import com.firebird.dto.ScrubStatus;
+import com.firebird.dto.TrashPurgeStatus;
+import com.firebird.service.BlobScrubber;
+import com.firebird.service.TrashPurgeService;
+import lombok.RequiredArgsConstructor;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.List;
+
+/**
+ * Operational controls for background jobs; restricted to {@code ROLE_ADMIN} in {@code SecurityConfig}.
+ */
+@RestController
+@RequestMapping("/admin")
+@RequiredArgsConstructor
+public class AdminController {
+    
+    private final TrashPurgeService trashPurgeService;
+    private final BlobScrubber blobScrubber;
+    
+    @GetMapping("/trash-purge")
+    public ResponseEntity<ApiResponse<TrashPurgeStatus>> getTrashPurgeStatus() {
+        return ResponseEntity.ok(ApiResponse.success("Trash purge status retrieved", trashPurgeService.getStatus()));
+    }
+    
+    @PostMapping("/trash-purge/pause")
+    public ResponseEntity<ApiResponse<TrashPurgeStatus>> pauseTrashPurge() {
+        trashPurgeService.pause();
+        return ResponseEntity.ok(ApiResponse.success("Trash purge paused", trashPurgeService.getStatus()));
+    }
+    
+    @PostMapping("/trash-purge/resume")
+    public ResponseEntity<ApiResponse<TrashPurgeStatus>> resumeTrashPurge() {
+        trashPurgeService.resume();
+        return ResponseEntity.ok(ApiResponse.success("Trash purge resumed", trashPurgeService.getStatus()));
+    }
+    
+    @GetMapping("/scrub")
+    public ResponseEntity<ApiResponse<ScrubStatus>> getScrubStatus() {
+        return ResponseEntity.ok(ApiResponse.success("Scrub status retrieved", blobScrubber.getStatus()));
+    }
+    
+    @GetMapping("/scrub/damaged")
+    public ResponseEntity<ApiResponse<List<DamagedFile>>> getDamagedFiles(
+            @RequestParam(defaultValue = "100") int limit) {
+        
+        return ResponseEntity.ok(ApiResponse.success("Damaged files retrieved", blobScrubber.getDamagedFiles(limit)));
+    }
+}
@@ -1,31 +1,49 @@
 package com.firebird.controller;
 
 import com.firebird.dto.ApiResponse;
+import com.firebird.dto.CursorPage;
+import com.firebird.dto.FileListItem;
+import com.firebird.dto.TagFacet;
+import com.firebird.dto.TaggedFiles;
 import com.firebird.model.FileMetadata;
 import com.firebird.security.UserPrincipal;
 import com.firebird.service.FileService;
+import com.firebird.service.TagService;
+import jakarta.servlet.http.HttpServletRequest;
 import lombok.RequiredArgsConstructor;
 import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.Resource;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
-import org.springframework.data.mongodb.gridfs.GridFsResource;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.IOException;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.List;
+import java.util.Locale;
 
 @RestController
 @RequestMapping("/files")
 @RequiredArgsConstructor
 public class FileController {
     
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+    
     private final FileService fileService;
+    private final TagService tagService;
     
     @PostMapping("/upload")
     public ResponseEntity<ApiResponse<FileMetadata>> uploadFile(
@@ -37,12 +55,48 @@ public class FileController {
         return ResponseEntity.ok(ApiResponse.success("File uploaded successfully", metadata));
     }
     
+    @PostMapping(value = "/upload/stream", consumes = MediaType.ALL_VALUE)
+    public ResponseEntity<ApiResponse<FileMetadata>> uploadStream(
+            @RequestParam String name,
+            @RequestParam(value = "folderId", required = false) String folderId,
+            HttpServletRequest request,
+            @AuthenticationPrincipal UserPrincipal principal) throws IOException {
+        
+        // The container parses form bodies into parameters, which leaves nothing to stream
+        String contentType = request.getContentType() != null ? request.getContentType().toLowerCase(Locale.ROOT) : "";
+        if (contentType.startsWith(MediaType.APPLICATION_FORM_URLENCODED_VALUE)
+                || contentType.startsWith(MediaType.MULTIPART_FORM_DATA_VALUE)) {
+            throw new RuntimeException("Send the raw file as the request body; form uploads go to /files/upload");
+        }
+        
+        FileMetadata metadata = fileService.uploadStream(
+            request.getInputStream(),
+            name,
+            request.getContentType(),
+            request.getContentLengthLong(),
+            principal.getId(),
+            folderId
+        );
+        return ResponseEntity.ok(ApiResponse.success("File uploaded successfully", metadata));
+    }
+    
     @GetMapping
-    public ResponseEntity<ApiResponse<List<FileMetadata>>> listFiles(
+    public ResponseEntity<ApiResponse<List<FileListItem>>> listFiles(
+            @RequestParam(value = "folderId", required = false) String folderId,
+            @AuthenticationPrincipal UserPrincipal principal) {
+        
+        List<FileListItem> files = fileService.listFiles(principal.getId(), folderId);
+        return ResponseEntity.ok(ApiResponse.success("Files retrieved", files));
+    }
+    
+    @GetMapping("/page")
+    public ResponseEntity<ApiResponse<CursorPage<FileListItem>>> listFilesPage(
             @RequestParam(value = "folderId", required = false) String folderId,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(defaultValue = "100") int limit,
             @AuthenticationPrincipal UserPrincipal principal) {
         
-        List<FileMetadata> files = fileService.listFiles(principal.getId(), folderId);
+        CursorPage<FileListItem> files = fileService.listFilesPage(principal.getId(), folderId, cursor, limit);
         return ResponseEntity.ok(ApiResponse.success("Files retrieved", files));
     }
     
@@ -56,25 +110,64 @@ public class FileController {
     }
     
     @GetMapping("/{id}/download")
-    public ResponseEntity<InputStreamResource> downloadFile(
+    public ResponseEntity<Resource> downloadFile(
             @PathVariable String id,
-            @AuthenticationPrincipal UserPrincipal principal) throws IOException {
+            @RequestHeader(value = HttpHeaders.IF_RANGE, required = false) String ifRange,
+            @AuthenticationPrincipal UserPrincipal principal,
+            HttpServletRequest request,
+            WebRequest webRequest) throws IOException {
+        
+        FileMetadata metadata = fileService.getAccessibleFile(id, principal.getId());
+        
+        // A stored blob is never modified in place, so its id is a strong validator
+        String etag = "\"" + metadata.getGridFsId() + "\"";
+        long lastModified = metadata.getCreatedAt() != null
+                ? metadata.getCreatedAt().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli()
+                : -1;
+        
+        if (webRequest.checkNotModified(etag, lastModified)) {
+            return null;
+        }
         
-        GridFsResource resource = fileService.downloadFile(id, principal.getId());
-        FileMetadata metadata = fileService.getFile(id, principal.getId());
+        Resource resource = fileService.downloadFile(metadata, principal.getId());
         
-        return ResponseEntity.ok()
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
                 .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + metadata.getName() + "\"")
-                .contentType(MediaType.parseMediaType(metadata.getMimeType()))
-                .contentLength(metadata.getSize())
-                .body(new InputStreamResource(resource.getInputStream()));
+                .header(HttpHeaders.ACCEPT_RANGES, "bytes")
+                .contentType(MediaType.parseMediaType(FileService.mimeTypeOf(metadata.getMimeType())))
+                .eTag(etag)
+                .lastModified(lastModified);
+        
+        if (request.getHeader(HttpHeaders.RANGE) == null && trySendfile(request, resource)) {
+            return response.contentLength(resource.contentLength()).build();
+        }
+        
+        // Returning the resource itself lets Spring MVC answer Range requests with 206 and
+        // multipart/byteranges; a stale If-Range validator must get the full content instead.
+        if (ifRange != null && !ifRangeMatches(ifRange, etag, lastModified)) {
+            return response
+                    .contentLength(resource.contentLength())
+                    .body(new InputStreamResource(resource.getInputStream()));
+        }
+        
+        return response.body(resource);
     }
     
     @GetMapping("/starred")
-    public ResponseEntity<ApiResponse<List<FileMetadata>>> getStarredFiles(
+    public ResponseEntity<ApiResponse<List<FileListItem>>> getStarredFiles(
             @AuthenticationPrincipal UserPrincipal principal) {
         
-        List<FileMetadata> files = fileService.getStarredFiles(principal.getId());
+        List<FileListItem> files = fileService.getStarredFiles(principal.getId());
+        return ResponseEntity.ok(ApiResponse.success("Starred files retrieved", files));
+    }
+    
+    @GetMapping("/starred/page")
+    public ResponseEntity<ApiResponse<CursorPage<FileListItem>>> getStarredFilesPage(
+            @RequestParam(required = false) String cursor,
+            @RequestParam(defaultValue = "100") int limit,
+            @AuthenticationPrincipal UserPrincipal principal) {
+        
+        CursorPage<FileListItem> files = fileService.getStarredFilesPage(principal.getId(), cursor, limit);
         return ResponseEntity.ok(ApiResponse.success("Starred files retrieved", files));
     }
     
@@ -101,6 +194,58 @@ public class FileController {
         return ResponseEntity.ok(ApiResponse.success("Search results", files));
     }
     
+    @GetMapping("/search/content")
+    public ResponseEntity<ApiResponse<Page<FileMetadata>>> searchFileContents(
+            @RequestParam String q,
+            @RequestParam(defaultValue = "0") int page,
+            @RequestParam(defaultValue = "20") int size,
+            @AuthenticationPrincipal UserPrincipal principal) {
+        
+        Pageable pageable = PageRequest.of(page, size);
+        Page<FileMetadata> files = fileService.searchFileContents(principal.getId(), q, pageable);
+        return ResponseEntity.ok(ApiResponse.success("Search results", files));
+    }
+    
+    @GetMapping("/tags")
+    public ResponseEntity<ApiResponse<List<TagFacet>>> listTags(
+            @AuthenticationPrincipal UserPrincipal principal) {
+        
+        List<TagFacet> tags = tagService.listTags(principal.getId());
+        return ResponseEntity.ok(ApiResponse.success("Tags retrieved", tags));
+    }
+    
+    @GetMapping("/tagged")
+    public ResponseEntity<ApiResponse<TaggedFiles>> findTagged(
+            @RequestParam(required = false) List<String> tags,
+            @RequestParam(required = false) String folderId,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(defaultValue = "100") int limit,
+            @AuthenticationPrincipal UserPrincipal principal) {
+        
+        TaggedFiles files = tagService.findTagged(principal.getId(), tags, folderId, cursor, limit);
+        return ResponseEntity.ok(ApiResponse.success("Tagged files retrieved", files));
+    }
+    
+    @PostMapping("/{id}/tags")
+    public ResponseEntity<ApiResponse<FileMetadata>> addTag(
+            @PathVariable String id,
+            @RequestParam String tag,
+            @AuthenticationPrincipal UserPrincipal principal) {
+        
+        FileMetadata file = tagService.addTag(id, tag, principal.getId());
+        return ResponseEntity.ok(ApiResponse.success("Tag added", file));
+    }
+    
+    @DeleteMapping("/{id}/tags/{tag}")
+    public ResponseEntity<ApiResponse<FileMetadata>> removeTag(
+            @PathVariable String id,
+            @PathVariable String tag,
+            @AuthenticationPrincipal UserPrincipal principal) {
+        
+        FileMetadata file = tagService.removeTag(id, tag, principal.getId());
+        return ResponseEntity.ok(ApiResponse.success("Tag removed", file));
+    }
+    
     @PostMapping("/{id}/star")
     public ResponseEntity<ApiResponse<FileMetadata>> toggleStar(
             @PathVariable String id,
@@ -128,4 +273,33 @@ public class FileController {
         fileService.deleteFile(id, principal.getId());
         return ResponseEntity.ok(ApiResponse.success("File moved to trash", null));
     }
+    
+    private boolean ifRangeMatches(String ifRange, String etag, long lastModified) {
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(etag);
+        }
+        if (lastModified < 0) {
+            return false;
+        }
+        try {
+            long since = ZonedDateTime.parse(ifRange, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+            return since / 1000 == lastModified / 1000;
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * Lets Tomcat stream a file-backed blob with sendfile, so the bytes go from the page
+     * cache to the socket without passing through the JVM.
+     */
+    private boolean trySendfile(HttpServletRequest request, Resource resource) throws IOException {
+        if (!resource.isFile() || !Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+            return false;
+        }
+        request.setAttribute(SENDFILE_FILENAME, resource.getFile().getAbsolutePath());
+        request.setAttribute(SENDFILE_START, 0L);
+        request.setAttribute(SENDFILE_END, resource.contentLength());
+        return true;
+    }
 }
@@ -1,6 +1,8 @@
 package com.firebird.controller;
 
 import com.firebird.dto.ApiResponse;
+import com.firebird.dto.CursorPage;
+import com.firebird.dto.FolderListItem;
 import com.firebird.model.Folder;
 import com.firebird.security.UserPrincipal;
 import com.firebird.service.FolderService;
@@ -29,14 +31,35 @@ public class FolderController {
     }
     
     @GetMapping
-    public ResponseEntity<ApiResponse<List<Folder>>> listFolders(
+    public ResponseEntity<ApiResponse<List<FolderListItem>>> listFolders(
             @RequestParam(required = false) String parentId,
             @AuthenticationPrincipal UserPrincipal principal) {
         
-        List<Folder> folders = folderService.listFolders(principal.getId(), parentId);
+        List<FolderListItem> folders = folderService.listFolders(principal.getId(), parentId);
         return ResponseEntity.ok(ApiResponse.success("Folders retrieved", folders));
     }
     
+    @GetMapping("/page")
+    public ResponseEntity<ApiResponse<CursorPage<FolderListItem>>> listFoldersPage(
+            @RequestParam(required = false) String parentId,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(defaultValue = "100") int limit,
+            @AuthenticationPrincipal UserPrincipal principal) {
+        
+        CursorPage<FolderListItem> folders = folderService.listFoldersPage(principal.getId(), parentId, cursor, limit);
+        return ResponseEntity.ok(ApiResponse.success("Folders retrieved", folders));
+    }
+    
+    @GetMapping("/search")
+    public ResponseEntity<ApiResponse<List<FolderListItem>>> searchFolders(
+            @RequestParam String q,
+            @RequestParam(defaultValue = "50") int limit,
+            @AuthenticationPrincipal UserPrincipal principal) {
+        
+        List<FolderListItem> folders = folderService.searchFolders(principal.getId(), q, limit);
+        return ResponseEntity.ok(ApiResponse.success("Search results", folders));
+    }
+    
     @GetMapping("/{id}")
     public ResponseEntity<ApiResponse<Folder>> getFolder(
             @PathVariable String id,
@@ -74,6 +97,34 @@ public class FolderController {
         return ResponseEntity.ok(ApiResponse.success("Folder moved to trash", null));
     }
     
+    @GetMapping("/{id}/breadcrumbs")
+    public ResponseEntity<ApiResponse<List<FolderListItem>>> getBreadcrumbs(
+            @PathVariable String id,
+            @AuthenticationPrincipal UserPrincipal principal) {
+        
+        List<FolderListItem> breadcrumbs = folderService.getBreadcrumbs(id, principal.getId());
+        return ResponseEntity.ok(ApiResponse.success("Breadcrumbs retrieved", breadcrumbs));
+    }
+    
+    @PutMapping("/{id}/move")
+    public ResponseEntity<ApiResponse<Folder>> moveFolder(
+            @PathVariable String id,
+            @RequestParam(required = false) String parentId,
+            @AuthenticationPrincipal UserPrincipal principal) {
+        
+        Folder folder = folderService.moveFolder(id, parentId, principal.getId());
+        return ResponseEntity.ok(ApiResponse.success("Folder moved", folder));
+    }
+    
+    @PostMapping("/{id}/restore")
+    public ResponseEntity<ApiResponse<Folder>> restoreFolder(
+            @PathVariable String id,
+            @AuthenticationPrincipal UserPrincipal principal) {
+        
+        Folder folder = folderService.restoreFolder(id, principal.getId());
+        return ResponseEntity.ok(ApiResponse.success("Folder restored", folder));
+    }
+    
     @PostMapping("/{id}/lock")
     public ResponseEntity<ApiResponse<Folder>> lockFolder(
             @PathVariable String id,
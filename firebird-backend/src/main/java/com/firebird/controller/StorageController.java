@@ -1,9 +1,13 @@
 package com.firebird.controller;
 
 import com.firebird.dto.ApiResponse;
+import com.firebird.dto.CompressionStats;
+import com.firebird.dto.StorageBreakdown;
 import com.firebird.model.User;
 import com.firebird.security.UserPrincipal;
 import com.firebird.service.AuthService;
+import com.firebird.service.FileService;
+import com.firebird.service.StorageBreakdownService;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.RequiredArgsConstructor;
@@ -11,6 +15,7 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 @RestController
@@ -19,6 +24,8 @@ import org.springframework.web.bind.annotation.RestController;
 public class StorageController {
     
     private final AuthService authService;
+    private final FileService fileService;
+    private final StorageBreakdownService storageBreakdownService;
     
     @GetMapping("/usage")
     public ResponseEntity<ApiResponse<StorageUsage>> getStorageUsage(
@@ -34,6 +41,29 @@ public class StorageController {
         return ResponseEntity.ok(ApiResponse.success("Storage usage retrieved", usage));
     }
     
+    @GetMapping("/compression")
+    public ResponseEntity<ApiResponse<CompressionUsage>> getCompressionUsage(
+            @AuthenticationPrincipal UserPrincipal principal) {
+        
+        CompressionStats stats = fileService.getCompressionStats(principal.getId());
+        CompressionUsage usage = new CompressionUsage(
+            stats.getOriginalBytes(),
+            stats.getStoredBytes(),
+            stats.getStoredBytes() > 0 ? (double) stats.getOriginalBytes() / stats.getStoredBytes() : 1.0
+        );
+        
+        return ResponseEntity.ok(ApiResponse.success("Compression usage retrieved", usage));
+    }
+    
+    @GetMapping("/breakdown")
+    public ResponseEntity<ApiResponse<StorageBreakdown>> getStorageBreakdown(
+            @RequestParam(defaultValue = "20") int extensions,
+            @AuthenticationPrincipal UserPrincipal principal) {
+        
+        StorageBreakdown breakdown = storageBreakdownService.getBreakdown(principal.getId(), extensions);
+        return ResponseEntity.ok(ApiResponse.success("Storage breakdown retrieved", breakdown));
+    }
+    
     private double calculatePercentage(long used, long quota) {
         return quota > 0 ? (used * 100.0) / quota : 0;
     }
@@ -45,4 +75,12 @@ public class StorageController {
         private Long quota;
         private Double percentage;
     }
+    
+    @Data
+    @AllArgsConstructor
+    static class CompressionUsage {
+        private Long originalBytes;
+        private Long storedBytes;
+        private Double ratio;
+    }
 }
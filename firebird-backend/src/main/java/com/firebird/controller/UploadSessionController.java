@@ -0,0 +1,75 @@
+package com.firebird.controller;
+
+import com.firebird.dto.ApiResponse;
+import com.firebird.model.FileMetadata;
+import com.firebird.model.UploadSession;
+import com.firebird.security.UserPrincipal;
+import com.firebird.service.UploadSessionService;
+import jakarta.servlet.http.HttpServletRequest;
+import lombok.RequiredArgsConstructor;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.annotation.AuthenticationPrincipal;
+import org.springframework.web.bind.annotation.*;
+
+import java.io.IOException;
+
+@RestController
+@RequestMapping("/files/uploads")
+@RequiredArgsConstructor
+public class UploadSessionController {
+    
+    private final UploadSessionService uploadSessionService;
+    
+    @PostMapping
+    public ResponseEntity<ApiResponse<UploadSession>> openSession(
+            @RequestParam String fileName,
+            @RequestParam long size,
+            @RequestParam(required = false) String contentType,
+            @RequestParam(required = false) Long partSize,
+            @RequestParam(required = false) String folderId,
+            @AuthenticationPrincipal UserPrincipal principal) {
+        
+        UploadSession session = uploadSessionService.openSession(
+            fileName, contentType, size, partSize, folderId, principal.getId());
+        return ResponseEntity.ok(ApiResponse.success("Upload session created", session));
+    }
+    
+    @GetMapping("/{id}")
+    public ResponseEntity<ApiResponse<UploadSession>> getSession(
+            @PathVariable String id,
+            @AuthenticationPrincipal UserPrincipal principal) {
+        
+        UploadSession session = uploadSessionService.getSession(id, principal.getId());
+        return ResponseEntity.ok(ApiResponse.success("Upload session retrieved", session));
+    }
+    
+    @PutMapping("/{id}/parts/{partNumber}")
+    public ResponseEntity<ApiResponse<UploadSession>> uploadPart(
+            @PathVariable String id,
+            @PathVariable int partNumber,
+            HttpServletRequest request,
+            @AuthenticationPrincipal UserPrincipal principal) throws IOException {
+        
+        UploadSession session = uploadSessionService.uploadPart(
+            id, partNumber, request.getInputStream(), principal.getId());
+        return ResponseEntity.ok(ApiResponse.success("Part uploaded", session));
+    }
+    
+    @PostMapping("/{id}/commit")
+    public ResponseEntity<ApiResponse<FileMetadata>> commit(
+            @PathVariable String id,
+            @AuthenticationPrincipal UserPrincipal principal) {
+        
+        FileMetadata metadata = uploadSessionService.commit(id, principal.getId());
+        return ResponseEntity.ok(ApiResponse.success("File uploaded successfully", metadata));
+    }
+    
+    @DeleteMapping("/{id}")
+    public ResponseEntity<ApiResponse<Void>> abort(
+            @PathVariable String id,
+            @AuthenticationPrincipal UserPrincipal principal) {
+        
+        uploadSessionService.abort(id, principal.getId());
+        return ResponseEntity.ok(ApiResponse.success("Upload session aborted", null));
+    }
+}
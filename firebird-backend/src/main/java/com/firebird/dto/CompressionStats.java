@@ -0,0 +1,13 @@
+package com.firebird.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class CompressionStats {
+    private Long originalBytes;
+    private Long storedBytes;
+}
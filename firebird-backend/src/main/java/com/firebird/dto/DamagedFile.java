@@ -0,0 +1,19 @@
+package com.firebird.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class DamagedFile {
+    private String blobId;
+    private String fileId; // null if no file references the blob
+    private String ownerId;
+    private String path;
+    private String problem;
+    private LocalDateTime checkedAt;
+}
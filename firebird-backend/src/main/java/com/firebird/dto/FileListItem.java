@@ -0,0 +1,26 @@
+package com.firebird.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * Listing view of a file: only what the grid and list views render. Read straight from
+ * a field-projected query, never materialised as a full {@code FileMetadata}.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class FileListItem {
+    private String id;
+    private String name;
+    private String folderId;
+    private Long size;
+    private String mimeType;
+    private String extension;
+    private boolean starred;
+    private LocalDateTime createdAt;
+    private LocalDateTime updatedAt;
+}
@@ -0,0 +1,26 @@
+package com.firebird.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * Listing view of a folder; unlike {@code Folder} it never carries the password hash.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class FolderListItem {
+    private String id;
+    private String name;
+    private String parentId;
+    private boolean starred;
+    private boolean locked;
+    private long totalSize;
+    private long fileCount;
+    private long folderCount;
+    private LocalDateTime createdAt;
+    private LocalDateTime updatedAt;
+}
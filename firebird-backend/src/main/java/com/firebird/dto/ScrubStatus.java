@@ -0,0 +1,20 @@
+package com.firebird.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ScrubStatus {
+    private boolean enabled;
+    private long bytesPerSecond;
+    private long rescrubAfterDays;
+    private long checkedBlobs; // Since startup
+    private long checkedBytes; // Since startup
+    private long damagedBlobs; // Currently flagged, across all scrubs
+    private LocalDateTime lastCheckedAt;
+}
@@ -0,0 +1,16 @@
+package com.firebird.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class StorageBreakdown {
+    private long usedBytes; // Sum over every category, trash included
+    private List<StorageBucket> categories; // Largest first
+    private List<StorageBucket> extensions; // Largest first, capped at the requested limit
+}
@@ -0,0 +1,14 @@
+package com.firebird.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class StorageBucket {
+    private String name;
+    private long bytes;
+    private long files;
+}
@@ -0,0 +1,16 @@
+package com.firebird.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class TaggedFiles {
+    private List<FileListItem> items;
+    private String nextCursor; // null on the last page
+    private List<TagFacet> facets; // Counts across every match; only on the first page
+}
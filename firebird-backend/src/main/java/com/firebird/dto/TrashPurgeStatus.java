@@ -0,0 +1,22 @@
+package com.firebird.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class TrashPurgeStatus {
+    private boolean enabled;
+    private boolean paused;
+    private boolean running;
+    private long retentionDays;
+    private long backlog; // Expired files still waiting, as of the current or last pass
+    private long purgedFiles;
+    private long purgedBytes;
+    private LocalDateTime lastPassStartedAt;
+    private LocalDateTime lastPassFinishedAt;
+}
@@ -6,6 +6,7 @@ import lombok.NoArgsConstructor;
 import org.springframework.data.annotation.Id;
 import org.springframework.data.annotation.CreatedDate;
 import org.springframework.data.annotation.LastModifiedDate;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
 import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 
@@ -17,6 +18,12 @@ import java.util.List;
 @NoArgsConstructor
 @AllArgsConstructor
 @Document(collection = "files")
+@CompoundIndex(name = "folder_listing", def = "{ 'ownerId': 1, 'folderId': 1, 'trashed': 1, 'name': 1, '_id': 1 }")
+@CompoundIndex(name = "starred_listing", def = "{ 'ownerId': 1, 'starred': 1, 'trashed': 1, 'name': 1, '_id': 1 }")
+@CompoundIndex(name = "owner_path", def = "{ 'ownerId': 1, 'path': 1 }")
+@CompoundIndex(name = "tag_facets", def = "{ 'ownerId': 1, 'tags': 1, 'trashed': 1 }")
+@CompoundIndex(name = "content_index_queue", def = "{ 'contentIndexedAt': 1, 'createdAt': 1 }")
+@CompoundIndex(name = "tiering_candidates", def = "{ 'trashed': 1, 'lastAccessedAt': 1, '_id': 1 }")
 public class FileMetadata {
     @Id
     private String id;
@@ -30,22 +37,31 @@ public class FileMetadata {
     private String folderId; // null for root
     private String path; // Full path for display
     
-    private String gridFsId; // Reference to GridFS file
+    private String storageBackend; // BlobStore holding the content, null for GridFS
+    @Indexed
+    private String gridFsId; // Blob id within the storage backend
     private Long size;
+    private Long storedSize; // Bytes occupied in the backend after compression
     private String mimeType;
     private String extension;
     
     private boolean starred = false;
     private boolean trashed = false;
+    @Indexed(sparse = true)
     private LocalDateTime trashedAt;
+    @Indexed(sparse = true)
+    private String trashRootId; // Folder whose trashing took this item along; null if trashed on its own
     
     private List<String> tags = new ArrayList<>();
     
+    @Indexed(sparse = true)
     private String thumbnailGridFsId; // For image previews
     
     private Long downloadCount = 0L;
     private LocalDateTime lastAccessedAt;
     
+    private LocalDateTime contentIndexedAt; // Set once the content indexer has processed the file
+    
     @CreatedDate
     private LocalDateTime createdAt;
     
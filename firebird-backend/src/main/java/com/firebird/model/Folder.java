@@ -6,15 +6,21 @@ import lombok.NoArgsConstructor;
 import org.springframework.data.annotation.Id;
 import org.springframework.data.annotation.CreatedDate;
 import org.springframework.data.annotation.LastModifiedDate;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
 import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
 
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
 @Document(collection = "folders")
+@CompoundIndex(name = "child_listing", def = "{ 'ownerId': 1, 'parentId': 1, 'trashed': 1, 'name': 1, '_id': 1 }")
+@CompoundIndex(name = "owner_path", def = "{ 'ownerId': 1, 'path': 1 }")
+@CompoundIndex(name = "subtree", def = "{ 'ownerId': 1, 'ancestorIds': 1 }")
 public class Folder {
     @Id
     private String id;
@@ -27,10 +33,20 @@ public class Folder {
     
     private String parentId; // null for root folders
     private String path; // Full path: /Projects/2025
+    private List<String> ancestorIds = new ArrayList<>(); // Root first, parent last; empty for root folders
     
     private boolean starred = false;
     private boolean trashed = false;
+    @Indexed(sparse = true)
     private LocalDateTime trashedAt;
+    @Indexed(sparse = true)
+    private String trashRootId; // Folder whose trashing took this item along; null if trashed on its own
+    
+    // Recursive totals over non-trashed contents, maintained by FolderRollupService
+    private long totalSize;
+    private long fileCount;
+    private long folderCount;
+    private long revision; // Bumped with every change to the totals, see CounterSettler
     
     // Password protection
     private boolean locked = false;
@@ -0,0 +1,31 @@
+package com.firebird.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.LocalDateTime;
+
+/**
+ * A blob reference to drop once {@code releaseAt} has passed. Tiering keeps the old copy
+ * of a moved file around for a while so downloads already reading it can finish, and
+ * records it here so the release survives a restart.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Document(collection = "pending_releases")
+public class PendingRelease {
+    @Id
+    private String id;
+    
+    private String backend;
+    @Indexed
+    private String blobId;
+    
+    @Indexed
+    private LocalDateTime releaseAt;
+}
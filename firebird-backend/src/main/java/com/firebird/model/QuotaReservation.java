@@ -0,0 +1,19 @@
+package com.firebird.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * Bytes held against a user's quota by an upload in progress; embedded in {@link User}.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class QuotaReservation {
+    private String reservationId;
+    private long bytes;
+    private LocalDateTime expiresAt;
+}
@@ -0,0 +1,29 @@
+package com.firebird.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * Bytes and file count an owner stores per category and extension, maintained by
+ * {@code StorageBreakdownService} so the storage dashboard never scans the files.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Document(collection = "storage_counts")
+@CompoundIndex(name = "owner_category_extension", def = "{ 'ownerId': 1, 'category': 1, 'extension': 1 }", unique = true)
+public class StorageCount {
+    @Id
+    private String id;
+    
+    private String ownerId;
+    private String category; // images, videos, audio, documents, archives or other
+    private String extension; // Lower case, empty if the name has none
+    private long bytes;
+    private long files;
+    private long revision; // Bumped with every change to the counter, see CounterSettler
+}
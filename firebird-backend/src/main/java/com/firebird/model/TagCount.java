@@ -0,0 +1,27 @@
+package com.firebird.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * Number of non-trashed files carrying a tag, maintained by {@code TagService} so the
+ * drive-wide tag list never has to look at the files themselves.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Document(collection = "tag_counts")
+@CompoundIndex(name = "owner_tag", def = "{ 'ownerId': 1, 'tag': 1 }", unique = true)
+public class TagCount {
+    @Id
+    private String id;
+    
+    private String ownerId;
+    private String tag;
+    private long count;
+    private long revision; // Bumped with every change to the count, see CounterSettler
+}
@@ -0,0 +1,46 @@
+package com.firebird.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.CreatedDate;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.LocalDateTime;
+import java.util.HashSet;
+import java.util.Set;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Document(collection = "upload_sessions")
+public class UploadSession {
+    @Id
+    private String id;
+    
+    @Indexed
+    private String ownerId;
+    
+    private String folderId;
+    private String fileName;
+    private String contentType;
+    
+    private String gridFsId; // Pre-allocated GridFS id the parts are written under
+    private String reservationId; // Quota held for totalSize while the session is open
+    private Long totalSize;
+    private Integer chunkSize; // GridFS chunk size
+    private Long partSize; // Always a multiple of chunkSize
+    private Integer partCount;
+    
+    private Set<Integer> receivedParts = new HashSet<>();
+    
+    private String status = "OPEN"; // OPEN, COMMITTING
+    
+    @Indexed
+    private LocalDateTime expiresAt;
+    
+    @CreatedDate
+    private LocalDateTime createdAt;
+}
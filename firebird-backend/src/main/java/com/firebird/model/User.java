@@ -6,17 +6,21 @@ import lombok.NoArgsConstructor;
 import org.springframework.data.annotation.Id;
 import org.springframework.data.annotation.CreatedDate;
 import org.springframework.data.annotation.LastModifiedDate;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
 import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
 @Document(collection = "users")
+@CompoundIndex(name = "reservation_expiry", def = "{ 'reservations.expiresAt': 1 }", sparse = true)
 public class User {
     @Id
     private String id;
@@ -30,6 +34,8 @@ public class User {
     
     private Long storageUsed = 0L;
     private Long storageQuota = 16106127360L; // 15GB
+    private Long storageReserved = 0L; // Sum of the open reservations below
+    private List<QuotaReservation> reservations = new ArrayList<>(); // Uploads in progress, see QuotaService
     
     private Set<String> roles = new HashSet<>();
     
@@ -1,8 +1,14 @@
 package com.firebird.repository;
 
+import com.firebird.dto.CompressionStats;
+import com.firebird.dto.FileListItem;
 import com.firebird.model.FileMetadata;
+import org.bson.types.ObjectId;
+import org.springframework.data.domain.Limit;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.repository.Aggregation;
 import org.springframework.data.mongodb.repository.MongoRepository;
 import org.springframework.data.mongodb.repository.Query;
 import org.springframework.stereotype.Repository;
@@ -12,17 +18,54 @@ import java.util.List;
 
 @Repository
 public interface FileMetadataRepository extends MongoRepository<FileMetadata, String> {
+    String LIST_ITEM_FIELDS = "{ 'name': 1, 'folderId': 1, 'size': 1, 'mimeType': 1, 'extension': 1, "
+        + "'starred': 1, 'createdAt': 1, 'updatedAt': 1 }";
+    
     List<FileMetadata> findByOwnerIdAndFolderIdAndTrashedFalse(String ownerId, String folderId);
     List<FileMetadata> findByOwnerIdAndTrashedFalse(String ownerId);
     List<FileMetadata> findByOwnerIdAndStarredTrueAndTrashedFalse(String ownerId);
     List<FileMetadata> findByOwnerIdAndTrashedTrue(String ownerId);
     
+    // Listing projections: derived queries restrict the returned fields to FileListItem's properties
+    List<FileListItem> findItemsByOwnerIdAndFolderIdAndTrashedFalse(String ownerId, String folderId);
+    List<FileListItem> findItemsByOwnerIdAndStarredTrueAndTrashedFalse(String ownerId);
+    
+    // Keyset pagination, ordered by name then _id (see PageCursor)
+    List<FileListItem> findItemsByOwnerIdAndFolderIdAndTrashedFalse(String ownerId, String folderId,
+                                                                    Sort sort, Limit limit);
+    List<FileListItem> findItemsByOwnerIdAndStarredTrueAndTrashedFalse(String ownerId, Sort sort, Limit limit);
+    
+    @Query(value = "{ 'ownerId': ?0, 'folderId': ?1, 'trashed': false, $or: [ { 'name': { $gt: ?2 } }, { 'name': ?2, '_id': { $gt: ?3 } } ] }",
+           fields = LIST_ITEM_FIELDS)
+    List<FileListItem> findFolderPageAfter(String ownerId, String folderId, String name, ObjectId id,
+                                           Sort sort, Limit limit);
+    
+    @Query(value = "{ 'ownerId': ?0, 'starred': true, 'trashed': false, $or: [ { 'name': { $gt: ?1 } }, { 'name': ?1, '_id': { $gt: ?2 } } ] }",
+           fields = LIST_ITEM_FIELDS)
+    List<FileListItem> findStarredPageAfter(String ownerId, String name, ObjectId id, Sort sort, Limit limit);
+    
     Page<FileMetadata> findByOwnerIdAndNameContainingIgnoreCaseAndTrashedFalse(
         String ownerId, String name, Pageable pageable);
     
     @Query("{ 'ownerId': ?0, 'trashed': false, 'lastAccessedAt': { $gte: ?1 } }")
     List<FileMetadata> findRecentFiles(String ownerId, LocalDateTime since, Pageable pageable);
     
-    @Query("{ 'ownerId': ?0, 'trashedAt': { $lt: ?1 } }")
-    List<FileMetadata> findFilesForPermanentDeletion(String ownerId, LocalDateTime before);
+    @Aggregation(pipeline = {
+        "{ $match: { 'ownerId': ?0 } }",
+        "{ $group: { _id: null, originalBytes: { $sum: '$size' }, storedBytes: { $sum: { $ifNull: ['$storedSize', '$size'] } } } }"
+    })
+    CompressionStats aggregateCompressionStats(String ownerId);
+    
+    @Query("{ 'storageBackend': { $ne: ?0 }, 'trashed': false, 'lastAccessedAt': { $lt: ?1 } }")
+    List<FileMetadata> findTieringCandidates(String excludedBackend, LocalDateTime lastAccessedBefore,
+                                             Pageable pageable);
+    
+    // Keyset continuation of findTieringCandidates, ordered by lastAccessedAt then _id
+    @Query("{ 'storageBackend': { $ne: ?0 }, 'trashed': false, 'lastAccessedAt': { $lt: ?1 }, "
+        + "$or: [ { 'lastAccessedAt': { $gt: ?2 } }, { 'lastAccessedAt': ?2, '_id': { $gt: ?3 } } ] }")
+    List<FileMetadata> findTieringCandidatesAfter(String excludedBackend, LocalDateTime lastAccessedBefore,
+                                                  LocalDateTime lastAccessedAt, ObjectId id, Pageable pageable);
+    
+    @Query("{ 'ownerId': ?0, 'trashed': true, 'trashedAt': { $lt: ?1 } }")
+    List<FileMetadata> findFilesForPermanentDeletion(String ownerId, LocalDateTime before, Limit limit);
 }
@@ -1,18 +1,44 @@
 package com.firebird.repository;
 
+import com.firebird.dto.FolderListItem;
 import com.firebird.model.Folder;
+import org.bson.types.ObjectId;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.data.mongodb.repository.Query;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
 @Repository
 public interface FolderRepository extends MongoRepository<Folder, String> {
+    String LIST_ITEM_FIELDS = "{ 'name': 1, 'parentId': 1, 'starred': 1, 'locked': 1, "
+        + "'totalSize': 1, 'fileCount': 1, 'folderCount': 1, 'createdAt': 1, 'updatedAt': 1 }";
+    
     List<Folder> findByOwnerIdAndParentIdAndTrashedFalse(String ownerId, String parentId);
     List<Folder> findByOwnerIdAndTrashedFalse(String ownerId);
     List<Folder> findByOwnerIdAndStarredTrueAndTrashedFalse(String ownerId);
     List<Folder> findByOwnerIdAndTrashedTrue(String ownerId);
+    
+    // Listing projection: derived queries restrict the returned fields to FolderListItem's properties
+    List<FolderListItem> findItemsByOwnerIdAndParentIdAndTrashedFalse(String ownerId, String parentId);
+    
+    List<FolderListItem> findItemsByOwnerIdAndNameContainingIgnoreCaseAndTrashedFalse(String ownerId, String name,
+                                                                                      Limit limit);
+    List<FolderListItem> findItemsByIdInAndOwnerIdAndTrashedFalse(Collection<String> ids, String ownerId);
+    List<FolderListItem> findItemsByIdInAndOwnerId(Collection<String> ids, String ownerId);
+    
+    // Keyset pagination, ordered by name then _id (see PageCursor)
+    List<FolderListItem> findItemsByOwnerIdAndParentIdAndTrashedFalse(String ownerId, String parentId,
+                                                                      Sort sort, Limit limit);
+    
+    @Query(value = "{ 'ownerId': ?0, 'parentId': ?1, 'trashed': false, $or: [ { 'name': { $gt: ?2 } }, { 'name': ?2, '_id': { $gt: ?3 } } ] }",
+           fields = LIST_ITEM_FIELDS)
+    List<FolderListItem> findChildPageAfter(String ownerId, String parentId, String name, ObjectId id,
+                                            Sort sort, Limit limit);
+    
     Optional<Folder> findByOwnerIdAndNameAndParentId(String ownerId, String name, String parentId);
-    List<Folder> findByPathStartingWith(String pathPrefix);
 }
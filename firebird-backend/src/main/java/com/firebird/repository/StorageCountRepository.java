@@ -0,0 +1,12 @@
+package com.firebird.repository;
+
+import com.firebird.model.StorageCount;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+@Repository
+public interface StorageCountRepository extends MongoRepository<StorageCount, String> {
+    List<StorageCount> findByOwnerId(String ownerId);
+}
@@ -0,0 +1,14 @@
+package com.firebird.repository;
+
+import com.firebird.model.TagCount;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+@Repository
+public interface TagCountRepository extends MongoRepository<TagCount, String> {
+    List<TagCount> findByOwnerId(String ownerId);
+    List<TagCount> findByOwnerIdAndCountGreaterThan(String ownerId, long count, Sort sort);
+}
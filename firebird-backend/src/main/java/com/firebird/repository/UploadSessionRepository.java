@@ -0,0 +1,13 @@
+package com.firebird.repository;
+
+import com.firebird.model.UploadSession;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+@Repository
+public interface UploadSessionRepository extends MongoRepository<UploadSession, String> {
+    List<UploadSession> findByExpiresAtBefore(LocalDateTime before);
+}
@@ -0,0 +1,320 @@
+package com.firebird.service;
+
+import com.firebird.model.FileMetadata;
+import com.firebird.model.PendingRelease;
+import com.firebird.model.UploadSession;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Updates;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Mark-and-sweep collection of GridFS data nothing points at: blobs whose upload failed
+ * before its metadata was saved, and chunks left behind by a delete that died after
+ * removing the {@code fs.files} document.
+ * <p>
+ * The mark phase never holds more than a batch of ids. {@code fs.files} is read in
+ * {@code _id} order and merged against the {@code gridFsId} and {@code thumbnailGridFsId}
+ * references, read in the same order from their indexes; chunk {@code files_id}s are
+ * merged against {@code fs.files} the same way. Only data older than the grace period is
+ * considered, which covers uploads still in flight and open upload sessions.
+ * <p>
+ * A blob is swept by first setting its reference count to zero, provided it is still the
+ * value seen while marking and no upload has deduplicated onto it within the grace period,
+ * which stops deduplication from handing it to a new upload. If a reference turned up in
+ * the meantime the count is set to the actual number of references instead of deleting.
+ * The old copy of a file tiering has just moved counts as a reference until its
+ * {@link PendingRelease} is due, so downloads still reading it can finish.
+ */
+@Slf4j
+@Service
+public class BlobGarbageCollector {
+    
+    private static final Document FILES_ID_INDEX = new Document("files_id", 1).append("n", 1);
+    
+    private final MongoTemplate mongoTemplate;
+    private final GridFSService gridFSService;
+    private final Counter blobsCounter;
+    private final Counter bytesCounter;
+    private final Counter chunksCounter;
+    
+    private final boolean enabled;
+    private final Duration grace;
+    private final int batchSize;
+    
+    public BlobGarbageCollector(MongoTemplate mongoTemplate,
+                                GridFSService gridFSService,
+                                MeterRegistry meterRegistry,
+                                @Value("${storage.gc.enabled:true}") boolean enabled,
+                                @Value("${storage.gc.grace-hours:48}") long graceHours,
+                                @Value("${storage.gc.batch-size:500}") int batchSize) {
+        this.mongoTemplate = mongoTemplate;
+        this.gridFSService = gridFSService;
+        this.enabled = enabled;
+        this.grace = Duration.ofHours(graceHours);
+        this.batchSize = batchSize;
+        this.blobsCounter = Counter.builder("firebird.gc.blobs.reclaimed")
+            .description("Unreferenced GridFS blobs deleted")
+            .register(meterRegistry);
+        this.bytesCounter = Counter.builder("firebird.gc.bytes.reclaimed")
+            .description("Stored bytes freed by deleting unreferenced GridFS blobs")
+            .baseUnit("bytes")
+            .register(meterRegistry);
+        this.chunksCounter = Counter.builder("firebird.gc.chunks.reclaimed")
+            .description("GridFS chunks deleted because their file document was gone")
+            .register(meterRegistry);
+    }
+    
+    @Scheduled(cron = "${storage.gc.cron:0 0 4 * * *}")
+    public void collect() {
+        if (!enabled) {
+            return;
+        }
+        
+        long start = System.nanoTime();
+        // ObjectIds carry their creation time, so the grace period is a range on _id
+        ObjectId cutoff = ObjectId.getSmallestWithDate(Date.from(Instant.now().minus(grace)));
+        try {
+            long blobs = collectBlobs(cutoff);
+            long chunks = collectChunks(cutoff);
+            log.info("Blob GC reclaimed {} blobs and {} orphaned chunks in {} ms",
+                blobs, chunks, (System.nanoTime() - start) / 1_000_000);
+        } catch (RuntimeException e) {
+            log.error("Blob GC pass failed", e);
+        }
+    }
+    
+    private long collectBlobs(ObjectId cutoff) {
+        MongoCollection<Document> metadata = mongoTemplate.getCollection(mongoTemplate.getCollectionName(FileMetadata.class));
+        long reclaimed = 0;
+        
+        try (MongoCursor<Document> blobs = mongoTemplate.getCollection(GridFSService.FILES_COLLECTION)
+                .find(Filters.lt("_id", cutoff))
+                .projection(Projections.include("length", GridFSService.REF_COUNT, GridFSService.ACQUIRED_AT))
+                .sort(Sorts.ascending("_id"))
+                .cursor();
+             SortedIds fileRefs = new SortedIds(metadata.find(Filters.type("gridFsId", "string"))
+                 .projection(Projections.fields(Projections.include("gridFsId"), Projections.excludeId()))
+                 .sort(Sorts.ascending("gridFsId"))
+                 .hint(new Document("gridFsId", 1))
+                 .cursor(), "gridFsId");
+             SortedIds thumbnailRefs = new SortedIds(metadata.find(Filters.type("thumbnailGridFsId", "string"))
+                 .projection(Projections.fields(Projections.include("thumbnailGridFsId"), Projections.excludeId()))
+                 .sort(Sorts.ascending("thumbnailGridFsId"))
+                 .hint(new Document("thumbnailGridFsId", 1))
+                 .cursor(), "thumbnailGridFsId")) {
+            
+            Map<ObjectId, Document> candidates = new HashMap<>();
+            while (blobs.hasNext()) {
+                Document blob = blobs.next();
+                if (!(blob.get("_id") instanceof ObjectId id)) {
+                    continue;
+                }
+                // Hex ObjectIds sort as strings the same way the ObjectIds do
+                String hex = id.toHexString();
+                if (fileRefs.skipTo(hex) || thumbnailRefs.skipTo(hex) || acquiredSince(blob, cutoff.getDate())) {
+                    continue;
+                }
+                candidates.put(id, blob);
+                if (candidates.size() == batchSize) {
+                    reclaimed += sweepBlobs(candidates, cutoff.getDate());
+                    candidates.clear();
+                }
+            }
+            if (!candidates.isEmpty()) {
+                reclaimed += sweepBlobs(candidates, cutoff.getDate());
+            }
+        }
+        return reclaimed;
+    }
+    
+    private int sweepBlobs(Map<ObjectId, Document> candidates, Date acquiredBefore) {
+        MongoCollection<Document> files = mongoTemplate.getCollection(GridFSService.FILES_COLLECTION);
+        List<ObjectId> claimed = new ArrayList<>(candidates.size());
+        Set<String> pending = pendingReleases(candidates.keySet()).keySet();
+        
+        candidates.forEach((id, blob) -> {
+            if (pending.contains(id.toHexString())) {
+                return;
+            }
+            Document meta = blob.get("metadata", Document.class);
+            Object refCount = meta != null ? meta.get("refCount") : null;
+            // Also matches blobs from before reference counting, which have no count at all. An upload
+            // that deduplicated onto the blob since it was marked may not have saved its metadata yet.
+            if (files.updateOne(Filters.and(
+                    Filters.eq("_id", id),
+                    Filters.eq(GridFSService.REF_COUNT, refCount),
+                    Filters.not(Filters.gte(GridFSService.ACQUIRED_AT, acquiredBefore))),
+                    Updates.set(GridFSService.REF_COUNT, 0)).getMatchedCount() > 0) {
+                claimed.add(id);
+            }
+        });
+        if (claimed.isEmpty()) {
+            return 0;
+        }
+        
+        // A reference saved, or a tiering move recorded, between marking and claiming keeps its blob
+        List<String> hexIds = claimed.stream().map(ObjectId::toHexString).toList();
+        Query referencing = new Query(new Criteria().orOperator(
+            Criteria.where("gridFsId").in(hexIds), Criteria.where("thumbnailGridFsId").in(hexIds)));
+        referencing.fields().include("gridFsId", "thumbnailGridFsId");
+        Map<String, Integer> references = pendingReleases(claimed);
+        for (FileMetadata file : mongoTemplate.find(referencing, FileMetadata.class)) {
+            for (String blobId : new String[] {file.getGridFsId(), file.getThumbnailGridFsId()}) {
+                if (blobId != null) {
+                    references.merge(blobId, 1, Integer::sum);
+                }
+            }
+        }
+        List<ObjectId> unreferenced = new ArrayList<>(claimed.size());
+        for (ObjectId id : claimed) {
+            Integer count = references.get(id.toHexString());
+            if (count != null) {
+                files.updateOne(Filters.eq("_id", id), Updates.set(GridFSService.REF_COUNT, count));
+                log.warn("Blob {} gained {} references during GC, kept", id, count);
+            } else {
+                unreferenced.add(id);
+            }
+        }
+        
+        List<ObjectId> deleted = gridFSService.deleteUnreferenced(unreferenced);
+        long bytes = deleted.stream().mapToLong(id -> candidates.get(id).get("length", Number.class).longValue()).sum();
+        blobsCounter.increment(deleted.size());
+        bytesCounter.increment(bytes);
+        return deleted.size();
+    }
+    
+    /** Whether an upload deduplicated onto the blob after {@code since}. */
+    private static boolean acquiredSince(Document blob, Date since) {
+        Document meta = blob.get("metadata", Document.class);
+        Date acquiredAt = meta != null ? meta.getDate("acquiredAt") : null;
+        return acquiredAt != null && !acquiredAt.before(since);
+    }
+    
+    /** Pending releases of the given GridFS blobs, counted per blob id. */
+    private Map<String, Integer> pendingReleases(Collection<ObjectId> ids) {
+        Query query = new Query(Criteria.where("backend").is(GridFSService.NAME)
+            .and("blobId").in(ids.stream().map(ObjectId::toHexString).toList()));
+        query.fields().include("blobId");
+        Map<String, Integer> pending = new HashMap<>();
+        for (PendingRelease release : mongoTemplate.find(query, PendingRelease.class)) {
+            pending.merge(release.getBlobId(), 1, Integer::sum);
+        }
+        return pending;
+    }
+    
+    private long collectChunks(ObjectId cutoff) {
+        long reclaimed = 0;
+        
+        try (MongoCursor<Document> chunks = mongoTemplate.getCollection(GridFSService.CHUNKS_COLLECTION)
+                .find(Filters.lt("files_id", cutoff))
+                .projection(Projections.fields(Projections.include("files_id"), Projections.excludeId()))
+                .sort(Sorts.ascending("files_id"))
+                .hint(FILES_ID_INDEX)
+                .cursor();
+             MongoCursor<Document> blobs = mongoTemplate.getCollection(GridFSService.FILES_COLLECTION)
+                .find(Filters.lt("_id", cutoff))
+                .projection(Projections.include("_id"))
+                .sort(Sorts.ascending("_id"))
+                .cursor()) {
+            
+            ObjectId blob = null;
+            ObjectId previous = null;
+            Set<ObjectId> orphans = new HashSet<>();
+            while (chunks.hasNext()) {
+                if (!(chunks.next().get("files_id") instanceof ObjectId filesId) || filesId.equals(previous)) {
+                    continue;
+                }
+                previous = filesId;
+                while ((blob == null || blob.compareTo(filesId) < 0) && blobs.hasNext()) {
+                    blob = blobs.next().getObjectId("_id");
+                }
+                if (filesId.equals(blob)) {
+                    continue;
+                }
+                orphans.add(filesId);
+                if (orphans.size() == batchSize) {
+                    reclaimed += sweepChunks(orphans);
+                    orphans.clear();
+                }
+            }
+            if (!orphans.isEmpty()) {
+                reclaimed += sweepChunks(orphans);
+            }
+        }
+        return reclaimed;
+    }
+    
+    private long sweepChunks(Set<ObjectId> orphans) {
+        // Sessions open for longer than the grace period still own their parts
+        Query sessions = new Query(Criteria.where("gridFsId").in(orphans.stream().map(ObjectId::toHexString).toList()));
+        sessions.fields().include("gridFsId");
+        mongoTemplate.find(sessions, UploadSession.class).forEach(s -> orphans.remove(new ObjectId(s.getGridFsId())));
+        // Nor are chunks orphaned whose file document was written since they were marked
+        mongoTemplate.getCollection(GridFSService.FILES_COLLECTION)
+            .find(Filters.in("_id", orphans))
+            .projection(Projections.include("_id"))
+            .forEach(blob -> orphans.remove(blob.getObjectId("_id")));
+        if (orphans.isEmpty()) {
+            return 0;
+        }
+        
+        long deleted = mongoTemplate.getCollection(GridFSService.CHUNKS_COLLECTION)
+            .deleteMany(Filters.in("files_id", orphans))
+            .getDeletedCount();
+        chunksCounter.increment(deleted);
+        return deleted;
+    }
+    
+    /**
+     * Forward-only view of a cursor over string ids in ascending order.
+     */
+    private static final class SortedIds implements AutoCloseable {
+        
+        private final MongoCursor<Document> cursor;
+        private final String field;
+        private String current;
+        
+        SortedIds(MongoCursor<Document> cursor, String field) {
+            this.cursor = cursor;
+            this.field = field;
+        }
+        
+        /** Advances past ids below {@code id}; true if {@code id} itself is present. */
+        boolean skipTo(String id) {
+            while ((current == null || current.compareTo(id) < 0) && cursor.hasNext()) {
+                current = cursor.next().getString(field);
+            }
+            return id.equals(current);
+        }
+        
+        @Override
+        public void close() {
+            cursor.close();
+        }
+    }
+}
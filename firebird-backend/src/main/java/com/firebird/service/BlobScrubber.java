@@ -0,0 +1,381 @@
+package com.firebird.service;
+
+import com.firebird.dto.DamagedFile;
+import com.firebird.dto.ScrubStatus;
+import com.firebird.model.FileMetadata;
+import com.mongodb.ReadPreference;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Updates;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Background integrity check of GridFS blobs. Each blob is read chunk by chunk and must
+ * have exactly the chunks its length and chunk size call for, each of the right size,
+ * and its content must hash to the SHA-256 recorded at upload. Blobs stored without a
+ * hash (upload sessions) get one recorded on their first clean scrub.
+ * <p>
+ * The outcome is kept on the blob itself ({@code metadata.scrubbedAt}, plus
+ * {@code metadata.scrubError} while damaged), so the worker always picks up the blobs
+ * checked longest ago and resumes where it stopped after a restart.
+ * <p>
+ * To stay out of the way of downloads, reads are paced to {@code bytes-per-second},
+ * bypass {@link GridFsChunkCache}, and go to a secondary when there is one.
+ */
+@Slf4j
+@Service
+public class BlobScrubber {
+    
+    public static final int MAX_DAMAGED_FILES = 1000;
+    
+    private static final String SCRUBBED_AT = "metadata.scrubbedAt";
+    private static final String SCRUB_ERROR = "metadata.scrubError";
+    private static final Document FILES_ID_INDEX = new Document("files_id", 1).append("n", 1);
+    private static final int PREFETCH_BYTES = 2 * 1024 * 1024;
+    private static final int INFLATE_BUFFER_SIZE = 64 * 1024;
+    
+    private final MongoTemplate mongoTemplate;
+    private final Counter checkedCounter;
+    private final Counter damagedCounter;
+    private final Counter bytesCounter;
+    private final AtomicLong damagedBlobs = new AtomicLong();
+    
+    private final boolean enabled;
+    private final long bytesPerSecond;
+    private final Duration rescrubAfter;
+    private final Duration settle;
+    private final int batchSize;
+    private final long intervalMs;
+    private final ReadPreference readPreference;
+    
+    private ScheduledExecutorService scrubber;
+    private volatile boolean running = true;
+    private volatile LocalDateTime lastCheckedAt;
+    private long nextReadNanos; // Pacing state, only touched by the scrubber thread
+    
+    public BlobScrubber(MongoTemplate mongoTemplate,
+                        MeterRegistry meterRegistry,
+                        @Value("${storage.scrub.enabled:true}") boolean enabled,
+                        @Value("${storage.scrub.bytes-per-second:8388608}") long bytesPerSecond,
+                        @Value("${storage.scrub.rescrub-after-days:30}") long rescrubAfterDays,
+                        @Value("${storage.scrub.settle-minutes:60}") long settleMinutes,
+                        @Value("${storage.scrub.batch-size:100}") int batchSize,
+                        @Value("${storage.scrub.interval-ms:60000}") long intervalMs,
+                        @Value("${storage.scrub.read-preference:secondaryPreferred}") String readPreference) {
+        this.mongoTemplate = mongoTemplate;
+        this.enabled = enabled;
+        this.bytesPerSecond = bytesPerSecond;
+        this.rescrubAfter = Duration.ofDays(rescrubAfterDays);
+        this.settle = Duration.ofMinutes(settleMinutes);
+        this.batchSize = batchSize;
+        this.intervalMs = intervalMs;
+        this.readPreference = ReadPreference.valueOf(readPreference);
+        this.checkedCounter = Counter.builder("firebird.scrub.checked")
+            .description("GridFS blobs verified by the integrity scrubber")
+            .register(meterRegistry);
+        this.damagedCounter = Counter.builder("firebird.scrub.damaged")
+            .description("Scrubs that found a GridFS blob damaged")
+            .register(meterRegistry);
+        this.bytesCounter = Counter.builder("firebird.scrub.bytes")
+            .description("Stored bytes read by the integrity scrubber")
+            .baseUnit("bytes")
+            .register(meterRegistry);
+        Gauge.builder("firebird.scrub.damaged.blobs", damagedBlobs, AtomicLong::get)
+            .description("GridFS blobs currently flagged as damaged")
+            .register(meterRegistry);
+    }
+    
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        MongoCollection<Document> files = mongoTemplate.getCollection(GridFSService.FILES_COLLECTION);
+        files.createIndex(Indexes.ascending(SCRUBBED_AT));
+        files.createIndex(Indexes.ascending(SCRUB_ERROR), new IndexOptions().sparse(true));
+        damagedBlobs.set(files.countDocuments(Filters.exists(SCRUB_ERROR)));
+        
+        scrubber = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "blob-scrubber");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        scrubber.scheduleWithFixedDelay(this::scrubDue, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+    
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        running = false;
+        if (scrubber != null) {
+            scrubber.shutdownNow();
+            scrubber.awaitTermination(30, TimeUnit.SECONDS);
+        }
+    }
+    
+    public ScrubStatus getStatus() {
+        return new ScrubStatus(enabled, bytesPerSecond, rescrubAfter.toDays(), (long) checkedCounter.count(),
+            (long) bytesCounter.count(), damagedBlobs.get(), lastCheckedAt);
+    }
+    
+    /**
+     * Blobs flagged by their last scrub together with the files stored in them, most
+     * recently checked first.
+     */
+    public List<DamagedFile> getDamagedFiles(int limit) {
+        List<Document> damaged = mongoTemplate.getCollection(GridFSService.FILES_COLLECTION)
+            .find(Filters.exists(SCRUB_ERROR))
+            .projection(Projections.include(SCRUB_ERROR, SCRUBBED_AT))
+            .sort(Sorts.descending(SCRUBBED_AT))
+            .limit(Math.min(Math.max(limit, 0), MAX_DAMAGED_FILES))
+            .into(new ArrayList<>());
+        
+        Map<String, List<FileMetadata>> filesByBlob = new HashMap<>();
+        Query query = new Query(Criteria.where("gridFsId").in(damaged.stream().map(d -> d.getObjectId("_id").toHexString()).toList()));
+        query.fields().include("ownerId", "path", "gridFsId");
+        for (FileMetadata file : mongoTemplate.find(query, FileMetadata.class)) {
+            filesByBlob.computeIfAbsent(file.getGridFsId(), id -> new ArrayList<>()).add(file);
+        }
+        
+        List<DamagedFile> result = new ArrayList<>();
+        for (Document blob : damaged) {
+            String blobId = blob.getObjectId("_id").toHexString();
+            Document metadata = blob.get("metadata", Document.class);
+            String problem = metadata.getString("scrubError");
+            LocalDateTime checkedAt = toLocalDateTime(metadata.getDate("scrubbedAt"));
+            List<FileMetadata> files = filesByBlob.getOrDefault(blobId, List.of());
+            if (files.isEmpty()) {
+                result.add(new DamagedFile(blobId, null, null, null, problem, checkedAt));
+            }
+            for (FileMetadata file : files) {
+                result.add(new DamagedFile(blobId, file.getId(), file.getOwnerId(), file.getPath(), problem, checkedAt));
+            }
+        }
+        return result;
+    }
+    
+    public void scrubDue() {
+        try {
+            Date now = new Date();
+            Bson due = Filters.and(
+                // Let new uploads replicate before reading them from a secondary
+                Filters.lt("uploadDate", Date.from(now.toInstant().minus(settle))),
+                Filters.or(Filters.exists(SCRUBBED_AT, false),
+                    Filters.lt(SCRUBBED_AT, Date.from(now.toInstant().minus(rescrubAfter)))));
+            List<Document> batch = mongoTemplate.getCollection(GridFSService.FILES_COLLECTION)
+                .find(due)
+                .sort(Sorts.ascending(SCRUBBED_AT))
+                .limit(batchSize)
+                .into(new ArrayList<>());
+            
+            for (Document blob : batch) {
+                if (!running) {
+                    return;
+                }
+                scrub(blob);
+            }
+            if (!batch.isEmpty()) {
+                damagedBlobs.set(mongoTemplate.getCollection(GridFSService.FILES_COLLECTION)
+                    .countDocuments(Filters.exists(SCRUB_ERROR)));
+            }
+        } catch (RuntimeException e) {
+            log.error("Blob scrub pass failed", e);
+        }
+    }
+    
+    private void scrub(Document blob) {
+        ObjectId id = blob.getObjectId("_id");
+        Document metadata = blob.get("metadata", Document.class);
+        Verification result = verify(blob);
+        if (result == null) {
+            // Interrupted by shutdown; try again next time
+            return;
+        }
+        
+        List<Bson> updates = new ArrayList<>();
+        updates.add(Updates.set(SCRUBBED_AT, new Date()));
+        if (result.problem() != null) {
+            updates.add(Updates.set(SCRUB_ERROR, result.problem()));
+        } else {
+            updates.add(Updates.unset(SCRUB_ERROR));
+            if (metadata == null || metadata.getString("sha256") == null) {
+                updates.add(Updates.set(GridFSService.SHA256, result.sha256()));
+            }
+        }
+        if (mongoTemplate.getCollection(GridFSService.FILES_COLLECTION)
+                .updateOne(Filters.eq("_id", id), Updates.combine(updates)).getMatchedCount() == 0) {
+            // Deleted while being read, so missing chunks say nothing about its integrity
+            return;
+        }
+        
+        if (result.problem() != null) {
+            damagedCounter.increment();
+            log.warn("Blob {} is damaged: {}", id, result.problem());
+        }
+        checkedCounter.increment();
+        lastCheckedAt = LocalDateTime.now();
+    }
+    
+    /**
+     * Reads the blob's chunks in order, checking their numbering and sizes and hashing the
+     * (inflated) content. Returns {@code null} if the scrubber is shutting down.
+     */
+    private Verification verify(Document blob) {
+        ObjectId id = blob.getObjectId("_id");
+        long length = blob.get("length", Number.class).longValue();
+        int chunkSize = blob.get("chunkSize", Number.class).intValue();
+        Document metadata = blob.get("metadata", Document.class);
+        if (chunkSize <= 0) {
+            return Verification.damaged("invalid chunk size " + chunkSize);
+        }
+        
+        long expectedChunks = (length + chunkSize - 1) / chunkSize;
+        boolean deflated = metadata != null && GridFsBlobResource.CODEC_DEFLATE.equals(metadata.getString("codec"));
+        MessageDigest digest = newSha256();
+        Inflater inflater = deflated ? new Inflater() : null;
+        byte[] inflated = deflated ? new byte[INFLATE_BUFFER_SIZE] : null;
+        long originalLength = 0;
+        int n = 0;
+        
+        try (MongoCursor<Document> chunks = mongoTemplate.getCollection(GridFSService.CHUNKS_COLLECTION)
+                .withReadPreference(readPreference)
+                .find(Filters.eq("files_id", id))
+                .projection(Projections.include("n", "data"))
+                .sort(Sorts.ascending("n"))
+                .hint(FILES_ID_INDEX)
+                .batchSize(Math.max(1, PREFETCH_BYTES / chunkSize))
+                .cursor()) {
+            while (chunks.hasNext()) {
+                Document chunk = chunks.next();
+                int chunkNumber = chunk.get("n", Number.class).intValue();
+                if (chunkNumber != n) {
+                    return Verification.damaged(chunkNumber < n ? "duplicate chunk " + chunkNumber : "missing chunk " + n);
+                }
+                if (n >= expectedChunks) {
+                    return Verification.damaged("has more than the expected " + expectedChunks + " chunks");
+                }
+                byte[] data = chunk.get("data", Binary.class).getData();
+                long expectedSize = n < expectedChunks - 1 ? chunkSize : length - (expectedChunks - 1) * chunkSize;
+                if (data.length != expectedSize) {
+                    return Verification.damaged("chunk " + n + " has " + data.length + " bytes, expected " + expectedSize);
+                }
+                
+                if (deflated) {
+                    inflater.setInput(data);
+                    int count;
+                    while ((count = inflater.inflate(inflated)) > 0) {
+                        digest.update(inflated, 0, count);
+                        originalLength += count;
+                    }
+                } else {
+                    digest.update(data);
+                    originalLength += data.length;
+                }
+                
+                bytesCounter.increment(data.length);
+                if (!pace(data.length)) {
+                    return null;
+                }
+                n++;
+            }
+            if (deflated && n == expectedChunks && !inflater.finished()) {
+                return Verification.damaged("compressed data ends early");
+            }
+        } catch (DataFormatException e) {
+            return Verification.damaged("corrupt compressed data in chunk " + n);
+        } finally {
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+        
+        if (n < expectedChunks) {
+            return Verification.damaged("missing chunk " + n + " of " + expectedChunks);
+        }
+        if (deflated && metadata.get("originalLength") instanceof Number expected
+                && expected.longValue() != originalLength) {
+            return Verification.damaged("inflates to " + originalLength + " bytes, expected " + expected.longValue());
+        }
+        String sha256 = HexFormat.of().formatHex(digest.digest());
+        String recorded = metadata != null ? metadata.getString("sha256") : null;
+        if (recorded != null && !recorded.equals(sha256)) {
+            return Verification.damaged("checksum mismatch");
+        }
+        return new Verification(null, sha256);
+    }
+    
+    /** Sleeps until {@code bytes} more fit the budget; false if interrupted. */
+    private boolean pace(long bytes) {
+        // No credit for idle time beyond a second, so a paused stretch does not turn into a burst
+        long now = System.nanoTime();
+        nextReadNanos = Math.max(nextReadNanos, now - TimeUnit.SECONDS.toNanos(1))
+            + bytes * 1_000_000_000L / Math.max(1, bytesPerSecond);
+        long wait = nextReadNanos - now;
+        if (wait <= 0) {
+            return running;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(wait);
+            return running;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+    
+    private static LocalDateTime toLocalDateTime(Date date) {
+        return date != null ? LocalDateTime.ofInstant(date.toInstant(), ZoneId.systemDefault()) : null;
+    }
+    
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    private record Verification(String problem, String sha256) {
+        
+        static Verification damaged(String problem) {
+            return new Verification(problem, null);
+        }
+    }
+}
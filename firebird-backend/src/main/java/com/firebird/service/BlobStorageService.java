@@ -0,0 +1,43 @@
+package com.firebird.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+@Service
+public class BlobStorageService {
+    
+    public static final String DEFAULT_BACKEND = GridFSService.NAME;
+    
+    private final Map<String, BlobStore> stores;
+    private final BlobStore primary;
+    
+    public BlobStorageService(List<BlobStore> blobStores,
+                              @Value("${storage.backend:" + DEFAULT_BACKEND + "}") String backend) {
+        this.stores = blobStores.stream().collect(Collectors.toMap(BlobStore::getName, Function.identity()));
+        this.primary = getStore(backend);
+    }
+    
+    /**
+     * The backend new uploads are written to.
+     */
+    public BlobStore getPrimary() {
+        return primary;
+    }
+    
+    /**
+     * Resolves the backend recorded on a file; files stored before backends were
+     * recorded have no name and live in GridFS.
+     */
+    public BlobStore getStore(String name) {
+        BlobStore store = stores.get(name != null ? name : DEFAULT_BACKEND);
+        if (store == null) {
+            throw new IllegalStateException("Unknown storage backend: " + name);
+        }
+        return store;
+    }
+}
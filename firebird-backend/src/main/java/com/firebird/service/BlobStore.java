@@ -0,0 +1,27 @@
+package com.firebird.service;
+
+import org.springframework.core.io.Resource;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Storage backend for file contents. File metadata always lives in MongoDB and records
+ * which backend holds the bytes, so backends can be mixed within one deployment.
+ */
+public interface BlobStore {
+    
+    String getName();
+    
+    /**
+     * @param size expected content length, used only as a sizing hint; negative if unknown
+     */
+    StoredBlob store(InputStream inputStream, String filename, String contentType, long size) throws IOException;
+    
+    Resource open(String id);
+    
+    /**
+     * Drops the caller's reference to the blob, deleting it when nothing else uses it.
+     */
+    void release(String id);
+}
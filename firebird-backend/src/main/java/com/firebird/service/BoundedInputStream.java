@@ -0,0 +1,50 @@
+package com.firebird.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Stops reading after {@code limit} bytes, so a client cannot push more data into
+ * storage than it declared up front.
+ */
+class BoundedInputStream extends InputStream {
+    
+    private final InputStream delegate;
+    private long remaining;
+    private long bytesRead;
+    
+    BoundedInputStream(InputStream delegate, long limit) {
+        this.delegate = delegate;
+        this.remaining = limit;
+    }
+    
+    long getBytesRead() {
+        return bytesRead;
+    }
+    
+    @Override
+    public int read() throws IOException {
+        if (remaining <= 0) {
+            return -1;
+        }
+        int b = delegate.read();
+        if (b >= 0) {
+            remaining--;
+            bytesRead++;
+        }
+        return b;
+    }
+    
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (remaining <= 0) {
+            return -1;
+        }
+        int read = delegate.read(b, off, (int) Math.min(len, remaining));
+        if (read > 0) {
+            remaining -= read;
+            bytesRead += read;
+        }
+        return read;
+    }
+}
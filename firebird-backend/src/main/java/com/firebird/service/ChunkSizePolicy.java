@@ -0,0 +1,44 @@
+package com.firebird.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Picks the GridFS chunk size from the expected file size. Small and medium files keep
+ * {@code storage.chunk-size}; large media get bigger chunks so a download needs fewer
+ * chunk documents and round trips.
+ */
+@Component
+public class ChunkSizePolicy {
+    
+    private final int baseChunkSize;
+    private final long largeThreshold;
+    private final int largeChunkSize;
+    private final long hugeThreshold;
+    private final int hugeChunkSize;
+    
+    public ChunkSizePolicy(@Value("${storage.chunk-size:261120}") int baseChunkSize,
+                           @Value("${storage.large-chunk-threshold:16777216}") long largeThreshold,
+                           @Value("${storage.large-chunk-size:1048576}") int largeChunkSize,
+                           @Value("${storage.huge-chunk-threshold:268435456}") long hugeThreshold,
+                           @Value("${storage.huge-chunk-size:4194304}") int hugeChunkSize) {
+        this.baseChunkSize = baseChunkSize;
+        this.largeThreshold = largeThreshold;
+        this.largeChunkSize = largeChunkSize;
+        this.hugeThreshold = hugeThreshold;
+        this.hugeChunkSize = hugeChunkSize;
+    }
+    
+    /**
+     * @param size expected file size in bytes, or a negative value when unknown
+     */
+    public int chunkSizeFor(long size) {
+        if (size >= hugeThreshold) {
+            return hugeChunkSize;
+        }
+        if (size >= largeThreshold) {
+            return largeChunkSize;
+        }
+        return baseChunkSize;
+    }
+}
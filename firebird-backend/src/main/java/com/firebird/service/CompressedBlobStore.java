@@ -0,0 +1,143 @@
+package com.firebird.service;
+
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Cold tier: gzip-compressed blobs in a local directory. Each file starts with the
+ * uncompressed length so the resource can report it without inflating the data.
+ */
+@Service
+public class CompressedBlobStore implements BlobStore {
+    
+    public static final String NAME = "cold";
+    
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
+    private final Path root;
+    
+    public CompressedBlobStore(@Value("${storage.cold.root:./data/cold}") String root) {
+        this.root = Paths.get(root).toAbsolutePath().normalize();
+    }
+    
+    @Override
+    public String getName() {
+        return NAME;
+    }
+    
+    @Override
+    public StoredBlob store(InputStream inputStream, String filename, String contentType, long size)
+            throws IOException {
+        String id = new ObjectId().toHexString();
+        Path target = resolve(id);
+        Files.createDirectories(target.getParent());
+        
+        Path temp = target.resolveSibling(id + ".part");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            // Leave room for the length header and fill it in once the stream is consumed
+            channel.position(Long.BYTES);
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+            GZIPOutputStream gzip = new GZIPOutputStream(out, BUFFER_SIZE);
+            long length = inputStream.transferTo(gzip);
+            gzip.finish();
+            out.flush();
+            
+            channel.write(ByteBuffer.allocate(Long.BYTES).putLong(0, length), 0);
+            channel.force(false);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        return new StoredBlob(id, Files.size(target));
+    }
+    
+    @Override
+    public Resource open(String id) {
+        Path path = resolve(id);
+        if (!Files.exists(path)) {
+            throw new RuntimeException("File not found: " + id);
+        }
+        return new CompressedResource(path);
+    }
+    
+    @Override
+    public void release(String id) {
+        try {
+            Files.deleteIfExists(resolve(id));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    private Path resolve(String id) {
+        if (!ObjectId.isValid(id)) {
+            throw new RuntimeException("Invalid blob id: " + id);
+        }
+        return root.resolve(id.substring(22, 24)).resolve(id + ".gz");
+    }
+    
+    private static class CompressedResource extends AbstractResource {
+        private final Path path;
+        
+        CompressedResource(Path path) {
+            this.path = path;
+        }
+        
+        @Override
+        public InputStream getInputStream() throws IOException {
+            InputStream file = new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE);
+            file.skipNBytes(Long.BYTES);
+            return new GZIPInputStream(file, BUFFER_SIZE);
+        }
+        
+        @Override
+        public long contentLength() throws IOException {
+            try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+                return in.readLong();
+            }
+        }
+        
+        @Override
+        public long lastModified() throws IOException {
+            return Files.getLastModifiedTime(path).toMillis();
+        }
+        
+        @Override
+        public String getFilename() {
+            return path.getFileName().toString();
+        }
+        
+        @Override
+        public boolean exists() {
+            return Files.exists(path);
+        }
+        
+        @Override
+        public String getDescription() {
+            return "Compressed blob [" + path + "]";
+        }
+    }
+}
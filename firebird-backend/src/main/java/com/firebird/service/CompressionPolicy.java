@@ -0,0 +1,59 @@
+package com.firebird.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Decides which uploads are worth compressing. Only formats known to be plain text or
+ * markup qualify; media, archives and OOXML/ODF documents (which are already zip
+ * containers) are stored as-is.
+ */
+@Component
+public class CompressionPolicy {
+    
+    private static final Set<String> COMPRESSIBLE_TYPES = Set.of(
+        "application/json", "application/xml", "application/javascript", "application/x-ndjson",
+        "application/x-yaml", "application/yaml", "application/sql", "application/rtf",
+        "application/x-sh", "image/svg+xml", "image/bmp", "application/x-tar"
+    );
+    
+    private static final Set<String> COMPRESSIBLE_EXTENSIONS = Set.of(
+        "txt", "log", "csv", "tsv", "json", "ndjson", "xml", "md", "html", "htm", "css", "js",
+        "ts", "yaml", "yml", "sql", "svg", "rtf", "ini", "conf", "properties", "bmp", "tar"
+    );
+    
+    private final boolean enabled;
+    
+    public CompressionPolicy(@Value("${storage.compression.enabled:true}") boolean enabled) {
+        this.enabled = enabled;
+    }
+    
+    public boolean shouldCompress(String filename, String contentType) {
+        if (!enabled) {
+            return false;
+        }
+        
+        if (contentType != null) {
+            String type = contentType.toLowerCase(Locale.ROOT);
+            int params = type.indexOf(';');
+            if (params >= 0) {
+                type = type.substring(0, params).trim();
+            }
+            if (type.startsWith("text/") || COMPRESSIBLE_TYPES.contains(type)) {
+                return true;
+            }
+        }
+        
+        if (filename != null) {
+            int lastDot = filename.lastIndexOf('.');
+            if (lastDot > 0) {
+                return COMPRESSIBLE_EXTENSIONS.contains(filename.substring(lastDot + 1).toLowerCase(Locale.ROOT));
+            }
+        }
+        
+        return false;
+    }
+}
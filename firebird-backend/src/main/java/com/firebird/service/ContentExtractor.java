@@ -0,0 +1,133 @@
+package com.firebird.service;
+
+import com.firebird.model.FileMetadata;
+import org.apache.pdfbox.Loader;
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.text.PDFTextStripper;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.stereotype.Component;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Turns blob content into indexable text. Plain text is streamed through a reader capped
+ * at {@code search.content-index.max-chars}; PDFs are spooled to a temp file and parsed
+ * with a temp-file stream cache, one page at a time, until the same cap is reached.
+ */
+@Component
+public class ContentExtractor {
+    
+    private static final String PDF_TYPE = "application/pdf";
+    private static final Set<String> TEXT_EXTENSIONS = Set.of("txt", "md", "markdown", "csv");
+    
+    private final int maxChars;
+    
+    public ContentExtractor(@Value("${search.content-index.max-chars:1000000}") int maxChars) {
+        this.maxChars = maxChars;
+    }
+    
+    /** Selects, in Mongo, the files {@link #extract} can handle. */
+    public static Criteria supportedCriteria() {
+        return new Criteria().orOperator(
+            Criteria.where("mimeType").regex("^text/"),
+            Criteria.where("mimeType").is(PDF_TYPE),
+            Criteria.where("extension").regex("^(txt|md|markdown|csv|pdf)$", "i"));
+    }
+    
+    /**
+     * Returns the file's text. The reader may still be backed by {@code in}, so the caller
+     * closes both once it has consumed the text.
+     */
+    public Reader extract(FileMetadata file, InputStream in) throws IOException {
+        if (isPdf(file)) {
+            return new StringReader(extractPdf(in));
+        }
+        if (isText(file)) {
+            return new CappedReader(new InputStreamReader(in, StandardCharsets.UTF_8), maxChars);
+        }
+        throw new IllegalArgumentException("Unsupported content type: " + file.getMimeType());
+    }
+    
+    private String extractPdf(InputStream in) throws IOException {
+        Path spool = Files.createTempFile("firebird-extract-", ".pdf");
+        try {
+            Files.copy(in, spool, StandardCopyOption.REPLACE_EXISTING);
+            
+            try (PDDocument pdf = Loader.loadPDF(spool.toFile(), IOUtils.createTempFileOnlyStreamCache())) {
+                PDFTextStripper stripper = new PDFTextStripper();
+                StringBuilder text = new StringBuilder();
+                
+                for (int page = 1; page <= pdf.getNumberOfPages() && text.length() < maxChars; page++) {
+                    stripper.setStartPage(page);
+                    stripper.setEndPage(page);
+                    text.append(stripper.getText(pdf));
+                }
+                
+                text.setLength(Math.min(text.length(), maxChars));
+                return text.toString();
+            }
+        } finally {
+            Files.deleteIfExists(spool);
+        }
+    }
+    
+    private static boolean isPdf(FileMetadata file) {
+        return PDF_TYPE.equals(file.getMimeType()) || "pdf".equals(extension(file));
+    }
+    
+    private static boolean isText(FileMetadata file) {
+        return (file.getMimeType() != null && file.getMimeType().startsWith("text/"))
+            || TEXT_EXTENSIONS.contains(extension(file));
+    }
+    
+    private static String extension(FileMetadata file) {
+        return file.getExtension() != null ? file.getExtension().toLowerCase(Locale.ROOT) : "";
+    }
+    
+    /** Reports end of stream once {@code remaining} chars have been read. */
+    private static final class CappedReader extends FilterReader {
+        private long remaining;
+        
+        CappedReader(Reader in, long limit) {
+            super(in);
+            this.remaining = limit;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int c = super.read();
+            if (c != -1) {
+                remaining--;
+            }
+            return c;
+        }
+        
+        @Override
+        public int read(char[] buf, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = super.read(buf, off, (int) Math.min(len, remaining));
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package com.firebird.service;
+
+import com.firebird.model.FileMetadata;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.StoredFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.QueryBuilder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full-text index of file contents in a local Lucene index. A background worker picks
+ * up files whose {@code contentIndexedAt} is still unset, streams their blobs through
+ * {@link ContentExtractor}, commits the batch and only then marks the files indexed, so
+ * a restart resumes where the last commit left off. Trash and delete remove entries
+ * straight away.
+ */
+@Slf4j
+@Service
+public class ContentIndexService {
+    
+    public static final int MAX_HITS = 10_000;
+    
+    private static final String FILE_ID = "fileId";
+    private static final String OWNER_ID = "ownerId";
+    private static final String CONTENT = "content";
+    
+    private final MongoTemplate mongoTemplate;
+    private final BlobStorageService blobStorageService;
+    private final ContentExtractor contentExtractor;
+    private final Analyzer analyzer = new StandardAnalyzer();
+    private final Counter indexedCounter;
+    private final Counter failedCounter;
+    
+    private final boolean enabled;
+    private final Path indexPath;
+    private final int batchSize;
+    private final long intervalMs;
+    
+    private ScheduledExecutorService indexer;
+    private IndexWriter writer;
+    private SearcherManager searcherManager;
+    
+    public ContentIndexService(MongoTemplate mongoTemplate,
+                               BlobStorageService blobStorageService,
+                               ContentExtractor contentExtractor,
+                               MeterRegistry meterRegistry,
+                               @Value("${search.content-index.enabled:true}") boolean enabled,
+                               @Value("${search.content-index.path:./data/content-index}") String indexPath,
+                               @Value("${search.content-index.batch-size:50}") int batchSize,
+                               @Value("${search.content-index.interval-ms:5000}") long intervalMs) {
+        this.mongoTemplate = mongoTemplate;
+        this.blobStorageService = blobStorageService;
+        this.contentExtractor = contentExtractor;
+        this.enabled = enabled;
+        this.indexPath = Paths.get(indexPath).toAbsolutePath().normalize();
+        this.batchSize = batchSize;
+        this.intervalMs = intervalMs;
+        this.indexedCounter = Counter.builder("firebird.search.content.indexed")
+            .description("Files whose content was added to the search index")
+            .register(meterRegistry);
+        this.failedCounter = Counter.builder("firebird.search.content.failed")
+            .description("Files whose content could not be extracted")
+            .register(meterRegistry);
+    }
+    
+    @PostConstruct
+    public void open() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        
+        Files.createDirectories(indexPath);
+        Directory directory = FSDirectory.open(indexPath);
+        boolean fresh = !DirectoryReader.indexExists(directory);
+        writer = new IndexWriter(directory, new IndexWriterConfig(analyzer));
+        searcherManager = new SearcherManager(writer, null);
+        
+        if (fresh) {
+            // A new or wiped index directory: everything has to be indexed again
+            long reset = mongoTemplate.updateMulti(new Query(Criteria.where("contentIndexedAt").ne(null)),
+                new Update().unset("contentIndexedAt"), FileMetadata.class).getModifiedCount();
+            log.info("Created content index at {}, {} files queued for indexing", indexPath, reset);
+        }
+        
+        indexer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "content-indexer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        indexer.scheduleWithFixedDelay(this::indexPending, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+    
+    @PreDestroy
+    public void close() throws IOException, InterruptedException {
+        if (!enabled) {
+            return;
+        }
+        indexer.shutdown();
+        indexer.awaitTermination(30, TimeUnit.SECONDS);
+        searcherManager.close();
+        writer.close();
+    }
+    
+    public boolean isEnabled() {
+        return enabled;
+    }
+    
+    public void indexPending() {
+        try {
+            Query query = new Query(new Criteria().andOperator(
+                    Criteria.where("contentIndexedAt").is(null).and("trashed").is(false),
+                    ContentExtractor.supportedCriteria()))
+                .with(Sort.by("createdAt"))
+                .limit(batchSize);
+            List<FileMetadata> batch = mongoTemplate.find(query, FileMetadata.class);
+            
+            for (FileMetadata file : batch) {
+                index(file);
+            }
+            
+            // Files trashed or deleted during extraction must not stay in the index. Their
+            // removal ran either before this check, which then sees them gone, or after the
+            // documents above were written, which it deletes again
+            List<String> ids = batch.stream().map(FileMetadata::getId).toList();
+            Set<String> live = ids.isEmpty() ? Set.of() : liveFileIds(ids);
+            List<Term> gone = ids.stream().filter(id -> !live.contains(id)).map(id -> new Term(FILE_ID, id)).toList();
+            if (!gone.isEmpty()) {
+                writer.deleteDocuments(gone.toArray(Term[]::new));
+            }
+            
+            if (writer.hasUncommittedChanges()) {
+                writer.commit();
+                searcherManager.maybeRefresh();
+            }
+            
+            if (!live.isEmpty()) {
+                // Failed files are marked too, so one bad blob does not stall the queue. Trashing
+                // unsets the mark, so a file trashed meanwhile is left unmarked for its restore
+                mongoTemplate.updateMulti(new Query(Criteria.where("_id").in(live).and("trashed").is(false)),
+                    new Update().set("contentIndexedAt", LocalDateTime.now()), FileMetadata.class);
+                log.debug("Indexed content of {} files", live.size());
+            }
+        } catch (IOException | RuntimeException e) {
+            log.error("Content indexing pass failed", e);
+        }
+    }
+    
+    public void remove(String fileId) {
+        removeAll(List.of(fileId));
+    }
+    
+    public void removeAll(Collection<String> fileIds) {
+        if (!enabled || fileIds.isEmpty()) {
+            return;
+        }
+        try {
+            writer.deleteDocuments(fileIds.stream().map(id -> new Term(FILE_ID, id)).toArray(Term[]::new));
+            searcherManager.maybeRefresh();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    /**
+     * Those of {@code fileIds} that still exist and are not in the trash.
+     */
+    public Set<String> liveFileIds(Collection<String> fileIds) {
+        Query query = new Query(Criteria.where("_id").in(fileIds).and("trashed").is(false));
+        query.fields().include("_id");
+        Set<String> live = new HashSet<>();
+        mongoTemplate.find(query, FileMetadata.class).forEach(f -> live.add(f.getId()));
+        return live;
+    }
+    
+    /**
+     * Ids of the owner's files whose content matches every term of {@code text}, by relevance.
+     * Entries may outlive their file, e.g. one trashed through another instance; callers
+     * check hits against {@link #liveFileIds} and {@link #removeAll} the rest.
+     */
+    public ContentHits search(String ownerId, String text, int offset, int size) {
+        org.apache.lucene.search.Query terms =
+            new QueryBuilder(analyzer).createBooleanQuery(CONTENT, text, BooleanClause.Occur.MUST);
+        int wanted = Math.min(offset + size, MAX_HITS);
+        if (terms == null || offset >= wanted) {
+            return new ContentHits(List.of(), 0);
+        }
+        
+        BooleanQuery query = new BooleanQuery.Builder()
+            .add(terms, BooleanClause.Occur.MUST)
+            .add(new TermQuery(new Term(OWNER_ID, ownerId)), BooleanClause.Occur.FILTER)
+            .build();
+        
+        try {
+            IndexSearcher searcher = searcherManager.acquire();
+            try {
+                TopDocs top = searcher.search(query, wanted);
+                StoredFields storedFields = searcher.storedFields();
+                List<String> ids = new ArrayList<>();
+                for (int i = offset; i < top.scoreDocs.length; i++) {
+                    ScoreDoc hit = top.scoreDocs[i];
+                    ids.add(storedFields.document(hit.doc, Set.of(FILE_ID)).get(FILE_ID));
+                }
+                return new ContentHits(ids, top.totalHits.value);
+            } finally {
+                searcherManager.release(searcher);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    private void index(FileMetadata file) {
+        BlobStore store = blobStorageService.getStore(file.getStorageBackend());
+        try (InputStream in = store.open(file.getGridFsId()).getInputStream();
+             Reader text = contentExtractor.extract(file, in)) {
+            Document doc = new Document();
+            doc.add(new StringField(FILE_ID, file.getId(), Field.Store.YES));
+            doc.add(new StringField(OWNER_ID, file.getOwnerId(), Field.Store.NO));
+            doc.add(new TextField(CONTENT, text));
+            // The text is tokenized as it streams in; it is never held in full
+            writer.updateDocument(new Term(FILE_ID, file.getId()), doc);
+            indexedCounter.increment();
+        } catch (IOException | RuntimeException e) {
+            log.warn("Could not index content of file {}: {}", file.getId(), e.getMessage());
+            failedCounter.increment();
+        }
+    }
+    
+    public record ContentHits(List<String> fileIds, long total) {
+    }
+}
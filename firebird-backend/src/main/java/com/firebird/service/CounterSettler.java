@@ -0,0 +1,101 @@
+package com.firebird.service;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Shared by the reconciliations of counters kept up to date with {@code $inc} deltas:
+ * folder rollups, tag counts and the storage breakdown. Every delta also bumps the
+ * counter's {@link #REVISION}, and a reconciliation rewrites a counter only if its
+ * revision is still the one read before the recount, so no delta applied meanwhile is
+ * ever overwritten, even one that left the values where they were.
+ * <p>
+ * A file the recount already saw may still have its delta in flight, since the file and
+ * its counters are two writes. Rewrites therefore run on this component's own thread
+ * after {@code reconcile.settle-ms}: such a delta lands in between, bumps the revision and
+ * the counter is left for the next run instead of being counted twice. Nothing waits for
+ * that delay; with 0 the rewrite runs right away on the calling thread.
+ */
+@Slf4j
+@Component
+public class CounterSettler {
+    
+    static final String REVISION = "revision";
+    
+    private final long settleMs;
+    private final ScheduledExecutorService settler;
+    
+    public CounterSettler(@Value("${reconcile.settle-ms:2000}") long settleMs) {
+        this.settleMs = settleMs;
+        this.settler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "counter-settler");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    /** Runs {@code rewrite} once deltas in flight at the time of the call have landed. */
+    public <T> CompletableFuture<T> afterSettle(Supplier<T> rewrite) {
+        if (settleMs <= 0) {
+            return run(rewrite);
+        }
+        CompletableFuture<T> result = new CompletableFuture<>();
+        settler.schedule(() -> run(rewrite).whenComplete((value, e) -> {
+            if (e != null) {
+                result.completeExceptionally(e);
+            } else {
+                result.complete(value);
+            }
+        }), settleMs, TimeUnit.MILLISECONDS);
+        return result;
+    }
+    
+    /** Runs {@code task} off the calling thread, or right away when settling is off. */
+    public void submit(Runnable task) {
+        if (settleMs <= 0) {
+            task.run();
+            return;
+        }
+        settler.execute(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                log.warn("Counter reconciliation failed: {}", e.getMessage());
+            }
+        });
+    }
+    
+    /**
+     * Matches a counter still at {@code revision}; counters written before revisions
+     * existed have none and count as revision 0.
+     */
+    static Criteria unchangedSince(long revision) {
+        return revision == 0
+            ? Criteria.where(REVISION).in(Arrays.asList(0L, null))
+            : Criteria.where(REVISION).is(revision);
+    }
+    
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        settler.shutdownNow();
+        settler.awaitTermination(30, TimeUnit.SECONDS);
+    }
+    
+    private static <T> CompletableFuture<T> run(Supplier<T> rewrite) {
+        try {
+            return CompletableFuture.completedFuture(rewrite.get());
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+}
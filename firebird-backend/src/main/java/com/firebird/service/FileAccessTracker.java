@@ -0,0 +1,129 @@
+package com.firebird.service;
+
+import com.firebird.model.FileMetadata;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Write-behind buffer for {@code downloadCount} and {@code lastAccessedAt}. Reads only
+ * touch a per-file delta in memory; a scheduled flush turns the accumulated deltas into
+ * one unordered bulk of {@code $inc}/{@code $max} updates instead of a full document
+ * save per read.
+ */
+@Slf4j
+@Service
+public class FileAccessTracker {
+    
+    private static final int FLUSH_BATCH_SIZE = 1000;
+    
+    private final MongoTemplate mongoTemplate;
+    private final Map<String, AccessDelta> pending = new ConcurrentHashMap<>();
+    private final Timer flushTimer;
+    
+    public FileAccessTracker(MongoTemplate mongoTemplate, MeterRegistry meterRegistry) {
+        this.mongoTemplate = mongoTemplate;
+        this.flushTimer = Timer.builder("firebird.access.flush")
+            .description("Time spent flushing buffered file access statistics")
+            .register(meterRegistry);
+        Gauge.builder("firebird.access.buffer.size", pending, Map::size)
+            .description("Files with unflushed access statistics")
+            .register(meterRegistry);
+    }
+    
+    public void recordAccess(String fileId) {
+        long now = System.currentTimeMillis();
+        // compute() runs under the map's per-bin lock, so a concurrent flush never sees a half-updated delta
+        pending.compute(fileId, (id, delta) -> {
+            AccessDelta d = delta != null ? delta : new AccessDelta();
+            d.count++;
+            d.lastAccessed = Math.max(d.lastAccessed, now);
+            return d;
+        });
+    }
+    
+    @Scheduled(fixedDelayString = "${storage.access-stats.flush-interval-ms:10000}")
+    public void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        flushTimer.record(this::flushPending);
+    }
+    
+    @PreDestroy
+    public void flushOnShutdown() {
+        flushPending();
+    }
+    
+    private void flushPending() {
+        List<String> fileIds = new ArrayList<>(pending.keySet());
+        Map<String, AccessDelta> batch = new HashMap<>();
+        
+        for (String fileId : fileIds) {
+            AccessDelta delta = pending.remove(fileId);
+            if (delta == null) {
+                continue;
+            }
+            batch.put(fileId, delta);
+            
+            if (batch.size() >= FLUSH_BATCH_SIZE) {
+                writeBatch(batch);
+                batch.clear();
+            }
+        }
+        
+        if (!batch.isEmpty()) {
+            writeBatch(batch);
+        }
+    }
+    
+    private void writeBatch(Map<String, AccessDelta> batch) {
+        BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, FileMetadata.class);
+        batch.forEach((fileId, delta) -> bulk.updateOne(
+            new Query(Criteria.where("_id").is(fileId)),
+            new Update()
+                .inc("downloadCount", delta.count)
+                .max("lastAccessedAt", toDateTime(delta.lastAccessed))
+        ));
+        
+        try {
+            bulk.execute();
+        } catch (RuntimeException e) {
+            log.warn("Failed to flush access statistics for {} files, will retry", batch.size(), e);
+            batch.forEach((fileId, delta) -> pending.merge(fileId, delta, AccessDelta::combine));
+        }
+    }
+    
+    private static LocalDateTime toDateTime(long epochMilli) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMilli), ZoneId.systemDefault());
+    }
+    
+    private static class AccessDelta {
+        private long count;
+        private long lastAccessed;
+        
+        private static AccessDelta combine(AccessDelta a, AccessDelta b) {
+            a.count += b.count;
+            a.lastAccessed = Math.max(a.lastAccessed, b.lastAccessed);
+            return a;
+        }
+    }
+}
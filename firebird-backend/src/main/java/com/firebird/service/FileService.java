@@ -1,56 +1,161 @@
 package com.firebird.service;
 
+import com.firebird.dto.CompressionStats;
+import com.firebird.dto.CursorPage;
+import com.firebird.dto.FileListItem;
 import com.firebird.model.FileMetadata;
-import com.firebird.model.User;
+import com.firebird.model.Folder;
 import com.firebird.repository.FileMetadataRepository;
-import com.firebird.repository.UserRepository;
+import com.firebird.repository.FolderRepository;
 import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
 import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.Pageable;
-import org.springframework.data.mongodb.gridfs.GridFsResource;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 @Service
 @RequiredArgsConstructor
 public class FileService {
     
     private final FileMetadataRepository fileMetadataRepository;
-    private final UserRepository userRepository;
-    private final GridFSService gridFSService;
+    private final FolderRepository folderRepository;
+    private final BlobStorageService blobStorageService;
     private final ActivityService activityService;
+    private final FileAccessTracker fileAccessTracker;
+    private final StorageTieringService storageTieringService;
+    private final NameSearchIndex nameSearchIndex;
+    private final ContentIndexService contentIndexService;
+    private final TagService tagService;
+    private final FolderRollupService folderRollupService;
+    private final StorageBreakdownService storageBreakdownService;
+    private final QuotaService quotaService;
+    private final MongoTemplate mongoTemplate;
+    
+    @Value("${storage.quota.reservation-ttl-minutes:360}")
+    private long reservationTtlMinutes;
     
     @Transactional
     public FileMetadata uploadFile(MultipartFile file, String userId, String folderId) throws IOException {
-        User user = userRepository.findById(userId)
-            .orElseThrow(() -> new RuntimeException("User not found"));
-        
-        long fileSize = file.getSize();
-        if (user.getStorageUsed() + fileSize > user.getStorageQuota()) {
-            throw new RuntimeException("Storage quota exceeded");
+        QuotaService.Reservation reservation = reserveQuota(userId, file.getSize());
+        String contentType = mimeTypeOf(file.getContentType());
+        try {
+            BlobStore store = blobStorageService.getPrimary();
+            StoredBlob blob = store.store(file.getInputStream(), file.getOriginalFilename(),
+                                          contentType, file.getSize());
+            
+            return saveUploadedFile(reservation, file.getOriginalFilename(), contentType,
+                                    store.getName(), blob, folderId);
+        } catch (IOException | RuntimeException e) {
+            quotaService.release(reservation);
+            throw e;
         }
+    }
+    
+    @Transactional
+    public FileMetadata uploadStream(InputStream inputStream, String fileName, String contentType,
+                                     long contentLength, String userId, String folderId) throws IOException {
+        if (contentLength < 0) {
+            throw new RuntimeException("Content-Length header is required");
+        }
+        contentType = mimeTypeOf(contentType);
         
-        String gridFsId = gridFSService.storeFile(file);
+        QuotaService.Reservation reservation = reserveQuota(userId, contentLength);
+        try {
+            BlobStore store = blobStorageService.getPrimary();
+            BoundedInputStream bounded = new BoundedInputStream(inputStream, contentLength);
+            StoredBlob blob = store.store(bounded, fileName, contentType, contentLength);
+            
+            if (bounded.getBytesRead() != contentLength) {
+                store.release(blob.id());
+                throw new RuntimeException("Upload truncated: received " + bounded.getBytesRead()
+                    + " of " + contentLength + " bytes");
+            }
+            
+            return saveUploadedFile(reservation, fileName, contentType, store.getName(), blob, folderId);
+        } catch (IOException | RuntimeException e) {
+            quotaService.release(reservation);
+            throw e;
+        }
+    }
+    
+    /**
+     * Saves a file whose chunks were written through an upload session; the session
+     * reserved the quota when it was opened.
+     */
+    @Transactional
+    public FileMetadata completeUpload(QuotaService.Reservation reservation, String folderId, String fileName,
+                                       String contentType, String gridFsId) {
+        return saveUploadedFile(reservation, fileName, contentType, GridFSService.NAME,
+                                new StoredBlob(gridFsId, reservation.bytes()), folderId);
+    }
+    
+    /**
+     * The content type a client sent if it is a valid media type, otherwise
+     * {@code application/octet-stream}; downloads serve the stored value as is.
+     */
+    public static String mimeTypeOf(String contentType) {
+        if (contentType == null || contentType.isBlank()) {
+            return MediaType.APPLICATION_OCTET_STREAM_VALUE;
+        }
+        try {
+            MediaType.parseMediaType(contentType);
+            return contentType;
+        } catch (InvalidMediaTypeException e) {
+            return MediaType.APPLICATION_OCTET_STREAM_VALUE;
+        }
+    }
+    
+    /**
+     * Holds {@code fileSize} bytes of the user's quota for an upload about to start.
+     */
+    public QuotaService.Reservation reserveQuota(String userId, long fileSize) {
+        return quotaService.reserve(userId, fileSize, Duration.ofMinutes(reservationTtlMinutes));
+    }
+    
+    private FileMetadata saveUploadedFile(QuotaService.Reservation reservation, String fileName, String contentType,
+                                          String storageBackend, StoredBlob blob, String folderId) {
+        String userId = reservation.userId();
+        long fileSize = reservation.bytes();
         
         FileMetadata metadata = new FileMetadata();
-        metadata.setName(file.getOriginalFilename());
+        metadata.setName(fileName);
         metadata.setOwnerId(userId);
         metadata.setFolderId(folderId);
-        metadata.setGridFsId(gridFsId);
+        metadata.setPath(buildPath(folderId, fileName, true));
+        metadata.setStorageBackend(storageBackend);
+        metadata.setGridFsId(blob.id());
         metadata.setSize(fileSize);
-        metadata.setMimeType(file.getContentType());
-        metadata.setExtension(getFileExtension(file.getOriginalFilename()));
+        metadata.setStoredSize(blob.storedSize());
+        metadata.setMimeType(mimeTypeOf(contentType));
+        metadata.setExtension(getFileExtension(fileName));
         metadata.setLastAccessedAt(LocalDateTime.now());
         
         metadata = fileMetadataRepository.save(metadata);
-        
-        user.setStorageUsed(user.getStorageUsed() + fileSize);
-        userRepository.save(user);
+        quotaService.commit(reservation);
+        nameSearchIndex.putFile(userId, metadata.getId(), metadata.getName());
+        folderRollupService.fileAdded(userId, folderId, fileSize);
+        storageBreakdownService.fileStored(metadata);
         
         activityService.logActivity(userId, "UPLOAD", metadata.getId(), "FILE", metadata.getName());
         
@@ -58,6 +163,12 @@ public class FileService {
     }
     
     public FileMetadata getFile(String fileId, String userId) {
+        FileMetadata file = getAccessibleFile(fileId, userId);
+        recordAccess(file);
+        return file;
+    }
+    
+    public FileMetadata getAccessibleFile(String fileId, String userId) {
         FileMetadata file = fileMetadataRepository.findById(fileId)
             .orElseThrow(() -> new RuntimeException("File not found"));
         
@@ -65,25 +176,57 @@ public class FileService {
             throw new RuntimeException("Access denied");
         }
         
+        return file;
+    }
+    
+    public Resource downloadFile(FileMetadata file, String userId) {
+        recordAccess(file);
+        activityService.logActivity(userId, "DOWNLOAD", file.getId(), "FILE", file.getName());
+        Resource resource = blobStorageService.getStore(file.getStorageBackend()).open(file.getGridFsId());
+        storageTieringService.promoteIfCold(file);
+        return resource;
+    }
+    
+    private void recordAccess(FileMetadata file) {
+        fileAccessTracker.recordAccess(file.getId());
+        
+        // Reflect the access in the returned document; the stored counters catch up on the next flush
         file.setLastAccessedAt(LocalDateTime.now());
         file.setDownloadCount(file.getDownloadCount() + 1);
-        fileMetadataRepository.save(file);
-        
-        return file;
     }
     
-    public GridFsResource downloadFile(String fileId, String userId) {
-        FileMetadata file = getFile(fileId, userId);
-        activityService.logActivity(userId, "DOWNLOAD", fileId, "FILE", file.getName());
-        return gridFSService.getFile(file.getGridFsId());
+    public List<FileListItem> listFiles(String userId, String folderId) {
+        return fileMetadataRepository.findItemsByOwnerIdAndFolderIdAndTrashedFalse(userId, folderId);
+    }
+    
+    public CursorPage<FileListItem> listFilesPage(String userId, String folderId, String cursor, int limit) {
+        List<FileListItem> fetched;
+        if (cursor == null) {
+            fetched = fileMetadataRepository.findItemsByOwnerIdAndFolderIdAndTrashedFalse(
+                userId, folderId, PageCursor.SORT, PageCursor.fetchLimit(limit));
+        } else {
+            PageCursor after = PageCursor.decode(cursor);
+            fetched = fileMetadataRepository.findFolderPageAfter(
+                userId, folderId, after.name(), after.id(), PageCursor.SORT, PageCursor.fetchLimit(limit));
+        }
+        return PageCursor.page(fetched, limit, FileListItem::getName, FileListItem::getId);
     }
     
-    public List<FileMetadata> listFiles(String userId, String folderId) {
-        return fileMetadataRepository.findByOwnerIdAndFolderIdAndTrashedFalse(userId, folderId);
+    public List<FileListItem> getStarredFiles(String userId) {
+        return fileMetadataRepository.findItemsByOwnerIdAndStarredTrueAndTrashedFalse(userId);
     }
     
-    public List<FileMetadata> getStarredFiles(String userId) {
-        return fileMetadataRepository.findByOwnerIdAndStarredTrueAndTrashedFalse(userId);
+    public CursorPage<FileListItem> getStarredFilesPage(String userId, String cursor, int limit) {
+        List<FileListItem> fetched;
+        if (cursor == null) {
+            fetched = fileMetadataRepository.findItemsByOwnerIdAndStarredTrueAndTrashedFalse(
+                userId, PageCursor.SORT, PageCursor.fetchLimit(limit));
+        } else {
+            PageCursor after = PageCursor.decode(cursor);
+            fetched = fileMetadataRepository.findStarredPageAfter(
+                userId, after.name(), after.id(), PageCursor.SORT, PageCursor.fetchLimit(limit));
+        }
+        return PageCursor.page(fetched, limit, FileListItem::getName, FileListItem::getId);
     }
     
     public List<FileMetadata> getRecentFiles(String userId, Pageable pageable) {
@@ -91,9 +234,69 @@ public class FileService {
         return fileMetadataRepository.findRecentFiles(userId, since, pageable);
     }
     
+    public CompressionStats getCompressionStats(String userId) {
+        CompressionStats stats = fileMetadataRepository.aggregateCompressionStats(userId);
+        return stats != null ? stats : new CompressionStats(0L, 0L);
+    }
+    
     public Page<FileMetadata> searchFiles(String userId, String query, Pageable pageable) {
-        return fileMetadataRepository.findByOwnerIdAndNameContainingIgnoreCaseAndTrashedFalse(
-            userId, query, pageable);
+        if (!nameSearchIndex.isReady()) {
+            return fileMetadataRepository.findByOwnerIdAndNameContainingIgnoreCaseAndTrashedFalse(
+                userId, query, pageable);
+        }
+        
+        // Stale hits are dropped before paging, so pages come back full and the total adds up
+        List<String> ranked = nameSearchIndex.searchFiles(userId, query, NameSearchIndex.MAX_RESULTS);
+        Set<String> live = new HashSet<>();
+        if (!ranked.isEmpty()) {
+            Query owned = new Query(Criteria.where("_id").in(ranked).and("ownerId").is(userId).and("trashed").is(false));
+            owned.fields().include("_id");
+            mongoTemplate.find(owned, FileMetadata.class).forEach(f -> live.add(f.getId()));
+        }
+        ranked.stream().filter(id -> !live.contains(id)).forEach(id -> nameSearchIndex.removeFile(userId, id));
+        
+        List<String> hits = ranked.stream().filter(live::contains).toList();
+        int from = (int) Math.min(pageable.getOffset(), hits.size());
+        List<String> pageIds = hits.subList(from, Math.min(from + pageable.getPageSize(), hits.size()));
+        return new PageImpl<>(loadSearchHits(pageIds, userId), pageable, hits.size());
+    }
+    
+    public Page<FileMetadata> searchFileContents(String userId, String query, Pageable pageable) {
+        if (!contentIndexService.isEnabled()) {
+            throw new RuntimeException("Content search is disabled");
+        }
+        
+        // Only the page's hits are checked against the files; stale ones are dropped from the
+        // index and the window widened until the page is full or the hits run out
+        int offset = (int) Math.min(pageable.getOffset(), ContentIndexService.MAX_HITS);
+        int size = pageable.getPageSize();
+        int window = size;
+        while (true) {
+            ContentIndexService.ContentHits hits = contentIndexService.search(userId, query, offset, window);
+            Set<String> live = hits.fileIds().isEmpty() ? Set.of() : contentIndexService.liveFileIds(hits.fileIds());
+            List<String> stale = hits.fileIds().stream().filter(id -> !live.contains(id)).toList();
+            contentIndexService.removeAll(stale);
+            
+            List<String> pageIds = hits.fileIds().stream().filter(live::contains).limit(size).toList();
+            if (pageIds.size() == size || hits.fileIds().size() < window || window == ContentIndexService.MAX_HITS) {
+                long total = Math.max(hits.total() - stale.size(), offset + pageIds.size());
+                return new PageImpl<>(loadSearchHits(pageIds, userId), pageable, total);
+            }
+            window = Math.min(window * 2, ContentIndexService.MAX_HITS);
+        }
+    }
+    
+    /**
+     * Loads search hits in the index's order, dropping any that went stale since they were indexed.
+     */
+    private List<FileMetadata> loadSearchHits(List<String> ids, String userId) {
+        Map<String, FileMetadata> byId = new HashMap<>();
+        fileMetadataRepository.findAllById(ids).forEach(f -> byId.put(f.getId(), f));
+        
+        return ids.stream()
+            .map(byId::get)
+            .filter(f -> f != null && !f.isTrashed() && f.getOwnerId().equals(userId))
+            .toList();
     }
     
     @Transactional
@@ -105,28 +308,59 @@ public class FileService {
             throw new RuntimeException("Access denied");
         }
         
-        file.setTrashed(true);
-        file.setTrashedAt(LocalDateTime.now());
-        fileMetadataRepository.save(file);
+        // Only touch the trash fields, and count the file out only if this call trashed it;
+        // the returned document holds the tags as they were at that moment
+        LocalDateTime now = LocalDateTime.now();
+        Query live = new Query(Criteria.where("_id").is(fileId).and("trashed").is(false));
+        Update trash = new Update()
+            .set("trashed", true)
+            .set("trashedAt", now)
+            .set("updatedAt", now)
+            .unset("contentIndexedAt");
+        FileMetadata trashed = mongoTemplate.findAndModify(live, trash, FileMetadata.class);
+        if (trashed != null) {
+            tagService.releaseTags(trashed);
+            folderRollupService.fileRemoved(userId, trashed.getFolderId(), trashed.getSize());
+        }
+        nameSearchIndex.removeFile(userId, fileId);
+        contentIndexService.remove(fileId);
         
         activityService.logActivity(userId, "DELETE", fileId, "FILE", file.getName());
     }
     
+    /**
+     * Deletes a file for good. The file is claimed by removing its metadata on the state it
+     * was read in, and only the caller whose remove matched releases the blob and gives back
+     * the usage, so racing the trash purger or a second request never releases it twice.
+     */
     @Transactional
     public void permanentlyDeleteFile(String fileId, String userId) {
-        FileMetadata file = fileMetadataRepository.findById(fileId)
+        FileMetadata read = fileMetadataRepository.findById(fileId)
             .orElseThrow(() -> new RuntimeException("File not found"));
         
-        if (!file.getOwnerId().equals(userId)) {
+        if (!read.getOwnerId().equals(userId)) {
             throw new RuntimeException("Access denied");
         }
         
-        gridFSService.deleteFile(file.getGridFsId());
-        fileMetadataRepository.delete(file);
+        // The removed document, not the one read above: tiering may have moved the blob since
+        Query claim = new Query(Criteria.where("_id").is(fileId).and("trashed").is(read.isTrashed()));
+        FileMetadata file = mongoTemplate.findAndRemove(claim, FileMetadata.class);
+        if (file == null) {
+            throw new RuntimeException(fileMetadataRepository.existsById(fileId)
+                ? "File was modified, try again" : "File not found");
+        }
+        
+        if (!file.isTrashed()) {
+            tagService.releaseTags(file);
+            folderRollupService.fileRemoved(userId, file.getFolderId(), file.getSize());
+        }
+        
+        blobStorageService.getStore(file.getStorageBackend()).release(file.getGridFsId());
+        storageBreakdownService.fileDeleted(file);
+        nameSearchIndex.removeFile(userId, fileId);
+        contentIndexService.remove(fileId);
         
-        User user = userRepository.findById(userId).orElseThrow();
-        user.setStorageUsed(user.getStorageUsed() - file.getSize());
-        userRepository.save(user);
+        quotaService.addUsage(userId, -file.getSize());
     }
     
     public FileMetadata toggleStar(String fileId, String userId) {
@@ -137,8 +371,7 @@ public class FileService {
             throw new RuntimeException("Access denied");
         }
         
-        file.setStarred(!file.isStarred());
-        return fileMetadataRepository.save(file);
+        return updateFields(fileId, new Update().set("starred", !file.isStarred()));
     }
     
     public FileMetadata renameFile(String fileId, String newName, String userId) {
@@ -149,8 +382,42 @@ public class FileService {
             throw new RuntimeException("Access denied");
         }
         
-        file.setName(newName);
-        return fileMetadataRepository.save(file);
+        file = updateFields(fileId, new Update().set("name", newName).set("path", buildPath(file.getFolderId(), newName, false)));
+        nameSearchIndex.putFile(userId, fileId, newName);
+        
+        return file;
+    }
+    
+    /**
+     * Sets only the given fields, so tags, access statistics and other fields updated
+     * atomically elsewhere since the file was read are left as they are.
+     */
+    private FileMetadata updateFields(String fileId, Update update) {
+        FileMetadata updated = mongoTemplate.findAndModify(new Query(Criteria.where("_id").is(fileId)),
+            update.set("updatedAt", LocalDateTime.now()), FindAndModifyOptions.options().returnNew(true),
+            FileMetadata.class);
+        if (updated == null) {
+            throw new RuntimeException("File not found");
+        }
+        return updated;
+    }
+    
+    /**
+     * The path of a file named {@code name} in the folder. New files may not go into a
+     * trashed folder, which would otherwise miss the trash its siblings went to.
+     */
+    private String buildPath(String folderId, String name, boolean newFile) {
+        if (folderId == null) {
+            return "/" + name;
+        }
+        
+        Folder folder = folderRepository.findById(folderId)
+            .orElseThrow(() -> new RuntimeException("Folder not found"));
+        if (newFile && folder.isTrashed()) {
+            throw new RuntimeException("Target folder is in trash");
+        }
+        
+        return folder.getPath() + "/" + name;
     }
     
     private String getFileExtension(String filename) {
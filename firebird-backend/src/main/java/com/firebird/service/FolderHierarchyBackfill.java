@@ -0,0 +1,221 @@
+package com.firebird.service;
+
+import com.firebird.model.FileMetadata;
+import com.firebird.model.Folder;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Fills in {@code ancestorIds} for folders created before the field existed, on a
+ * background thread after startup. Each pass resolves every folder whose parent is
+ * already resolved, so the tree fills in from the roots down. A non-root folder with an
+ * empty list was saved before its parent was resolved and is redone the same way.
+ * Files stored before they carried a {@code path} get it from their folder afterwards.
+ * <p>
+ * Each finished step leaves a marker in {@code migrations}, so later startups check one
+ * document by id instead of scanning for a field that no index covers. Until the ancestor
+ * step is done, {@link #ancestorsResolved} tells subtree operations to also match
+ * descendants by path.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class FolderHierarchyBackfill {
+    
+    private static final int BATCH_SIZE = 1000;
+    private static final String MIGRATIONS = "migrations";
+    private static final String ANCESTORS_MARKER = "folder-ancestor-ids";
+    private static final String FILE_PATHS_MARKER = "file-paths";
+    
+    private final MongoTemplate mongoTemplate;
+    private final FolderTreeCache folderTreeCache;
+    
+    private volatile boolean ancestorsResolved;
+    
+    /**
+     * Whether every reachable folder has its {@code ancestorIds}. Checked against the
+     * marker until it is found, since another instance may be the one running the backfill.
+     */
+    public boolean ancestorsResolved() {
+        if (!ancestorsResolved && isDone(ANCESTORS_MARKER)) {
+            ancestorsResolved = true;
+        }
+        return ancestorsResolved;
+    }
+    
+    @EventListener(ApplicationReadyEvent.class)
+    public void backfill() {
+        boolean ancestorsDone = isDone(ANCESTORS_MARKER);
+        boolean filePathsDone = isDone(FILE_PATHS_MARKER);
+        if (ancestorsDone && filePathsDone) {
+            return;
+        }
+        Thread backfill = new Thread(() -> {
+            if (!ancestorsDone) {
+                backfillAncestors();
+            }
+            if (!filePathsDone) {
+                backfillFilePaths();
+            }
+        }, "folder-hierarchy-backfill");
+        backfill.setDaemon(true);
+        backfill.start();
+    }
+    
+    private void backfillAncestors() {
+        long total = 0;
+        long resolved;
+        do {
+            resolved = runPass();
+            total += resolved;
+        } while (resolved > 0);
+        
+        // Trees loaded meanwhile saw these folders without their ancestors
+        folderTreeCache.invalidateAll();
+        
+        long orphans = mongoTemplate.count(new Query(missingAncestors()), Folder.class);
+        if (total > 0 || orphans > 0) {
+            log.info("Backfilled ancestors of {} folders{}", total,
+                orphans > 0 ? ", " + orphans + " left without a reachable parent" : "");
+        }
+        // Orphans cannot be resolved by another run; new folders always get the field on creation
+        markDone(ANCESTORS_MARKER);
+        ancestorsResolved = true;
+    }
+    
+    /**
+     * Sets {@code path} on files that have none, from their folder's path. Only files
+     * still without one are written, so a concurrent rename or move is not overwritten.
+     */
+    private void backfillFilePaths() {
+        long total = 0;
+        ObjectId after = null;
+        List<FileMetadata> batch;
+        do {
+            Criteria criteria = Criteria.where("path").is(null);
+            if (after != null) {
+                criteria.and("_id").gt(after);
+            }
+            Query query = new Query(criteria).with(Sort.by("id")).limit(BATCH_SIZE);
+            query.fields().include("_id", "folderId", "name");
+            batch = mongoTemplate.find(query, FileMetadata.class);
+            if (batch.isEmpty()) {
+                break;
+            }
+            
+            List<String> folderIds = batch.stream().map(FileMetadata::getFolderId).filter(Objects::nonNull).distinct().toList();
+            Query foldersQuery = new Query(Criteria.where("_id").in(folderIds));
+            foldersQuery.fields().include("_id", "path");
+            Map<String, String> folderPaths = new HashMap<>();
+            mongoTemplate.find(foldersQuery, Folder.class).forEach(f -> folderPaths.put(f.getId(), f.getPath()));
+            
+            BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, FileMetadata.class);
+            int count = 0;
+            for (FileMetadata file : batch) {
+                String parentPath = file.getFolderId() == null ? "" : folderPaths.get(file.getFolderId());
+                if (parentPath == null) {
+                    continue;
+                }
+                bulk.updateOne(new Query(Criteria.where("_id").is(file.getId()).and("path").is(null)),
+                    new Update().set("path", parentPath + "/" + file.getName()));
+                count++;
+            }
+            if (count > 0) {
+                total += bulk.execute().getModifiedCount();
+            }
+            after = new ObjectId(batch.get(batch.size() - 1).getId());
+        } while (batch.size() == BATCH_SIZE);
+        
+        if (total > 0) {
+            log.info("Backfilled paths of {} files", total);
+        }
+        markDone(FILE_PATHS_MARKER);
+    }
+    
+    private boolean isDone(String marker) {
+        return mongoTemplate.exists(new Query(Criteria.where("_id").is(marker)), MIGRATIONS);
+    }
+    
+    private void markDone(String marker) {
+        mongoTemplate.save(new Document("_id", marker).append("completedAt", Instant.now()), MIGRATIONS);
+    }
+    
+    private long runPass() {
+        long resolved = 0;
+        ObjectId after = null;
+        List<Folder> batch;
+        do {
+            Criteria criteria = missingAncestors();
+            if (after != null) {
+                criteria.and("_id").gt(after);
+            }
+            Query query = new Query(criteria).with(Sort.by("id")).limit(BATCH_SIZE);
+            query.fields().include("_id", "parentId");
+            
+            batch = mongoTemplate.find(query, Folder.class);
+            resolved += resolve(batch);
+            if (!batch.isEmpty()) {
+                after = new ObjectId(batch.get(batch.size() - 1).getId());
+            }
+        } while (batch.size() == BATCH_SIZE);
+        return resolved;
+    }
+    
+    private long resolve(List<Folder> batch) {
+        List<String> parentIds = batch.stream().map(Folder::getParentId).filter(Objects::nonNull).distinct().toList();
+        
+        // Only parents that are resolved themselves; the rest wait for a later pass
+        Query parentsQuery = new Query(new Criteria().andOperator(
+            Criteria.where("_id").in(parentIds), new Criteria().norOperator(missingAncestors())));
+        parentsQuery.fields().include("_id", "ancestorIds");
+        Map<String, Folder> parents = new HashMap<>();
+        mongoTemplate.find(parentsQuery, Folder.class).forEach(p -> parents.put(p.getId(), p));
+        
+        BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Folder.class);
+        long count = 0;
+        for (Folder folder : batch) {
+            List<String> ancestors = new ArrayList<>();
+            if (folder.getParentId() != null) {
+                Folder parent = parents.get(folder.getParentId());
+                if (parent == null) {
+                    continue;
+                }
+                ancestors.addAll(parent.getAncestorIds());
+                ancestors.add(parent.getId());
+            }
+            bulk.updateOne(new Query(Criteria.where("_id").is(folder.getId())),
+                new Update().set("ancestorIds", ancestors));
+            count++;
+        }
+        
+        if (count > 0) {
+            bulk.execute();
+        }
+        return count;
+    }
+    
+    /** No list at all, or an empty one on a folder that has a parent. */
+    static Criteria missingAncestors() {
+        return new Criteria().orOperator(
+            Criteria.where("ancestorIds").exists(false),
+            Criteria.where("parentId").ne(null).and("ancestorIds").size(0));
+    }
+}
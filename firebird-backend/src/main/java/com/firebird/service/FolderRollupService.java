@@ -0,0 +1,356 @@
+package com.firebird.service;
+
+import com.firebird.model.FileMetadata;
+import com.firebird.model.Folder;
+import com.firebird.model.User;
+import com.mongodb.client.MongoCursor;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.BasicQuery;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+/**
+ * Recursive size and item counts on every folder: {@code totalSize} and {@code fileCount}
+ * over the non-trashed files beneath it, {@code folderCount} over its non-trashed
+ * subfolders. Uploads, trash, restore and moves apply their delta to the affected
+ * ancestor chain with a single {@code $inc}, so showing a folder's size is a field read.
+ * <p>
+ * {@link #reconcileAll} recomputes every owner's totals with one aggregation pipeline and
+ * repairs whatever drifted, e.g. after a lost update or a crash between two writes. The
+ * repairs go through {@link CounterSettler}, like those of the other counters.
+ */
+@Slf4j
+@Service
+public class FolderRollupService {
+    
+    static final Set<String> FIELDS = Set.of("totalSize", "fileCount", "folderCount");
+    
+    private static final int BULK_SIZE = 1000;
+    
+    private final MongoTemplate mongoTemplate;
+    private final FolderTreeCache folderTreeCache;
+    private final CounterSettler settler;
+    private final Counter correctedCounter;
+    private final boolean reconcileEnabled;
+    
+    public FolderRollupService(MongoTemplate mongoTemplate,
+                               FolderTreeCache folderTreeCache,
+                               CounterSettler settler,
+                               MeterRegistry meterRegistry,
+                               @Value("${folders.rollup.reconcile-enabled:true}") boolean reconcileEnabled) {
+        this.mongoTemplate = mongoTemplate;
+        this.folderTreeCache = folderTreeCache;
+        this.settler = settler;
+        this.reconcileEnabled = reconcileEnabled;
+        this.correctedCounter = Counter.builder("firebird.folders.rollup.corrected")
+            .description("Folders whose size or item counts were repaired by reconciliation")
+            .register(meterRegistry);
+    }
+    
+    public void fileAdded(String ownerId, String folderId, long size) {
+        applyToFolderAndAncestors(ownerId, folderId, new Totals(size, 1, 0));
+    }
+    
+    public void fileRemoved(String ownerId, String folderId, long size) {
+        applyToFolderAndAncestors(ownerId, folderId, new Totals(-size, -1, 0));
+    }
+    
+    /** A new, empty folder below {@code ancestorIds}. */
+    public void folderAdded(String ownerId, List<String> ancestorIds) {
+        apply(ownerId, ancestorIds, new Totals(0, 0, 1));
+    }
+    
+    /** {@code folder} and everything beneath it went to the trash. */
+    public void subtreeRemoved(Folder folder) {
+        apply(folder.getOwnerId(), folder.getAncestorIds(), Totals.ofSubtree(folder).negate());
+    }
+    
+    /**
+     * {@code folder} came back from the trash. Its own totals are recomputed first: files
+     * inside may have been purged while it was trashed, which no delta accounted for. That
+     * runs in the background, so the restore request does not wait for it.
+     */
+    public void subtreeRestored(String ownerId, String folderId) {
+        settler.submit(() -> reconcile(ownerId, folderId)
+            .thenRun(() -> addToAncestors(ownerId, folderId))
+            .exceptionally(e -> {
+                log.warn("Restoring the totals of folder {} failed: {}", folderId, e.getMessage());
+                return null;
+            }));
+    }
+    
+    private void addToAncestors(String ownerId, String folderId) {
+        Query query = new Query(Criteria.where("_id").is(folderId).and("ownerId").is(ownerId));
+        query.fields().include("ownerId", "ancestorIds", "totalSize", "fileCount", "folderCount");
+        Folder folder = mongoTemplate.findOne(query, Folder.class);
+        if (folder != null) {
+            apply(ownerId, folder.getAncestorIds(), Totals.ofSubtree(folder));
+        }
+    }
+    
+    /**
+     * {@code folder}, already saved under its new parent, moved away from {@code oldAncestorIds}.
+     * Ancestors the two chains share see no change and are not written.
+     */
+    public void subtreeMoved(Folder folder, List<String> oldAncestorIds) {
+        Totals moved = Totals.ofSubtree(folder);
+        List<String> left = new ArrayList<>(oldAncestorIds);
+        left.removeAll(folder.getAncestorIds());
+        List<String> joined = new ArrayList<>(folder.getAncestorIds());
+        joined.removeAll(oldAncestorIds);
+        
+        apply(folder.getOwnerId(), left, moved.negate());
+        apply(folder.getOwnerId(), joined, moved);
+    }
+    
+    private void applyToFolderAndAncestors(String ownerId, String folderId, Totals delta) {
+        if (folderId == null) {
+            return;
+        }
+        Query query = new Query(Criteria.where("_id").is(folderId).and("ownerId").is(ownerId));
+        query.fields().include("ancestorIds", "trashed");
+        Folder folder = mongoTemplate.findOne(query, Folder.class);
+        // A trashed subtree is already out of its ancestors' totals; restoring it recomputes its own
+        if (folder == null || folder.isTrashed()) {
+            return;
+        }
+        
+        List<String> chain = new ArrayList<>(folder.getAncestorIds());
+        chain.add(folderId);
+        apply(ownerId, chain, delta);
+    }
+    
+    private void apply(String ownerId, Collection<String> folderIds, Totals delta) {
+        if (folderIds.isEmpty() || delta.isZero()) {
+            return;
+        }
+        Query chain = new Query(Criteria.where("_id").in(folderIds).and("ownerId").is(ownerId));
+        mongoTemplate.updateMulti(chain, new Update()
+            .inc("totalSize", delta.size())
+            .inc("fileCount", delta.files())
+            .inc("folderCount", delta.folders())
+            .inc(CounterSettler.REVISION, 1), Folder.class);
+        
+        // Read back absolute values rather than adding the delta, so concurrent updates cannot skew the cache
+        if (folderTreeCache.getIfPresent(ownerId) != null) {
+            chain.fields().include("totalSize", "fileCount", "folderCount");
+            folderTreeCache.updateTotals(ownerId, mongoTemplate.find(chain, Folder.class));
+        }
+    }
+    
+    /**
+     * Folders stored before the totals existed start at zero and are filled in by a full
+     * reconciliation in the background.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void backfill() {
+        Query missing = new Query(Criteria.where("totalSize").exists(false));
+        if (!reconcileEnabled || !mongoTemplate.exists(missing, Folder.class)) {
+            return;
+        }
+        mongoTemplate.updateMulti(missing, new Update().set("totalSize", 0L).set("fileCount", 0L).set("folderCount", 0L),
+            Folder.class);
+        
+        Thread backfill = new Thread(this::reconcileAll, "folder-rollup-backfill");
+        backfill.setDaemon(true);
+        backfill.start();
+    }
+    
+    @Scheduled(cron = "${folders.rollup.reconcile-cron:0 30 3 * * *}")
+    public void reconcileAll() {
+        if (!reconcileEnabled) {
+            return;
+        }
+        
+        long start = System.nanoTime();
+        int owners = 0;
+        List<CompletableFuture<Long>> corrected = new ArrayList<>();
+        Query users = new Query();
+        users.fields().include("_id");
+        try (Stream<User> stream = mongoTemplate.stream(users, User.class)) {
+            for (User user : (Iterable<User>) stream::iterator) {
+                try {
+                    String ownerId = user.getId();
+                    corrected.add(reconcile(ownerId, null).exceptionally(e -> {
+                        log.warn("Folder rollup reconciliation failed for owner {}: {}", ownerId, e.getMessage());
+                        return 0L;
+                    }));
+                    owners++;
+                } catch (RuntimeException e) {
+                    log.warn("Folder rollup reconciliation failed for owner {}: {}", user.getId(), e.getMessage());
+                }
+            }
+        }
+        int reconciled = owners;
+        CompletableFuture.allOf(corrected.toArray(CompletableFuture[]::new)).thenRun(() ->
+            log.info("Reconciled folder totals of {} owners in {} ms, {} folders corrected", reconciled,
+                (System.nanoTime() - start) / 1_000_000, corrected.stream().mapToLong(CompletableFuture::join).sum()));
+    }
+    
+    /**
+     * Recomputes the totals of the owner's folders, or of one subtree when {@code rootId} is
+     * set, and rewrites those that differ once {@link CounterSettler} lets them. A folder
+     * that took a delta since it was read is left for the next run.
+     *
+     * @return the number of folders corrected, known once the rewrites ran
+     */
+    public CompletableFuture<Long> reconcile(String ownerId, String rootId) {
+        Document scope = new Document("ownerId", ownerId).append("trashed", false);
+        if (rootId != null) {
+            Object rootKey = mongoTemplate.getConverter().convertId(rootId, ObjectId.class);
+            scope.append("$or", List.of(new Document("_id", rootKey), new Document("ancestorIds", rootId)));
+        }
+        
+        Map<String, Folder> stored = new HashMap<>();
+        Document fields = new Document("totalSize", 1).append("fileCount", 1).append("folderCount", 1)
+            .append(CounterSettler.REVISION, 1);
+        try (Stream<Folder> folders = mongoTemplate.stream(new BasicQuery(scope, fields), Folder.class)) {
+            folders.forEach(f -> stored.put(f.getId(), f));
+        }
+        if (stored.isEmpty()) {
+            return CompletableFuture.completedFuture(0L);
+        }
+        
+        List<Correction> corrections = new ArrayList<>();
+        List<Document> pipeline = rollupPipeline(ownerId, scope, rootId != null ? stored.keySet() : null);
+        try (MongoCursor<Document> computed = mongoTemplate.getCollection(mongoTemplate.getCollectionName(FileMetadata.class))
+                .aggregate(pipeline).allowDiskUse(true).iterator()) {
+            while (computed.hasNext()) {
+                Document row = computed.next();
+                // Ancestors above a reconciled subtree show up too; only the subtree is rewritten
+                Folder before = stored.remove(row.getString("_id"));
+                Totals after = new Totals(number(row, "size"), number(row, "files"), number(row, "folders"));
+                if (before != null && !Totals.of(before).equals(after)) {
+                    corrections.add(new Correction(before.getId(), before.getRevision(), after));
+                }
+            }
+        }
+        
+        // Whatever the aggregation did not return holds nothing at all
+        Totals empty = new Totals(0, 0, 0);
+        for (Folder left : stored.values()) {
+            if (!Totals.of(left).isZero()) {
+                corrections.add(new Correction(left.getId(), left.getRevision(), empty));
+            }
+        }
+        if (corrections.isEmpty()) {
+            return CompletableFuture.completedFuture(0L);
+        }
+        return settler.afterSettle(() -> rewrite(corrections));
+    }
+    
+    private long rewrite(List<Correction> corrections) {
+        long corrected = 0;
+        for (int from = 0; from < corrections.size(); from += BULK_SIZE) {
+            BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Folder.class);
+            for (Correction correction : corrections.subList(from, Math.min(from + BULK_SIZE, corrections.size()))) {
+                bulk.updateOne(new Query(Criteria.where("_id").is(correction.folderId())
+                        .andOperator(CounterSettler.unchangedSince(correction.revision()))),
+                    correction.after().asUpdate().inc(CounterSettler.REVISION, 1));
+            }
+            corrected += bulk.execute().getModifiedCount();
+        }
+        
+        correctedCounter.increment(corrected);
+        return corrected;
+    }
+    
+    /**
+     * One row per folder with anything beneath it: files are grouped by folder and credited
+     * to that folder and each of its ancestors; every folder in scope adds one to each of
+     * its ancestors' subfolder count.
+     */
+    private List<Document> rollupPipeline(String ownerId, Document folderScope, Collection<String> folderIds) {
+        Document fileScope = new Document("ownerId", ownerId).append("trashed", false)
+            .append("folderId", folderIds != null ? new Document("$in", folderIds) : new Document("$ne", null));
+        
+        Document lookupFolder = new Document("from", mongoTemplate.getCollectionName(Folder.class))
+            .append("let", new Document("folderId", new Document("$convert",
+                new Document("input", "$_id").append("to", "objectId").append("onError", null))))
+            .append("pipeline", List.of(
+                new Document("$match", new Document("$expr", new Document("$eq", List.of("$_id", "$$folderId")))),
+                new Document("$project", new Document("ancestorIds", 1).append("trashed", 1))))
+            .append("as", "folder");
+        
+        List<Document> subfolders = List.of(
+            new Document("$match", folderScope),
+            new Document("$unwind", "$ancestorIds"),
+            new Document("$project", new Document("_id", 0)
+                .append("target", "$ancestorIds")
+                .append("size", new Document("$literal", 0L))
+                .append("files", new Document("$literal", 0L))
+                .append("folders", new Document("$literal", 1L))));
+        
+        return List.of(
+            new Document("$match", fileScope),
+            new Document("$group", new Document("_id", "$folderId")
+                .append("size", new Document("$sum", "$size"))
+                .append("files", new Document("$sum", 1L))),
+            new Document("$lookup", lookupFolder),
+            new Document("$unwind", "$folder"),
+            new Document("$match", new Document("folder.trashed", false)),
+            new Document("$project", new Document("size", 1).append("files", 1)
+                .append("folders", new Document("$literal", 0L))
+                .append("target", new Document("$concatArrays", List.of(
+                    new Document("$ifNull", List.of("$folder.ancestorIds", List.of())), List.of("$_id"))))),
+            new Document("$unwind", "$target"),
+            new Document("$unionWith", new Document("coll", mongoTemplate.getCollectionName(Folder.class))
+                .append("pipeline", subfolders)),
+            new Document("$group", new Document("_id", "$target")
+                .append("size", new Document("$sum", "$size"))
+                .append("files", new Document("$sum", "$files"))
+                .append("folders", new Document("$sum", "$folders"))));
+    }
+    
+    /** {@code $sum} yields int or long depending on the stored values. */
+    private static long number(Document row, String key) {
+        return ((Number) row.get(key)).longValue();
+    }
+    
+    private record Correction(String folderId, long revision, Totals after) {
+    }
+    
+    private record Totals(long size, long files, long folders) {
+        
+        static Totals of(Folder folder) {
+            return new Totals(folder.getTotalSize(), folder.getFileCount(), folder.getFolderCount());
+        }
+        
+        static Totals ofSubtree(Folder folder) {
+            return new Totals(folder.getTotalSize(), folder.getFileCount(), folder.getFolderCount() + 1);
+        }
+        
+        Totals negate() {
+            return new Totals(-size, -files, -folders);
+        }
+        
+        boolean isZero() {
+            return size == 0 && files == 0 && folders == 0;
+        }
+        
+        Update asUpdate() {
+            return new Update().set("totalSize", size).set("fileCount", files).set("folderCount", folders);
+        }
+    }
+}
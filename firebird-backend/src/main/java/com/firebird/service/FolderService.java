@@ -1,13 +1,34 @@
 package com.firebird.service;
 
+import com.firebird.dto.CursorPage;
+import com.firebird.dto.FolderListItem;
+import com.firebird.model.FileMetadata;
 import com.firebird.model.Folder;
 import com.firebird.repository.FolderRepository;
 import lombok.RequiredArgsConstructor;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.AggregationExpression;
+import org.springframework.data.mongodb.core.aggregation.AggregationUpdate;
+import org.springframework.data.mongodb.core.aggregation.ArrayOperators;
+import org.springframework.data.mongodb.core.aggregation.StringOperators;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 
 @Service
 @RequiredArgsConstructor
@@ -15,26 +36,97 @@ public class FolderService {
     
     private final FolderRepository folderRepository;
     private final ActivityService activityService;
+    private final NameSearchIndex nameSearchIndex;
+    private final ContentIndexService contentIndexService;
+    private final TagService tagService;
+    private final FolderTreeCache folderTreeCache;
+    private final FolderRollupService folderRollupService;
+    private final FolderHierarchyBackfill hierarchyBackfill;
+    private final MongoTemplate mongoTemplate;
     
     public Folder createFolder(String name, String parentId, String userId) {
-        if (folderRepository.findByOwnerIdAndNameAndParentId(userId, name, parentId).isPresent()) {
-            throw new RuntimeException("Folder with this name already exists");
+        checkNameFree(userId, parentId, name, null);
+        
+        Folder parent = getParent(parentId, userId);
+        if (parent != null && parent.isTrashed()) {
+            throw new RuntimeException("Target folder is in trash");
         }
         
         Folder folder = new Folder();
         folder.setName(name);
         folder.setParentId(parentId);
         folder.setOwnerId(userId);
-        folder.setPath(buildPath(parentId, name, userId));
+        folder.setPath(childPath(parent, name));
+        folder.setAncestorIds(childAncestors(parent));
         
         folder = folderRepository.save(folder);
+        folderRollupService.folderAdded(userId, folder.getAncestorIds());
+        folderTreeCache.folderChanged(folder);
+        nameSearchIndex.putFolder(userId, folder.getId(), name);
         activityService.logActivity(userId, "CREATE_FOLDER", folder.getId(), "FOLDER", name);
         
         return folder;
     }
     
-    public List<Folder> listFolders(String userId, String parentId) {
-        return folderRepository.findByOwnerIdAndParentIdAndTrashedFalse(userId, parentId);
+    public List<FolderListItem> listFolders(String userId, String parentId) {
+        FolderTree tree = folderTreeCache.get(userId);
+        if (tree != null) {
+            return tree.children(parentId);
+        }
+        return folderRepository.findItemsByOwnerIdAndParentIdAndTrashedFalse(userId, parentId);
+    }
+    
+    public CursorPage<FolderListItem> listFoldersPage(String userId, String parentId, String cursor, int limit) {
+        List<FolderListItem> fetched;
+        if (cursor == null) {
+            fetched = folderRepository.findItemsByOwnerIdAndParentIdAndTrashedFalse(
+                userId, parentId, PageCursor.SORT, PageCursor.fetchLimit(limit));
+        } else {
+            PageCursor after = PageCursor.decode(cursor);
+            fetched = folderRepository.findChildPageAfter(
+                userId, parentId, after.name(), after.id(), PageCursor.SORT, PageCursor.fetchLimit(limit));
+        }
+        return PageCursor.page(fetched, limit, FolderListItem::getName, FolderListItem::getId);
+    }
+    
+    public List<FolderListItem> searchFolders(String userId, String query, int limit) {
+        int capped = Math.min(Math.max(limit, 1), NameSearchIndex.MAX_RESULTS);
+        if (!nameSearchIndex.isReady()) {
+            return folderRepository.findItemsByOwnerIdAndNameContainingIgnoreCaseAndTrashedFalse(
+                userId, query, Limit.of(capped));
+        }
+        
+        List<String> ranked = nameSearchIndex.searchFolders(userId, query, capped);
+        Map<String, FolderListItem> byId = new HashMap<>();
+        folderRepository.findItemsByIdInAndOwnerIdAndTrashedFalse(ranked, userId)
+            .forEach(f -> byId.put(f.getId(), f));
+        
+        String needle = query.toLowerCase(Locale.ROOT);
+        return ranked.stream()
+            .map(byId::get)
+            .filter(f -> f != null && f.getName().toLowerCase(Locale.ROOT).contains(needle))
+            .toList();
+    }
+    
+    /**
+     * The folder's ancestors from the root down, followed by the folder itself.
+     */
+    public List<FolderListItem> getBreadcrumbs(String folderId, String userId) {
+        FolderTree tree = folderTreeCache.get(userId);
+        List<FolderListItem> cached = tree != null ? tree.breadcrumbs(folderId) : null;
+        if (cached != null) {
+            return cached;
+        }
+        
+        // Trashed folders and owners too large to cache
+        Folder folder = getFolder(folderId, userId);
+        
+        List<String> ids = new ArrayList<>(folder.getAncestorIds());
+        ids.add(folderId);
+        
+        Map<String, FolderListItem> byId = new HashMap<>();
+        folderRepository.findItemsByIdInAndOwnerId(ids, userId).forEach(f -> byId.put(f.getId(), f));
+        return ids.stream().map(byId::get).filter(Objects::nonNull).toList();
     }
     
     public Folder getFolder(String folderId, String userId) {
@@ -48,64 +140,315 @@ public class FolderService {
         return folder;
     }
     
+    /**
+     * Trashes the folder together with every folder and file beneath it. Each collection
+     * takes a single multi-document update matching the subtree rather than ids read
+     * beforehand, so nothing created meanwhile is left behind; the items are tagged with
+     * this folder as their trash root so {@link #restoreFolder} brings back exactly this
+     * subtree.
+     */
     @Transactional
     public void deleteFolder(String folderId, String userId) {
         Folder folder = getFolder(folderId, userId);
+        if (folder.isTrashed()) {
+            throw new RuntimeException("Folder is already in trash");
+        }
+        
+        LocalDateTime now = LocalDateTime.now();
+        mongoTemplate.updateMulti(new Query(subtree(userId, folder).and("trashed").is(false)),
+            new Update().set("trashed", true).set("trashedAt", now).set("trashRootId", folderId),
+            Folder.class);
+        
+        // Trashed folders refuse new children from here on, so this id list is final
+        Query foldersQuery = new Query(Criteria.where("ownerId").is(userId).and("trashRootId").is(folderId));
+        foldersQuery.fields().include("_id");
+        List<String> folderIds = mongoTemplate.find(foldersQuery, Folder.class).stream().map(Folder::getId).toList();
         
-        folder.setTrashed(true);
-        folder.setTrashedAt(LocalDateTime.now());
-        folderRepository.save(folder);
+        mongoTemplate.updateMulti(new Query(Criteria.where("ownerId").is(userId).and("trashed").is(false)
+                .and("folderId").in(folderIds)),
+            new Update().set("trashed", true).set("trashedAt", now).set("trashRootId", folderId)
+                .unset("contentIndexedAt"),
+            FileMetadata.class);
         
-        // Soft delete all subfolders
-        List<Folder> subfolders = folderRepository.findByPathStartingWith(folder.getPath() + "/");
-        subfolders.forEach(sf -> {
-            sf.setTrashed(true);
-            sf.setTrashedAt(LocalDateTime.now());
-        });
-        folderRepository.saveAll(subfolders);
+        Query filesQuery = new Query(Criteria.where("ownerId").is(userId).and("trashRootId").is(folderId));
+        filesQuery.fields().include("_id", "ownerId", "tags");
+        List<FileMetadata> files = mongoTemplate.find(filesQuery, FileMetadata.class);
+        List<String> fileIds = files.stream().map(FileMetadata::getId).toList();
+        
+        folderTreeCache.invalidate(userId);
+        folderIds.forEach(id -> nameSearchIndex.removeFolder(userId, id));
+        fileIds.forEach(id -> nameSearchIndex.removeFile(userId, id));
+        contentIndexService.removeAll(fileIds);
+        tagService.releaseTags(userId, files);
+        folderRollupService.subtreeRemoved(folder);
         
         activityService.logActivity(userId, "DELETE_FOLDER", folderId, "FOLDER", folder.getName());
     }
     
+    /**
+     * Brings back a folder trashed with {@link #deleteFolder}, along with everything that
+     * went to the trash with it. Items trashed separately beforehand stay in the trash.
+     */
+    @Transactional
+    public Folder restoreFolder(String folderId, String userId) {
+        Folder folder = getFolder(folderId, userId);
+        if (!folder.isTrashed()) {
+            throw new RuntimeException("Folder is not in trash");
+        }
+        if (folder.getParentId() != null
+                && folderRepository.findById(folder.getParentId()).map(Folder::isTrashed).orElse(true)) {
+            throw new RuntimeException("Restore the parent folder first");
+        }
+        checkNameFree(userId, folder.getParentId(), folder.getName(), folderId);
+        
+        Query foldersQuery = new Query(Criteria.where("ownerId").is(userId)
+            .orOperator(Criteria.where("_id").is(folderId), Criteria.where("trashRootId").is(folderId)));
+        foldersQuery.fields().include("_id", "name");
+        List<Folder> folders = mongoTemplate.find(foldersQuery, Folder.class);
+        
+        Query filesQuery = new Query(Criteria.where("ownerId").is(userId).and("trashRootId").is(folderId));
+        filesQuery.fields().include("_id", "ownerId", "name", "tags");
+        List<FileMetadata> files = mongoTemplate.find(filesQuery, FileMetadata.class);
+        
+        Update restore = new Update()
+            .set("trashed", false)
+            .unset("trashedAt")
+            .unset("trashRootId");
+        mongoTemplate.updateMulti(new Query(Criteria.where("_id").in(folders.stream().map(Folder::getId).toList())),
+            restore, Folder.class);
+        mongoTemplate.updateMulti(new Query(Criteria.where("_id").in(files.stream().map(FileMetadata::getId).toList())),
+            restore, FileMetadata.class);
+        
+        folderTreeCache.invalidate(userId);
+        // Contents were dropped from the full-text index on trash; the indexer picks them up again
+        folders.forEach(f -> nameSearchIndex.putFolder(userId, f.getId(), f.getName()));
+        files.forEach(f -> nameSearchIndex.putFile(userId, f.getId(), f.getName()));
+        tagService.restoreTags(userId, files);
+        folderRollupService.subtreeRestored(userId, folderId);
+        
+        activityService.logActivity(userId, "RESTORE_FOLDER", folderId, "FOLDER", folder.getName());
+        
+        return getFolder(folderId, userId);
+    }
+    
     public Folder renameFolder(String folderId, String newName, String userId) {
         Folder folder = getFolder(folderId, userId);
+        checkNameFree(userId, folder.getParentId(), newName, folderId);
         
         String oldPath = folder.getPath();
-        folder.setName(newName);
-        folder.setPath(buildPath(folder.getParentId(), newName, userId));
+        folder = updateFields(folderId, new Update()
+            .set("name", newName)
+            .set("path", childPath(getParent(folder.getParentId(), userId), newName)));
+        nameSearchIndex.putFolder(userId, folderId, newName);
         
-        folder = folderRepository.save(folder);
+        // Ancestors are unchanged by a rename; only the path prefix moves
+        AggregationUpdate rebase = AggregationUpdate.update().set("path").toValue(rebasedPath(oldPath, folder.getPath()));
+        List<Criteria> descendants = new ArrayList<>(List.of(Criteria.where("ancestorIds").is(folderId)));
+        if (!hierarchyBackfill.ancestorsResolved()) {
+            descendants.add(unresolvedBelow(oldPath));
+        }
+        mongoTemplate.updateMulti(new Query(Criteria.where("ownerId").is(userId).orOperator(descendants)),
+            rebase, Folder.class);
+        rebaseFilePaths(userId, oldPath, folder.getPath());
+        folderTreeCache.folderChanged(folder);
         
-        // Update paths of all subfolders
-        updateSubfolderPaths(oldPath, folder.getPath());
+        return folder;
+    }
+    
+    /**
+     * Re-parents a folder. Descendants get their ancestor prefix and path prefix swapped
+     * in one pipeline update, so a move costs the same as a rename.
+     */
+    public Folder moveFolder(String folderId, String newParentId, String userId) {
+        Folder folder = getFolder(folderId, userId);
+        Folder parent = getParent(newParentId, userId);
+        
+        if (parent != null && (parent.getId().equals(folderId) || parent.getAncestorIds().contains(folderId))) {
+            throw new RuntimeException("Cannot move a folder into itself");
+        }
+        if (parent != null && parent.isTrashed()) {
+            throw new RuntimeException("Target folder is in trash");
+        }
+        checkNameFree(userId, newParentId, folder.getName(), folderId);
+        
+        String oldPath = folder.getPath();
+        List<String> oldAncestorIds = folder.getParentId() != null && folder.getAncestorIds().isEmpty()
+            ? walkAncestors(folder)
+            : folder.getAncestorIds();
+        int oldDepth = oldAncestorIds.size();
+        boolean unresolved = !hierarchyBackfill.ancestorsResolved();
+        
+        folder = updateFields(folderId, new Update()
+            .set("parentId", newParentId)
+            .set("ancestorIds", childAncestors(parent))
+            .set("path", childPath(parent, folder.getName())));
+        
+        List<String> prefix = new ArrayList<>(folder.getAncestorIds());
+        prefix.add(folderId);
+        AggregationUpdate rebase = AggregationUpdate.update()
+            .set("ancestorIds").toValue(ArrayOperators.arrayOf(prefix)
+                .concat(ArrayOperators.arrayOf("ancestorIds").slice().offset(oldDepth + 1).itemCount(Integer.MAX_VALUE)))
+            .set("path").toValue(rebasedPath(oldPath, folder.getPath()));
+        mongoTemplate.updateMulti(new Query(Criteria.where("ownerId").is(userId).and("ancestorIds").is(folderId)),
+            rebase, Folder.class);
+        if (unresolved) {
+            // Their ancestors are left to the backfill, which resolves them from the moved parents
+            mongoTemplate.updateMulti(new Query(Criteria.where("ownerId").is(userId).andOperator(unresolvedBelow(oldPath))),
+                AggregationUpdate.update().set("path").toValue(rebasedPath(oldPath, folder.getPath())), Folder.class);
+        }
+        rebaseFilePaths(userId, oldPath, folder.getPath());
+        folderRollupService.subtreeMoved(folder, oldAncestorIds);
+        folderTreeCache.invalidate(userId);
+        
+        activityService.logActivity(userId, "MOVE_FOLDER", folderId, "FOLDER", folder.getName());
         
         return folder;
     }
     
     public Folder toggleStar(String folderId, String userId) {
         Folder folder = getFolder(folderId, userId);
-        folder.setStarred(!folder.isStarred());
-        return folderRepository.save(folder);
+        folder = updateFields(folderId, new Update().set("starred", !folder.isStarred()));
+        folderTreeCache.folderChanged(folder);
+        return folder;
     }
     
-    private String buildPath(String parentId, String name, String userId) {
+    /**
+     * The parent's id, path and ancestors, from the owner's cached tree when it holds the
+     * parent; a parent missing from the tree is trashed or not the owner's, so the full
+     * document is loaded to tell which. Ancestors the hierarchy backfill has not filled in
+     * yet are looked up here, so a child is never created with a partial list.
+     */
+    private Folder getParent(String parentId, String userId) {
         if (parentId == null) {
-            return "/" + name;
+            return null;
         }
         
-        Folder parent = folderRepository.findById(parentId)
-            .orElseThrow(() -> new RuntimeException("Parent folder not found"));
+        FolderTree tree = folderTreeCache.get(userId);
+        FolderTree.Node node = tree != null ? tree.get(parentId) : null;
+        Folder parent;
+        if (node != null) {
+            parent = node.toFolder();
+            parent.setOwnerId(userId);
+        } else {
+            parent = folderRepository.findById(parentId)
+                .orElseThrow(() -> new RuntimeException("Parent folder not found"));
+            
+            if (!parent.getOwnerId().equals(userId)) {
+                throw new RuntimeException("Access denied");
+            }
+        }
         
-        return parent.getPath() + "/" + name;
+        if (parent.getParentId() != null && parent.getAncestorIds().isEmpty()) {
+            parent.setAncestorIds(walkAncestors(parent));
+        }
+        return parent;
+    }
+    
+    /**
+     * Ancestors of a folder created before {@code ancestorIds} existed and not yet reached
+     * by {@link FolderHierarchyBackfill}, from its parent links up to the first resolved one.
+     */
+    private List<String> walkAncestors(Folder folder) {
+        LinkedList<String> ancestors = new LinkedList<>();
+        Set<String> seen = new HashSet<>();
+        String parentId = folder.getParentId();
+        while (parentId != null && seen.add(parentId)) {
+            ancestors.addFirst(parentId);
+            Folder parent = folderRepository.findById(parentId).orElse(null);
+            if (parent == null) {
+                break;
+            }
+            if (parent.getParentId() == null || !parent.getAncestorIds().isEmpty()) {
+                ancestors.addAll(0, parent.getAncestorIds());
+                break;
+            }
+            parentId = parent.getParentId();
+        }
+        return ancestors;
+    }
+    
+    /**
+     * Rejects a name already taken by another live folder under the same parent. Trashed
+     * folders do not count; restoring one checks again against whatever took its name.
+     */
+    private void checkNameFree(String userId, String parentId, String name, String excludeId) {
+        Criteria sibling = Criteria.where("ownerId").is(userId).and("parentId").is(parentId)
+            .and("trashed").is(false).and("name").is(name);
+        if (excludeId != null) {
+            sibling.and("_id").ne(excludeId);
+        }
+        if (mongoTemplate.exists(new Query(sibling), Folder.class)) {
+            throw new RuntimeException("Folder with this name already exists");
+        }
+    }
+    
+    /**
+     * Sets only the given fields; a full save would write back rollup counters that
+     * {@link FolderRollupService} may have moved since the folder was read.
+     */
+    private Folder updateFields(String folderId, Update update) {
+        Folder updated = mongoTemplate.findAndModify(new Query(Criteria.where("_id").is(folderId)),
+            update.set("updatedAt", LocalDateTime.now()), FindAndModifyOptions.options().returnNew(true), Folder.class);
+        if (updated == null) {
+            throw new RuntimeException("Folder not found");
+        }
+        return updated;
+    }
+    
+    private static String childPath(Folder parent, String name) {
+        return (parent == null ? "" : parent.getPath()) + "/" + name;
+    }
+    
+    private static List<String> childAncestors(Folder parent) {
+        List<String> ancestors = new ArrayList<>();
+        if (parent != null) {
+            ancestors.addAll(parent.getAncestorIds());
+            ancestors.add(parent.getId());
+        }
+        return ancestors;
+    }
+    
+    /**
+     * The folder itself and everything beneath it, via the multikey {@code subtree} index.
+     * While the hierarchy backfill is running, descendants it has not reached are matched
+     * by path as well.
+     */
+    private Criteria subtree(String userId, Folder folder) {
+        List<Criteria> members = new ArrayList<>(List.of(
+            Criteria.where("_id").is(folder.getId()), Criteria.where("ancestorIds").is(folder.getId())));
+        if (!hierarchyBackfill.ancestorsResolved()) {
+            members.add(unresolvedBelow(folder.getPath()));
+        }
+        return Criteria.where("ownerId").is(userId).orOperator(members);
     }
     
-    private void updateSubfolderPaths(String oldPath, String newPath) {
-        List<Folder> subfolders = folderRepository.findByPathStartingWith(oldPath + "/");
-        subfolders.forEach(folder -> {
-            String relativePath = folder.getPath().substring(oldPath.length());
-            folder.setPath(newPath + relativePath);
-        });
-        folderRepository.saveAll(subfolders);
+    /** Folders under {@code path} still without {@code ancestorIds}; owner-scoped by the caller. */
+    private static Criteria unresolvedBelow(String path) {
+        return new Criteria().andOperator(
+            Criteria.where("path").regex("^" + escapeRegex(path + "/")),
+            FolderHierarchyBackfill.missingAncestors());
+    }
+    
+    /** {@code path} with its {@code oldPath} prefix swapped for {@code newPath}. */
+    private static AggregationExpression rebasedPath(String oldPath, String newPath) {
+        int prefixLength = oldPath.codePointCount(0, oldPath.length());
+        return StringOperators.Concat.stringValue(newPath)
+            .concatValueOf(StringOperators.valueOf("path").substringCP(prefixLength, Integer.MAX_VALUE));
+    }
+    
+    /**
+     * Files carry no ancestor list; an anchored prefix on the {@code owner_path} index
+     * finds those under the old path as a range scan.
+     */
+    private void rebaseFilePaths(String userId, String oldPath, String newPath) {
+        Query underOldPath = new Query(Criteria.where("ownerId").is(userId)
+            .and("path").regex("^" + escapeRegex(oldPath + "/")));
+        mongoTemplate.updateMulti(underOldPath,
+            AggregationUpdate.update().set("path").toValue(rebasedPath(oldPath, newPath)), FileMetadata.class);
+    }
+    
+    private static String escapeRegex(String literal) {
+        return literal.replaceAll("[\\\\^$.|?*+()\\[\\]{}]", "\\\\$0");
     }
     
     public Folder lockFolder(String folderId, String password, String userId) {
@@ -118,10 +461,8 @@ public class FolderService {
         // Hash the password using BCrypt
         String hashedPassword = org.springframework.security.crypto.bcrypt.BCrypt.hashpw(password, org.springframework.security.crypto.bcrypt.BCrypt.gensalt(12));
         
-        folder.setLocked(true);
-        folder.setPasswordHash(hashedPassword);
-        
-        folder = folderRepository.save(folder);
+        folder = updateFields(folderId, new Update().set("locked", true).set("passwordHash", hashedPassword));
+        folderTreeCache.folderChanged(folder);
         activityService.logActivity(userId, "LOCK_FOLDER", folderId, "FOLDER", folder.getName());
         
         return folder;
@@ -139,10 +480,8 @@ public class FolderService {
             throw new RuntimeException("Invalid password");
         }
         
-        folder.setLocked(false);
-        folder.setPasswordHash(null);
-        
-        folder = folderRepository.save(folder);
+        folder = updateFields(folderId, new Update().set("locked", false).unset("passwordHash"));
+        folderTreeCache.folderChanged(folder);
         activityService.logActivity(userId, "UNLOCK_FOLDER", folderId, "FOLDER", folder.getName());
         
         return folder;
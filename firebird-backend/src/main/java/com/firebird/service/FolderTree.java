@@ -0,0 +1,198 @@
+package com.firebird.service;
+
+import com.firebird.dto.FolderListItem;
+import com.firebird.model.Folder;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Snapshot of one owner's non-trashed folders, indexed by id and by parent. Built by
+ * {@link FolderTreeCache}, which also patches it for changes to a single folder; changes
+ * that reshape the tree (move, trash, restore) replace it wholesale.
+ * <p>
+ * Nodes are immutable and callers get fresh {@link FolderListItem} copies, so a listing
+ * handed out can never be changed by, or change, the snapshot. Writers are serialized per
+ * owner by the cache; readers may run alongside them and see each node either before or
+ * after a patch.
+ */
+final class FolderTree {
+    
+    private static final Comparator<Node> BY_NAME = Comparator.comparing(Node::name).thenComparing(Node::id);
+    
+    // Concurrent maps reject null keys, so the root folders are listed under this one
+    private static final String ROOT = "";
+    
+    private final long loadedAt = System.nanoTime();
+    private final Map<String, Node> byId;
+    private final Map<String, List<String>> byParent; // child ids sorted by name
+    
+    private FolderTree(Map<String, Node> byId, Map<String, List<String>> byParent) {
+        this.byId = byId;
+        this.byParent = byParent;
+    }
+    
+    static FolderTree of(List<Folder> folders) {
+        Map<String, Node> byId = new ConcurrentHashMap<>(folders.size() * 2);
+        Map<String, List<Node>> children = new HashMap<>();
+        
+        for (Folder folder : folders) {
+            Node node = Node.of(folder);
+            byId.put(node.id(), node);
+            children.computeIfAbsent(parentKey(node.parentId()), p -> new ArrayList<>()).add(node);
+        }
+        
+        Map<String, List<String>> byParent = new ConcurrentHashMap<>(children.size() * 2);
+        children.forEach((parentKey, nodes) -> {
+            nodes.sort(BY_NAME);
+            byParent.put(parentKey, nodes.stream().map(Node::id).toList());
+        });
+        
+        return new FolderTree(byId, byParent);
+    }
+    
+    /** {@link System#nanoTime} when the snapshot was read from the database. */
+    long loadedAt() {
+        return loadedAt;
+    }
+    
+    int size() {
+        return byId.size();
+    }
+    
+    Node get(String folderId) {
+        return byId.get(folderId);
+    }
+    
+    List<FolderListItem> children(String parentId) {
+        List<FolderListItem> items = new ArrayList<>();
+        for (String childId : byParent.getOrDefault(parentKey(parentId), List.of())) {
+            Node child = byId.get(childId);
+            if (child != null) {
+                items.add(child.item());
+            }
+        }
+        return items;
+    }
+    
+    /**
+     * The folder's ancestors from the root down followed by the folder itself, or
+     * {@code null} if the folder is not part of this tree.
+     */
+    List<FolderListItem> breadcrumbs(String folderId) {
+        Node node = byId.get(folderId);
+        if (node == null) {
+            return null;
+        }
+        
+        List<FolderListItem> crumbs = new ArrayList<>(node.ancestorIds().size() + 1);
+        for (String ancestorId : node.ancestorIds()) {
+            Node ancestor = byId.get(ancestorId);
+            if (ancestor != null) {
+                crumbs.add(ancestor.item());
+            }
+        }
+        crumbs.add(node.item());
+        return crumbs;
+    }
+    
+    /** Copies the rollup counters of the given folders onto their nodes. */
+    void updateTotals(Collection<Folder> folders) {
+        for (Folder folder : folders) {
+            byId.computeIfPresent(folder.getId(), (id, node) ->
+                node.withTotals(folder.getTotalSize(), folder.getFileCount(), folder.getFolderCount()));
+        }
+    }
+    
+    /**
+     * Adds a new folder or replaces the listing fields of an existing one. The folder must
+     * keep its parent; a rename rewrites the cached paths beneath it as well.
+     */
+    void put(Folder folder) {
+        Node node = Node.of(folder);
+        Node old = byId.put(node.id(), node);
+        
+        if (old == null || !old.name().equals(node.name())) {
+            String parentKey = parentKey(node.parentId());
+            List<Node> siblings = new ArrayList<>();
+            for (String siblingId : byParent.getOrDefault(parentKey, List.of())) {
+                Node sibling = byId.get(siblingId);
+                if (sibling != null && !siblingId.equals(node.id())) {
+                    siblings.add(sibling);
+                }
+            }
+            siblings.add(node);
+            siblings.sort(BY_NAME);
+            byParent.put(parentKey, siblings.stream().map(Node::id).toList());
+        }
+        
+        if (old != null && old.path() != null && node.path() != null && !old.path().equals(node.path())) {
+            String oldPrefix = old.path() + "/";
+            byId.replaceAll((id, descendant) -> descendant.ancestorIds().contains(node.id())
+                    && descendant.path() != null && descendant.path().startsWith(oldPrefix)
+                ? descendant.withPath(node.path() + descendant.path().substring(old.path().length()))
+                : descendant);
+        }
+    }
+    
+    private static String parentKey(String parentId) {
+        return parentId == null ? ROOT : parentId;
+    }
+    
+    /**
+     * One cached folder: its listing fields plus what folder operations need to know
+     * besides them.
+     */
+    record Node(String id, String name, String parentId, boolean starred, boolean locked,
+                long totalSize, long fileCount, long folderCount,
+                LocalDateTime createdAt, LocalDateTime updatedAt,
+                String path, List<String> ancestorIds) {
+        
+        static Node of(Folder folder) {
+            List<String> ancestorIds = folder.getAncestorIds() != null ? List.copyOf(folder.getAncestorIds()) : List.of();
+            return new Node(folder.getId(), folder.getName(), folder.getParentId(), folder.isStarred(),
+                folder.isLocked(), folder.getTotalSize(), folder.getFileCount(), folder.getFolderCount(),
+                folder.getCreatedAt(), folder.getUpdatedAt(), folder.getPath(), ancestorIds);
+        }
+        
+        /** A fresh listing item; callers are free to modify it. */
+        FolderListItem item() {
+            return new FolderListItem(id, name, parentId, starred, locked, totalSize, fileCount, folderCount,
+                createdAt, updatedAt);
+        }
+        
+        /** The cached fields as a folder, without owner or password hash. */
+        Folder toFolder() {
+            Folder folder = new Folder();
+            folder.setId(id);
+            folder.setName(name);
+            folder.setParentId(parentId);
+            folder.setStarred(starred);
+            folder.setLocked(locked);
+            folder.setTotalSize(totalSize);
+            folder.setFileCount(fileCount);
+            folder.setFolderCount(folderCount);
+            folder.setCreatedAt(createdAt);
+            folder.setUpdatedAt(updatedAt);
+            folder.setPath(path);
+            folder.setAncestorIds(new ArrayList<>(ancestorIds));
+            return folder;
+        }
+        
+        Node withTotals(long totalSize, long fileCount, long folderCount) {
+            return new Node(id, name, parentId, starred, locked, totalSize, fileCount, folderCount,
+                createdAt, updatedAt, path, ancestorIds);
+        }
+        
+        Node withPath(String path) {
+            return new Node(id, name, parentId, starred, locked, totalSize, fileCount, folderCount,
+                createdAt, updatedAt, path, ancestorIds);
+        }
+    }
+}
@@ -0,0 +1,356 @@
+package com.firebird.service;
+
+import com.firebird.model.Folder;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.mongodb.MongoException;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.OperationType;
+import com.mongodb.client.model.changestream.UpdateDescription;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Per-owner {@link FolderTree} snapshots for listings, path resolution and breadcrumbs.
+ * Bounded by the total number of cached folders; owners with more folders than
+ * {@code max-folders-per-user} are never cached and always go to the database.
+ * <p>
+ * Changes to a single folder (create, rename, star, lock) patch the owner's snapshot in
+ * place; moves, trash and restore drop it. On multi-instance deployments a change stream
+ * on {@code folders} does the same for mutations made elsewhere, working from the update
+ * description alone so no event costs a lookup. Rollup-only updates are skipped on the
+ * stream, so totals written by other instances show once the snapshot reaches
+ * {@code max-age-minutes} and is reloaded. Without a replica set the stream is unavailable
+ * and only local mutations apply.
+ */
+@Slf4j
+@Service
+public class FolderTreeCache {
+    
+    private static final long CHANGE_STREAM_RETRY_MS = 5000;
+    
+    // Placeholder for owners too large to cache, so they are not reloaded on every request
+    private static final FolderTree TOO_LARGE = FolderTree.of(List.of());
+    
+    // Updates touching nothing else can be applied to a cached folder from the event alone
+    private static final Set<String> LISTING_FIELDS = Set.of("name", "path", "starred", "locked", "passwordHash", "updatedAt");
+    
+    // A move or rename rewrites these on every descendant; the subtree root's own event covers them
+    private static final Set<String> SUBTREE_FIELDS = Set.of("path", "ancestorIds", "updatedAt");
+    
+    private final MongoTemplate mongoTemplate;
+    private final Cache<String, FolderTree> cache;
+    private final int maxFoldersPerUser;
+    private final boolean changeStreamsEnabled;
+    
+    private volatile boolean running = true;
+    private volatile MongoChangeStreamCursor<ChangeStreamDocument<Document>> changeCursor;
+    
+    public FolderTreeCache(MongoTemplate mongoTemplate,
+                           MeterRegistry meterRegistry,
+                           @Value("${folders.tree-cache.enabled:true}") boolean enabled,
+                           @Value("${folders.tree-cache.max-folders:2000000}") long maxFolders,
+                           @Value("${folders.tree-cache.max-folders-per-user:100000}") int maxFoldersPerUser,
+                           @Value("${folders.tree-cache.expire-after-access-minutes:30}") long expireMinutes,
+                           @Value("${folders.tree-cache.max-age-minutes:10}") long maxAgeMinutes,
+                           @Value("${folders.tree-cache.change-streams:true}") boolean changeStreamsEnabled) {
+        this.mongoTemplate = mongoTemplate;
+        this.maxFoldersPerUser = maxFoldersPerUser;
+        this.changeStreamsEnabled = enabled && changeStreamsEnabled;
+        this.cache = enabled
+            ? Caffeine.newBuilder()
+                .maximumWeight(maxFolders)
+                .weigher((String ownerId, FolderTree tree) -> Math.max(1, tree.size()))
+                .expireAfter(new TreeExpiry(TimeUnit.MINUTES.toNanos(expireMinutes), TimeUnit.MINUTES.toNanos(maxAgeMinutes)))
+                .recordStats()
+                .build()
+            : null;
+        
+        if (cache != null) {
+            CaffeineCacheMetrics.monitor(meterRegistry, cache, "folder-trees");
+        }
+    }
+    
+    /**
+     * The owner's folder tree, loading it on a miss, or {@code null} when the cache is
+     * disabled or the owner has too many folders to hold in memory.
+     */
+    FolderTree get(String ownerId) {
+        if (cache == null) {
+            return null;
+        }
+        FolderTree tree = cache.get(ownerId, this::load);
+        return tree == TOO_LARGE ? null : tree;
+    }
+    
+    /** The owner's folder tree if it is currently cached; never loads. */
+    FolderTree getIfPresent(String ownerId) {
+        if (cache == null) {
+            return null;
+        }
+        FolderTree tree = cache.getIfPresent(ownerId);
+        return tree == TOO_LARGE ? null : tree;
+    }
+    
+    /**
+     * Applies a change to a single folder that kept its parent, such as a create, rename,
+     * star or lock, to the owner's snapshot if one is cached. A trashed folder drops it.
+     */
+    public void folderChanged(Folder folder) {
+        if (cache == null) {
+            return;
+        }
+        if (folder.isTrashed()) {
+            invalidate(folder.getOwnerId());
+            return;
+        }
+        patch(folder.getOwnerId(), tree -> tree.put(folder));
+    }
+    
+    /** Copies fresh rollup counters onto the owner's snapshot if one is cached. */
+    void updateTotals(String ownerId, Collection<Folder> folders) {
+        patch(ownerId, tree -> tree.updateTotals(folders));
+    }
+    
+    /**
+     * Runs {@code change} on the owner's cached snapshot. Going through {@code computeIfPresent}
+     * serializes patches per owner and waits out a load in progress, which may have read
+     * the folders before the change was written.
+     */
+    private void patch(String ownerId, Consumer<FolderTree> change) {
+        if (cache == null) {
+            return;
+        }
+        cache.asMap().computeIfPresent(ownerId, (id, tree) -> {
+            if (tree != TOO_LARGE) {
+                change.accept(tree);
+            }
+            return tree;
+        });
+    }
+    
+    public void invalidate(String ownerId) {
+        if (cache != null) {
+            cache.invalidate(ownerId);
+        }
+    }
+    
+    public void invalidateAll() {
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+    }
+    
+    private FolderTree load(String ownerId) {
+        Query query = new Query(Criteria.where("ownerId").is(ownerId).and("trashed").is(false));
+        if (mongoTemplate.count(query, Folder.class) > maxFoldersPerUser) {
+            return TOO_LARGE;
+        }
+        
+        query.fields().exclude("passwordHash");
+        return FolderTree.of(mongoTemplate.find(query, Folder.class));
+    }
+    
+    @EventListener(ApplicationReadyEvent.class)
+    public void watchFolderChanges() {
+        if (!changeStreamsEnabled) {
+            return;
+        }
+        Thread watcher = new Thread(this::watch, "folder-change-stream");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+    
+    @PreDestroy
+    public void shutdown() {
+        running = false;
+        MongoChangeStreamCursor<?> cursor = changeCursor;
+        if (cursor != null) {
+            cursor.close();
+        }
+    }
+    
+    private void watch() {
+        BsonDocument resumeToken = null;
+        while (running) {
+            ChangeStreamIterable<Document> changes = mongoTemplate
+                .getCollection(mongoTemplate.getCollectionName(Folder.class))
+                .watch(List.of(Aggregates.match(Filters.in("operationType", "insert", "update", "replace", "delete"))));
+            if (resumeToken != null) {
+                changes = changes.resumeAfter(resumeToken);
+            }
+            
+            try (MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor = changes.cursor()) {
+                changeCursor = cursor;
+                while (running) {
+                    ChangeStreamDocument<Document> change = cursor.next();
+                    resumeToken = change.getResumeToken();
+                    onChange(change);
+                }
+            } catch (MongoException e) {
+                if (!running) {
+                    return;
+                }
+                if (e.getCode() == 40573) {
+                    // "The $changeStream stage is only supported on replica sets"
+                    log.info("Change streams unavailable, folder tree cache relies on local invalidation only");
+                    return;
+                }
+                log.warn("Folder change stream interrupted, reconnecting: {}", e.getMessage());
+                // Events may have been missed while disconnected
+                invalidateAll();
+                sleepBeforeRetry();
+            }
+        }
+    }
+    
+    private void onChange(ChangeStreamDocument<Document> change) {
+        // Inserts and replaces always carry the document; updates and deletes only its id
+        Document document = change.getFullDocument();
+        if (document != null && document.getString("ownerId") != null) {
+            Folder folder = mongoTemplate.getConverter().read(Folder.class, document);
+            if (change.getOperationType() == OperationType.INSERT) {
+                folderChanged(folder);
+            } else {
+                invalidate(folder.getOwnerId());
+            }
+            return;
+        }
+        if (change.getDocumentKey() == null || cache == null) {
+            return;
+        }
+        
+        BsonValue id = change.getDocumentKey().get("_id");
+        String folderId = id.isObjectId() ? id.asObjectId().getValue().toHexString() : id.asString().getValue();
+        UpdateDescription update = change.getOperationType() == OperationType.UPDATE ? change.getUpdateDescription() : null;
+        if (update != null && (onlyTouches(update, FolderRollupService.FIELDS) || onlyTouches(update, SUBTREE_FIELDS))) {
+            return;
+        }
+        
+        String ownerId = cachedOwnerOf(folderId);
+        if (ownerId == null) {
+            // A restored folder is in no snapshot yet, but its owner's tree is missing it now
+            BsonValue trashed = update != null && update.getUpdatedFields() != null
+                ? update.getUpdatedFields().get("trashed") : null;
+            if (trashed != null && trashed.isBoolean() && !trashed.asBoolean().getValue()) {
+                Query owner = new Query(Criteria.where("_id").is(folderId));
+                owner.fields().include("ownerId");
+                Folder restored = mongoTemplate.findOne(owner, Folder.class);
+                if (restored != null) {
+                    invalidate(restored.getOwnerId());
+                }
+            }
+            return;
+        }
+        
+        if (update != null && onlyTouches(update, LISTING_FIELDS)) {
+            patch(ownerId, tree -> {
+                FolderTree.Node node = tree.get(folderId);
+                if (node != null) {
+                    tree.put(applyListingFields(node.toFolder(), update.getUpdatedFields()));
+                }
+            });
+        } else {
+            invalidate(ownerId);
+        }
+    }
+    
+    /** The owner whose cached snapshot holds the folder, or {@code null} if none does. */
+    private String cachedOwnerOf(String folderId) {
+        for (Map.Entry<String, FolderTree> entry : cache.asMap().entrySet()) {
+            if (entry.getValue().get(folderId) != null) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+    
+    private static boolean onlyTouches(UpdateDescription update, Set<String> fields) {
+        return update.getUpdatedFields() != null
+            && fields.containsAll(update.getUpdatedFields().keySet())
+            && (update.getRemovedFields() == null || fields.containsAll(update.getRemovedFields()));
+    }
+    
+    private static Folder applyListingFields(Folder folder, BsonDocument fields) {
+        if (fields.containsKey("name")) {
+            folder.setName(fields.getString("name").getValue());
+        }
+        if (fields.containsKey("path")) {
+            folder.setPath(fields.getString("path").getValue());
+        }
+        if (fields.containsKey("starred")) {
+            folder.setStarred(fields.getBoolean("starred").getValue());
+        }
+        if (fields.containsKey("locked")) {
+            folder.setLocked(fields.getBoolean("locked").getValue());
+        }
+        if (fields.containsKey("updatedAt")) {
+            folder.setUpdatedAt(LocalDateTime.ofInstant(
+                Instant.ofEpochMilli(fields.getDateTime("updatedAt").getValue()), ZoneId.systemDefault()));
+        }
+        return folder;
+    }
+    
+    private void sleepBeforeRetry() {
+        try {
+            Thread.sleep(CHANGE_STREAM_RETRY_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            running = false;
+        }
+    }
+    
+    /**
+     * Expires a snapshot after {@code idleNanos} without reads, and in any case
+     * {@code maxAgeNanos} after it was loaded; patches do not extend its life.
+     */
+    private record TreeExpiry(long idleNanos, long maxAgeNanos) implements Expiry<String, FolderTree> {
+        
+        @Override
+        public long expireAfterCreate(String ownerId, FolderTree tree, long currentTime) {
+            return Math.min(idleNanos, remaining(tree, currentTime));
+        }
+        
+        @Override
+        public long expireAfterUpdate(String ownerId, FolderTree tree, long currentTime, long currentDuration) {
+            return Math.min(currentDuration, remaining(tree, currentTime));
+        }
+        
+        @Override
+        public long expireAfterRead(String ownerId, FolderTree tree, long currentTime, long currentDuration) {
+            return Math.min(idleNanos, remaining(tree, currentTime));
+        }
+        
+        private long remaining(FolderTree tree, long currentTime) {
+            // The shared too-large placeholder was loaded once; it ages from each insert instead
+            return tree == TOO_LARGE ? maxAgeNanos : Math.max(0, maxAgeNanos - (currentTime - tree.loadedAt()));
+        }
+    }
+}
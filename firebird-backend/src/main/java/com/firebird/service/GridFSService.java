@@ -1,36 +1,161 @@
 package com.firebird.service;
 
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Updates;
 import com.mongodb.client.gridfs.model.GridFSFile;
+import jakarta.annotation.PostConstruct;
 import lombok.RequiredArgsConstructor;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.Binary;
 import org.bson.types.ObjectId;
+import org.springframework.core.io.Resource;
+import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.gridfs.GridFsResource;
 import org.springframework.data.mongodb.gridfs.GridFsTemplate;
+import org.springframework.data.mongodb.gridfs.GridFsUpload;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
 
 @Service
 @RequiredArgsConstructor
-public class GridFSService {
+public class GridFSService implements BlobStore {
+    
+    public static final String NAME = "gridfs";
+    static final String FILES_COLLECTION = "fs.files";
+    static final String CHUNKS_COLLECTION = "fs.chunks";
+    
+    static final String SHA256 = "metadata.sha256";
+    static final String REF_COUNT = "metadata.refCount";
+    static final String ACQUIRED_AT = "metadata.acquiredAt";
+    static final String CODEC = "metadata.codec";
+    static final String ORIGINAL_LENGTH = "metadata.originalLength";
     
     private final GridFsTemplate gridFsTemplate;
+    private final MongoTemplate mongoTemplate;
+    private final GridFsChunkCache chunkCache;
+    private final CompressionPolicy compressionPolicy;
+    private final ChunkSizePolicy chunkSizePolicy;
+    
+    @Override
+    public String getName() {
+        return NAME;
+    }
+    
+    @Override
+    public StoredBlob store(InputStream inputStream, String filename, String contentType, long size) {
+        return storeFile(inputStream, filename, contentType, size);
+    }
+    
+    @Override
+    public Resource open(String id) {
+        return openResource(id);
+    }
+    
+    @Override
+    public void release(String id) {
+        releaseFile(id);
+    }
+    
+    public StoredBlob storeFile(MultipartFile file) throws IOException {
+        return storeFile(file.getInputStream(), file.getOriginalFilename(), file.getContentType(), file.getSize());
+    }
     
-    public String storeFile(MultipartFile file) throws IOException {
-        ObjectId fileId = gridFsTemplate.store(
-            file.getInputStream(),
-            file.getOriginalFilename(),
-            file.getContentType()
+    /**
+     * Stores the stream while hashing it with SHA-256. If a blob with the same content
+     * already exists, the new copy is dropped and the existing blob's reference count is
+     * incremented instead, so the returned id may belong to a previously stored file.
+     * Compressible formats are deflated on the way in; the codec and original length are
+     * kept in the GridFS metadata and {@link GridFsBlobResource} inflates on read.
+     * The chunk size follows the expected size, see {@link ChunkSizePolicy}.
+     */
+    public StoredBlob storeFile(InputStream inputStream, String filename, String contentType, long size) {
+        boolean compress = compressionPolicy.shouldCompress(filename, contentType);
+        DigestInputStream digestStream = new DigestInputStream(inputStream, newSha256());
+        BoundedInputStream counted = new BoundedInputStream(digestStream, Long.MAX_VALUE);
+        Deflater deflater = compress ? new Deflater(Deflater.DEFAULT_COMPRESSION) : null;
+        
+        ObjectId fileId;
+        try {
+            InputStream content = compress ? new DeflaterInputStream(counted, deflater, 64 * 1024) : counted;
+            fileId = gridFsTemplate.store(GridFsUpload.fromStream(content)
+                .filename(filename)
+                .contentType(contentType)
+                .metadata(new Document("refCount", 1))
+                .chunkSize(chunkSizePolicy.chunkSizeFor(size))
+                .build());
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+        String hash = HexFormat.of().formatHex(digestStream.getMessageDigest().digest());
+        
+        Document existing = acquireExisting(hash, fileId);
+        if (existing != null) {
+            deleteFile(fileId.toString());
+            return new StoredBlob(existing.getObjectId("_id").toString(), existing.getLong("length"));
+        }
+        
+        Bson update = Updates.set(SHA256, hash);
+        if (compress) {
+            update = Updates.combine(update,
+                Updates.set(CODEC, GridFsBlobResource.CODEC_DEFLATE),
+                Updates.set(ORIGINAL_LENGTH, counted.getBytesRead()));
+        }
+        Document stored = mongoTemplate.getCollection(FILES_COLLECTION).findOneAndUpdate(
+            Filters.eq("_id", fileId),
+            update,
+            new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER)
         );
-        return fileId.toString();
+        return new StoredBlob(fileId.toString(), stored.getLong("length"));
     }
     
-    public String storeFile(InputStream inputStream, String filename, String contentType) {
-        ObjectId fileId = gridFsTemplate.store(inputStream, filename, contentType);
-        return fileId.toString();
+    /**
+     * Drops one reference to a blob and removes it once no file metadata points at it.
+     * Blobs stored before reference counting was introduced are deleted directly.
+     */
+    public void releaseFile(String id) {
+        Document released = mongoTemplate.getCollection(FILES_COLLECTION).findOneAndUpdate(
+            Filters.and(Filters.eq("_id", new ObjectId(id)), Filters.exists(REF_COUNT)),
+            Updates.inc(REF_COUNT, -1),
+            new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER)
+        );
+        
+        if (released == null) {
+            deleteFile(id);
+            return;
+        }
+        
+        if (released.get("metadata", Document.class).getInteger("refCount", 0) <= 0) {
+            gridFsTemplate.delete(new Query(Criteria.where("_id").is(id).and(REF_COUNT).lte(0)));
+            chunkCache.invalidate(new ObjectId(id));
+        }
+    }
+    
+    @PostConstruct
+    void createIndexes() {
+        mongoTemplate.getCollection(FILES_COLLECTION).createIndex(Indexes.ascending(SHA256));
     }
     
     public GridFsResource getFile(String id) {
@@ -41,11 +166,118 @@ public class GridFSService {
         return gridFsTemplate.getResource(gridFSFile);
     }
     
+    public GridFsBlobResource openResource(String id) {
+        GridFSFile gridFSFile = getFileMetadata(id);
+        if (gridFSFile == null) {
+            throw new RuntimeException("File not found: " + id);
+        }
+        return new GridFsBlobResource(gridFSFile, mongoTemplate.getCollection(CHUNKS_COLLECTION), chunkCache);
+    }
+    
     public void deleteFile(String id) {
         gridFsTemplate.delete(new Query(Criteria.where("_id").is(id)));
+        chunkCache.invalidate(new ObjectId(id));
+    }
+    
+    /**
+     * Deletes those of the given blobs whose reference count has been brought down to zero,
+     * chunks included, and returns their ids.
+     */
+    public List<ObjectId> deleteUnreferenced(Collection<ObjectId> ids) {
+        Query query = new Query(Criteria.where("_id").in(ids).and(REF_COUNT).lte(0));
+        List<ObjectId> deleted = new ArrayList<>();
+        gridFsTemplate.find(query).forEach(file -> deleted.add(file.getObjectId()));
+        gridFsTemplate.delete(query);
+        deleted.forEach(chunkCache::invalidate);
+        return deleted;
     }
     
     public GridFSFile getFileMetadata(String id) {
         return gridFsTemplate.findOne(new Query(Criteria.where("_id").is(id)));
     }
+    
+    /**
+     * Writes the stream as consecutive chunks of a GridFS file that has not been
+     * finalized yet, starting at chunk number {@code firstChunk}. Chunks are upserted
+     * so a retried part simply overwrites what an interrupted attempt left behind.
+     */
+    public long writeChunks(String id, int chunkSize, int firstChunk, InputStream inputStream) throws IOException {
+        ObjectId filesId = new ObjectId(id);
+        var chunks = mongoTemplate.getCollection(CHUNKS_COLLECTION);
+        byte[] buffer = new byte[chunkSize];
+        long written = 0;
+        int n = firstChunk;
+        
+        while (true) {
+            int read = inputStream.readNBytes(buffer, 0, chunkSize);
+            if (read == 0) {
+                break;
+            }
+            
+            Document chunk = new Document("files_id", filesId)
+                .append("n", n)
+                .append("data", new Binary(read == chunkSize ? buffer : Arrays.copyOf(buffer, read)));
+            chunks.replaceOne(
+                Filters.and(Filters.eq("files_id", filesId), Filters.eq("n", n)),
+                chunk,
+                new ReplaceOptions().upsert(true)
+            );
+            
+            written += read;
+            n++;
+            if (read < chunkSize) {
+                break;
+            }
+        }
+        
+        return written;
+    }
+    
+    /**
+     * Makes chunks written with {@link #writeChunks} visible as a regular GridFS file.
+     */
+    public void finalizeFile(String id, String filename, String contentType, long length, int chunkSize) {
+        Document metadata = new Document("refCount", 1);
+        if (contentType != null) {
+            metadata.append("_contentType", contentType);
+        }
+        
+        mongoTemplate.getCollection(FILES_COLLECTION).insertOne(new Document("_id", new ObjectId(id))
+            .append("length", length)
+            .append("chunkSize", chunkSize)
+            .append("uploadDate", new Date())
+            .append("filename", filename)
+            .append("metadata", metadata));
+    }
+    
+    /** Removes the {@code fs.files} entry only, leaving the chunks for another finalize. */
+    public void deleteFileEntry(String id) {
+        mongoTemplate.getCollection(FILES_COLLECTION).deleteOne(Filters.eq("_id", new ObjectId(id)));
+        chunkCache.invalidate(new ObjectId(id));
+    }
+    
+    public void deleteChunks(String id) {
+        mongoTemplate.getCollection(CHUNKS_COLLECTION).deleteMany(Filters.eq("files_id", new ObjectId(id)));
+    }
+    
+    private Document acquireExisting(String hash, ObjectId excludeId) {
+        Document existing = mongoTemplate.getCollection(FILES_COLLECTION).findOneAndUpdate(
+            Filters.and(
+                Filters.eq(SHA256, hash),
+                Filters.ne("_id", excludeId),
+                Filters.gt(REF_COUNT, 0)
+            ),
+            // Stamped so garbage collection leaves the blob alone until the new file's metadata is saved
+            Updates.combine(Updates.inc(REF_COUNT, 1), Updates.set(ACQUIRED_AT, new Date()))
+        );
+        return existing;
+    }
+    
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
 }
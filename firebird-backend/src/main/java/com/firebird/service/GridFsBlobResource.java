@@ -0,0 +1,87 @@
+package com.firebird.service;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.gridfs.model.GridFSFile;
+import org.bson.Document;
+import org.springframework.core.io.AbstractResource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A re-openable GridFS resource. Unlike {@code GridFsResource} it is not a single-use
+ * stream, so Spring MVC can serve {@code Range} requests from it as resource regions.
+ * Blobs stored with a codec are inflated on the fly and report their original length.
+ */
+public class GridFsBlobResource extends AbstractResource {
+    
+    public static final String CODEC_DEFLATE = "deflate";
+    
+    private static final int INFLATE_BUFFER_SIZE = 64 * 1024;
+    
+    private final GridFSFile file;
+    private final MongoCollection<Document> chunks;
+    private final GridFsChunkCache chunkCache;
+    
+    GridFsBlobResource(GridFSFile file, MongoCollection<Document> chunks, GridFsChunkCache chunkCache) {
+        this.file = file;
+        this.chunks = chunks;
+        this.chunkCache = chunkCache;
+    }
+    
+    public String getId() {
+        return file.getObjectId().toHexString();
+    }
+    
+    @Override
+    public InputStream getInputStream() {
+        InputStream raw = new GridFsChunkInputStream(chunks, chunkCache, file.getObjectId(),
+                                                     file.getLength(), file.getChunkSize());
+        if (!isCompressed()) {
+            return raw;
+        }
+        
+        return new InflaterInputStream(raw, new Inflater(), INFLATE_BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                inf.end();
+            }
+        };
+    }
+    
+    @Override
+    public long contentLength() {
+        if (isCompressed()) {
+            return ((Number) file.getMetadata().get("originalLength")).longValue();
+        }
+        return file.getLength();
+    }
+    
+    private boolean isCompressed() {
+        Document metadata = file.getMetadata();
+        return metadata != null && CODEC_DEFLATE.equals(metadata.getString("codec"));
+    }
+    
+    @Override
+    public long lastModified() {
+        return file.getUploadDate().getTime();
+    }
+    
+    @Override
+    public String getFilename() {
+        return file.getFilename();
+    }
+    
+    @Override
+    public boolean exists() {
+        return true;
+    }
+    
+    @Override
+    public String getDescription() {
+        return "GridFS file [" + getId() + "]";
+    }
+}
@@ -0,0 +1,78 @@
+package com.firebird.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Read-through cache of GridFS chunks held in direct (off-heap) buffers and keyed by
+ * file id plus chunk number. Caffeine's W-TinyLFU admission keeps one-off downloads of
+ * large files from flushing out the small set of files that are fetched all the time.
+ */
+@Service
+public class GridFsChunkCache {
+    
+    private final Cache<ChunkKey, ByteBuffer> cache;
+    private final Counter bytesServed;
+    
+    public GridFsChunkCache(@Value("${storage.chunk-cache.enabled:false}") boolean enabled,
+                            @Value("${storage.chunk-cache.max-bytes:268435456}") long maxBytes,
+                            MeterRegistry meterRegistry) {
+        this.cache = enabled
+            ? Caffeine.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((ChunkKey key, ByteBuffer value) -> value.capacity())
+                .recordStats()
+                .build()
+            : null;
+        this.bytesServed = Counter.builder("firebird.chunk.cache.bytes.served")
+            .description("Bytes served from the GridFS chunk cache")
+            .baseUnit("bytes")
+            .register(meterRegistry);
+        
+        if (cache != null) {
+            CaffeineCacheMetrics.monitor(meterRegistry, cache, "gridfs-chunks");
+        }
+    }
+    
+    /**
+     * Returns a read-only view of the cached chunk, or {@code null} on a miss.
+     */
+    public ByteBuffer get(ObjectId fileId, int n) {
+        if (cache == null) {
+            return null;
+        }
+        ByteBuffer chunk = cache.getIfPresent(new ChunkKey(fileId, n));
+        if (chunk == null) {
+            return null;
+        }
+        bytesServed.increment(chunk.capacity());
+        return chunk.asReadOnlyBuffer();
+    }
+    
+    public void put(ObjectId fileId, int n, byte[] data) {
+        if (cache == null) {
+            return;
+        }
+        ByteBuffer chunk = ByteBuffer.allocateDirect(data.length);
+        chunk.put(data).flip();
+        cache.put(new ChunkKey(fileId, n), chunk);
+    }
+    
+    public void invalidate(ObjectId fileId) {
+        if (cache == null) {
+            return;
+        }
+        cache.asMap().keySet().removeIf(key -> key.fileId().equals(fileId));
+    }
+    
+    private record ChunkKey(ObjectId fileId, int n) {
+    }
+}
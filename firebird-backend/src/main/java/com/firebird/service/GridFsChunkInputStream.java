@@ -0,0 +1,139 @@
+package com.firebird.service;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Sorts;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads a GridFS file straight from {@code fs.chunks}. {@link #skip(long)} only moves
+ * the position; the chunk cursor is (re)opened lazily at the chunk holding the next
+ * byte, so a ranged read near the end of a large file never touches earlier chunks.
+ * Chunks found in the {@link GridFsChunkCache} are served without a round trip.
+ */
+class GridFsChunkInputStream extends InputStream {
+    
+    private static final int PREFETCH_BYTES = 2 * 1024 * 1024;
+    
+    private final MongoCollection<Document> chunks;
+    private final GridFsChunkCache chunkCache;
+    private final ObjectId filesId;
+    private final long length;
+    private final int chunkSize;
+    
+    private long position;
+    private MongoCursor<Document> cursor;
+    private int cursorNext = -1;
+    private ByteBuffer chunk;
+    private int chunkNumber = -1;
+    
+    GridFsChunkInputStream(MongoCollection<Document> chunks, GridFsChunkCache chunkCache,
+                           ObjectId filesId, long length, int chunkSize) {
+        this.chunks = chunks;
+        this.chunkCache = chunkCache;
+        this.filesId = filesId;
+        this.length = length;
+        this.chunkSize = chunkSize;
+    }
+    
+    @Override
+    public int read() throws IOException {
+        if (position >= length) {
+            return -1;
+        }
+        loadChunk();
+        int b = chunk.get((int) (position - (long) chunkNumber * chunkSize)) & 0xff;
+        position++;
+        return b;
+    }
+    
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (position >= length) {
+            return -1;
+        }
+        loadChunk();
+        int offsetInChunk = (int) (position - (long) chunkNumber * chunkSize);
+        int count = (int) Math.min(Math.min(len, chunk.capacity() - offsetInChunk), length - position);
+        chunk.get(offsetInChunk, b, off, count);
+        position += count;
+        return count;
+    }
+    
+    @Override
+    public long skip(long n) {
+        if (n <= 0) {
+            return 0;
+        }
+        long target = Math.min(length, position + n);
+        long skipped = target - position;
+        position = target;
+        return skipped;
+    }
+    
+    @Override
+    public int available() {
+        if (chunk == null) {
+            return 0;
+        }
+        long chunkEnd = (long) chunkNumber * chunkSize + chunk.capacity();
+        return (int) Math.max(0, Math.min(chunkEnd, length) - position);
+    }
+    
+    @Override
+    public void close() {
+        closeCursor();
+        chunk = null;
+    }
+    
+    private void loadChunk() throws IOException {
+        int needed = (int) (position / chunkSize);
+        if (chunk != null && chunkNumber == needed) {
+            return;
+        }
+        
+        ByteBuffer cached = chunkCache.get(filesId, needed);
+        if (cached != null) {
+            chunk = cached;
+            chunkNumber = needed;
+            return;
+        }
+        
+        // Reuse the open cursor only for sequential reads; after a seek or cache hits reopen at the target
+        if (cursor == null || cursorNext != needed) {
+            closeCursor();
+            cursor = chunks.find(Filters.and(Filters.eq("files_id", filesId), Filters.gte("n", needed)))
+                .sort(Sorts.ascending("n"))
+                .batchSize(Math.max(1, PREFETCH_BYTES / chunkSize))
+                .iterator();
+        }
+        
+        Document doc = cursor.hasNext() ? cursor.next() : null;
+        if (doc == null || doc.getInteger("n") != needed) {
+            throw new IOException("Missing chunk " + needed + " of GridFS file " + filesId);
+        }
+        
+        byte[] data = doc.get("data", Binary.class).getData();
+        chunkCache.put(filesId, needed, data);
+        chunk = ByteBuffer.wrap(data);
+        chunkNumber = needed;
+        cursorNext = needed + 1;
+    }
+    
+    private void closeCursor() {
+        if (cursor != null) {
+            cursor.close();
+            cursor = null;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.firebird.service;
+
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Keeps blobs as plain files on a local disk or NFS mount. Writes go through a
+ * {@link FileChannel}, and downloads are served as {@link FileSystemResource}s, which
+ * the download endpoint hands to the servlet container's sendfile support.
+ */
+@Service
+public class LocalBlobStore implements BlobStore {
+    
+    public static final String NAME = "local";
+    
+    private static final long TRANSFER_SIZE = 8L * 1024 * 1024;
+    
+    private final Path root;
+    
+    public LocalBlobStore(@Value("${storage.local.root:./data/blobs}") String root) {
+        this.root = Paths.get(root).toAbsolutePath().normalize();
+    }
+    
+    @Override
+    public String getName() {
+        return NAME;
+    }
+    
+    @Override
+    public StoredBlob store(InputStream inputStream, String filename, String contentType, long size)
+            throws IOException {
+        String id = new ObjectId().toHexString();
+        Path target = resolve(id);
+        Files.createDirectories(target.getParent());
+        
+        // Write to a temp name first so a failed upload never leaves a readable partial blob
+        Path temp = target.resolveSibling(id + ".part");
+        long position = 0;
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+             ReadableByteChannel source = Channels.newChannel(inputStream)) {
+            long transferred;
+            while ((transferred = channel.transferFrom(source, position, TRANSFER_SIZE)) > 0) {
+                position += transferred;
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        return new StoredBlob(id, position);
+    }
+    
+    @Override
+    public Resource open(String id) {
+        Path path = resolve(id);
+        if (!Files.exists(path)) {
+            throw new RuntimeException("File not found: " + id);
+        }
+        return new FileSystemResource(path);
+    }
+    
+    @Override
+    public void release(String id) {
+        try {
+            Files.deleteIfExists(resolve(id));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    /**
+     * Blobs are fanned out by the tail of the id, which unlike the ObjectId timestamp
+     * prefix is evenly distributed.
+     */
+    private Path resolve(String id) {
+        if (!ObjectId.isValid(id)) {
+            throw new RuntimeException("Invalid blob id: " + id);
+        }
+        return root.resolve(id.substring(22, 24)).resolve(id.substring(20, 22)).resolve(id);
+    }
+}
@@ -0,0 +1,369 @@
+package com.firebird.service;
+
+import com.firebird.model.FileMetadata;
+import com.firebird.model.Folder;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+/**
+ * In-memory trigram index over file and folder names, one per owner. A substring query
+ * intersects the posting lists of its trigrams and verifies the few survivors, instead
+ * of running an unanchored regex over every document the owner has.
+ * <p>
+ * Kept current by {@link FileService} and {@link FolderService} and rebuilt from Mongo
+ * in the background at startup; until then {@link #isReady()} is false and callers fall
+ * back to the repository query. Hits may be briefly stale, so callers re-check them
+ * against the loaded documents.
+ */
+@Slf4j
+@Component
+public class NameSearchIndex {
+    
+    public static final int MAX_RESULTS = 1000;
+    
+    static final int COMPACT_THRESHOLD = 1024;
+    
+    private final MongoTemplate mongoTemplate;
+    private final Map<String, OwnerIndex> owners = new ConcurrentHashMap<>();
+    
+    @Value("${search.name-index.enabled:true}")
+    private boolean enabled;
+    
+    private volatile boolean ready;
+    
+    public NameSearchIndex(MongoTemplate mongoTemplate, MeterRegistry meterRegistry) {
+        this.mongoTemplate = mongoTemplate;
+        Gauge.builder("firebird.search.name-index.entries", owners,
+                m -> m.values().stream().mapToInt(OwnerIndex::size).sum())
+            .description("File and folder names held in the search index")
+            .register(meterRegistry);
+    }
+    
+    public boolean isReady() {
+        return enabled && ready;
+    }
+    
+    public void putFile(String ownerId, String fileId, String name) {
+        put(ownerId, fileId, false, name);
+    }
+    
+    public void putFolder(String ownerId, String folderId, String name) {
+        put(ownerId, folderId, true, name);
+    }
+    
+    public void removeFile(String ownerId, String fileId) {
+        remove(ownerId, fileId, false);
+    }
+    
+    public void removeFolder(String ownerId, String folderId) {
+        remove(ownerId, folderId, true);
+    }
+    
+    /** Ids of the owner's files whose name contains {@code query}, best match first. */
+    public List<String> searchFiles(String ownerId, String query, int limit) {
+        return search(ownerId, query, false, limit);
+    }
+    
+    /** Ids of the owner's folders whose name contains {@code query}, best match first. */
+    public List<String> searchFolders(String ownerId, String query, int limit) {
+        return search(ownerId, query, true, limit);
+    }
+    
+    @EventListener(ApplicationReadyEvent.class)
+    public void rebuildOnStartup() {
+        if (!enabled) {
+            return;
+        }
+        Thread rebuild = new Thread(this::rebuild, "name-index-rebuild");
+        rebuild.setDaemon(true);
+        rebuild.start();
+    }
+    
+    /**
+     * Loads every non-trashed file and folder name. Updates arriving meanwhile are applied
+     * as usual; entries are keyed by id, so a document seen by both simply ends up indexed once.
+     */
+    public void rebuild() {
+        long start = System.nanoTime();
+        try {
+            int files = load(FileMetadata.class, false);
+            int folders = load(Folder.class, true);
+            ready = true;
+            log.info("Name index built: {} files, {} folders in {} ms",
+                files, folders, (System.nanoTime() - start) / 1_000_000);
+        } catch (RuntimeException e) {
+            log.error("Name index rebuild failed, search stays on the database", e);
+        }
+    }
+    
+    private int load(Class<?> entityClass, boolean folder) {
+        Query query = new Query(Criteria.where("trashed").is(false));
+        query.fields().include("ownerId", "name");
+        
+        int count = 0;
+        try (Stream<Document> docs = mongoTemplate.stream(query, Document.class,
+                                                          mongoTemplate.getCollectionName(entityClass))) {
+            for (Document doc : (Iterable<Document>) docs::iterator) {
+                put(doc.getString("ownerId"), doc.get("_id").toString(), folder, doc.getString("name"));
+                count++;
+            }
+        }
+        return count;
+    }
+    
+    private void put(String ownerId, String id, boolean folder, String name) {
+        if (!enabled || ownerId == null || name == null) {
+            return;
+        }
+        owners.computeIfAbsent(ownerId, o -> new OwnerIndex()).put(id, folder, normalize(name));
+    }
+    
+    private void remove(String ownerId, String id, boolean folder) {
+        OwnerIndex index = owners.get(ownerId);
+        if (index != null) {
+            index.remove(id, folder);
+        }
+    }
+    
+    private List<String> search(String ownerId, String query, boolean folder, int limit) {
+        OwnerIndex index = owners.get(ownerId);
+        if (index == null || query == null || query.isEmpty()) {
+            return List.of();
+        }
+        return index.search(normalize(query), folder, limit);
+    }
+    
+    private static String normalize(String s) {
+        return s.toLowerCase(Locale.ROOT);
+    }
+    
+    /** Distinct trigrams of {@code s}, sorted, each packed as three UTF-16 units. */
+    private static long[] trigrams(String s) {
+        if (s.length() < 3) {
+            return new long[0];
+        }
+        long[] grams = new long[s.length() - 2];
+        for (int i = 0; i < grams.length; i++) {
+            grams[i] = ((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) | s.charAt(i + 2);
+        }
+        return Arrays.stream(grams).sorted().distinct().toArray();
+    }
+    
+    private record Entry(String id, boolean folder, String name) {
+    }
+    
+    private record Hit(Entry entry, int rank) {
+        static final Comparator<Hit> ORDER = Comparator.comparingInt(Hit::rank)
+            .thenComparingInt(h -> h.entry().name().length())
+            .thenComparing(h -> h.entry().name());
+    }
+    
+    /**
+     * Entries live in slots that only ever grow, so every posting list stays sorted and
+     * can be intersected by merging. Removal and rename just clear the old slot, a rename
+     * appending a new one; once half the slots are dead the whole index is rewritten.
+     */
+    private static final class OwnerIndex {
+        
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+        private final Map<String, Integer> slots = new HashMap<>();
+        private List<Entry> entries = new ArrayList<>();
+        private Map<Long, Postings> postings = new HashMap<>();
+        
+        int size() {
+            lock.readLock().lock();
+            try {
+                return slots.size();
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        
+        void put(String id, boolean folder, String name) {
+            lock.writeLock().lock();
+            try {
+                String key = key(id, folder);
+                Integer slot = slots.get(key);
+                if (slot != null && entries.get(slot).name().equals(name)) {
+                    return;
+                }
+                clear(key);
+                append(new Entry(id, folder, name));
+                compactIfSparse();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        
+        void remove(String id, boolean folder) {
+            lock.writeLock().lock();
+            try {
+                clear(key(id, folder));
+                compactIfSparse();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        
+        List<String> search(String needle, boolean folder, int limit) {
+            lock.readLock().lock();
+            try {
+                // Keep only the best {@code limit} hits; broad queries can match most of a drive
+                PriorityQueue<Hit> best = new PriorityQueue<>(Hit.ORDER.reversed());
+                if (needle.length() < 3) {
+                    for (Entry e : entries) {
+                        offer(best, e, folder, needle, limit);
+                    }
+                } else {
+                    for (int slot : candidates(needle)) {
+                        offer(best, entries.get(slot), folder, needle, limit);
+                    }
+                }
+                
+                return best.stream()
+                    .sorted(Hit.ORDER)
+                    .map(hit -> hit.entry().id())
+                    .toList();
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        
+        private static void offer(PriorityQueue<Hit> best, Entry e, boolean folder, String needle, int limit) {
+            // Trigrams only narrow the candidates; the substring check decides
+            if (e == null || e.folder() != folder || !e.name().contains(needle)) {
+                return;
+            }
+            Hit hit = new Hit(e, rank(e.name(), needle));
+            if (best.size() < limit) {
+                best.add(hit);
+            } else if (Hit.ORDER.compare(hit, best.peek()) < 0) {
+                best.poll();
+                best.add(hit);
+            }
+        }
+        
+        private int[] candidates(String needle) {
+            long[] grams = trigrams(needle);
+            Postings[] lists = new Postings[grams.length];
+            for (int i = 0; i < grams.length; i++) {
+                lists[i] = postings.get(grams[i]);
+                if (lists[i] == null) {
+                    return new int[0];
+                }
+            }
+            Arrays.sort(lists, Comparator.comparingInt(p -> p.size));
+            
+            // Start from the rarest trigram so the running intersection is as small as possible
+            int[] result = Arrays.copyOf(lists[0].slots, lists[0].size);
+            for (int i = 1; i < lists.length && result.length > 0; i++) {
+                result = intersect(result, lists[i]);
+            }
+            return result;
+        }
+        
+        private void append(Entry entry) {
+            int slot = entries.size();
+            entries.add(entry);
+            slots.put(key(entry.id(), entry.folder()), slot);
+            for (long gram : trigrams(entry.name())) {
+                postings.computeIfAbsent(gram, g -> new Postings()).add(slot);
+            }
+        }
+        
+        private void clear(String key) {
+            Integer slot = slots.remove(key);
+            if (slot != null) {
+                entries.set(slot, null);
+            }
+        }
+        
+        private void compactIfSparse() {
+            if (entries.size() > COMPACT_THRESHOLD && slots.size() < entries.size() / 2) {
+                compact();
+            }
+        }
+        
+        private void compact() {
+            List<Entry> live = entries;
+            entries = new ArrayList<>(slots.size());
+            postings = new HashMap<>();
+            slots.clear();
+            for (Entry e : live) {
+                if (e != null) {
+                    append(e);
+                }
+            }
+        }
+        
+        private static String key(String id, boolean folder) {
+            return (folder ? "d:" : "f:") + id;
+        }
+        
+        /** Exact name, then prefix, then start of a word, then anywhere. */
+        private static int rank(String name, String needle) {
+            if (name.equals(needle)) {
+                return 0;
+            }
+            if (name.startsWith(needle)) {
+                return 1;
+            }
+            int at = name.indexOf(needle);
+            return Character.isLetterOrDigit(name.charAt(at - 1)) ? 3 : 2;
+        }
+        
+        private static int[] intersect(int[] a, Postings b) {
+            int[] out = new int[Math.min(a.length, b.size)];
+            int n = 0;
+            int i = 0;
+            int j = 0;
+            while (i < a.length && j < b.size) {
+                if (a[i] < b.slots[j]) {
+                    i++;
+                } else if (a[i] > b.slots[j]) {
+                    j++;
+                } else {
+                    out[n++] = a[i];
+                    i++;
+                    j++;
+                }
+            }
+            return Arrays.copyOf(out, n);
+        }
+    }
+    
+    /** Growable, ascending list of slots. */
+    private static final class Postings {
+        private int[] slots = new int[4];
+        private int size;
+        
+        void add(int slot) {
+            if (size == slots.length) {
+                slots = Arrays.copyOf(slots, size * 2);
+            }
+            slots[size++] = slot;
+        }
+    }
+}
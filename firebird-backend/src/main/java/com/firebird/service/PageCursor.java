@@ -0,0 +1,63 @@
+package com.firebird.service;
+
+import com.firebird.dto.CursorPage;
+import org.bson.types.ObjectId;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.domain.Sort;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Opaque keyset cursor for listings sorted by {@code name, _id}. The token carries the
+ * last item's sort key and id, so the next page is a range scan on the compound index
+ * instead of a skip over everything already returned.
+ */
+public record PageCursor(String name, ObjectId id) {
+    
+    public static final int DEFAULT_LIMIT = 100;
+    public static final int MAX_LIMIT = 1000;
+    
+    public static final Sort SORT = Sort.by("name").and(Sort.by("id"));
+    
+    private static final int ID_LENGTH = 24;
+    
+    public static PageCursor decode(String token) {
+        try {
+            String decoded = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+            return new PageCursor(decoded.substring(ID_LENGTH), new ObjectId(decoded.substring(0, ID_LENGTH)));
+        } catch (IllegalArgumentException | StringIndexOutOfBoundsException e) {
+            throw new RuntimeException("Invalid cursor");
+        }
+    }
+    
+    public String encode() {
+        byte[] raw = (id.toHexString() + name).getBytes(StandardCharsets.UTF_8);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw);
+    }
+    
+    /**
+     * Fetch one extra row so we know whether another page exists without a count query.
+     */
+    public static Limit fetchLimit(int limit) {
+        return Limit.of(clamp(limit) + 1);
+    }
+    
+    public static <T> CursorPage<T> page(List<T> fetched, int limit, Function<T, String> name,
+                                         Function<T, String> id) {
+        int size = clamp(limit);
+        if (fetched.size() <= size) {
+            return new CursorPage<>(fetched, null);
+        }
+        
+        List<T> items = fetched.subList(0, size);
+        T last = items.get(size - 1);
+        return new CursorPage<>(items, new PageCursor(name.apply(last), new ObjectId(id.apply(last))).encode());
+    }
+    
+    private static int clamp(int limit) {
+        return Math.max(1, Math.min(limit, MAX_LIMIT));
+    }
+}
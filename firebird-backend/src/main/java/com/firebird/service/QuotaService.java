@@ -0,0 +1,143 @@
+package com.firebird.service;
+
+import com.firebird.model.QuotaReservation;
+import com.firebird.model.User;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.ArithmeticOperators;
+import org.springframework.data.mongodb.core.aggregation.ComparisonOperators;
+import org.springframework.data.mongodb.core.aggregation.ConditionalOperators;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.stream.Stream;
+
+/**
+ * Quota accounting for concurrent uploads. An upload first reserves its size with one
+ * conditional update on the user document, which only applies while used plus reserved
+ * bytes still fit the quota, and records the reservation in the same write. On success
+ * the reservation turns into used bytes; on failure it is released. Both steps match on
+ * the reservation id, so each can apply at most once, and a reservation whose upload
+ * died with the process expires and is released by a sweep.
+ * <p>
+ * Every step is a single-document update, so parallel uploads by the same user neither
+ * overshoot the quota nor lose increments, and nothing is locked.
+ */
+@Slf4j
+@Service
+public class QuotaService {
+    
+    private final MongoTemplate mongoTemplate;
+    private final Counter rejectedCounter;
+    private final Counter expiredCounter;
+    
+    public QuotaService(MongoTemplate mongoTemplate, MeterRegistry meterRegistry) {
+        this.mongoTemplate = mongoTemplate;
+        this.rejectedCounter = Counter.builder("firebird.quota.reservations.rejected")
+            .description("Uploads refused because they would exceed the quota")
+            .register(meterRegistry);
+        this.expiredCounter = Counter.builder("firebird.quota.reservations.expired")
+            .description("Reservations released because their upload never finished")
+            .register(meterRegistry);
+    }
+    
+    /**
+     * Holds {@code bytes} against the user's quota until {@link #commit} or {@link #release},
+     * or until {@code ttl} passes without either.
+     */
+    public Reservation reserve(String userId, long bytes, Duration ttl) {
+        String reservationId = new ObjectId().toHexString();
+        
+        Query fits = new Query(Criteria.where("_id").is(userId).andOperator(Criteria.expr(
+            ComparisonOperators.valueOf(ArithmeticOperators.valueOf("storageUsed")
+                    .add(ConditionalOperators.ifNull("storageReserved").then(0))
+                    .add(bytes))
+                .lessThanEqualTo("storageQuota"))));
+        Update reserve = new Update()
+            .inc("storageReserved", bytes)
+            .push("reservations", new QuotaReservation(reservationId, bytes, LocalDateTime.now().plus(ttl)));
+        
+        if (mongoTemplate.updateFirst(fits, reserve, User.class).getModifiedCount() == 0) {
+            if (!mongoTemplate.exists(new Query(Criteria.where("_id").is(userId)), User.class)) {
+                throw new RuntimeException("User not found");
+            }
+            rejectedCounter.increment();
+            throw new RuntimeException("Storage quota exceeded");
+        }
+        return new Reservation(userId, reservationId, bytes);
+    }
+    
+    /** Moves a reservation's bytes from reserved to used once its file is saved. */
+    public void commit(Reservation reservation) {
+        Update update = settle(reservation).inc("storageUsed", reservation.bytes());
+        if (mongoTemplate.updateFirst(held(reservation), update, User.class).getModifiedCount() == 0) {
+            // Expired while the upload was still running; the file is stored all the same
+            log.warn("Reservation {} of user {} expired before its upload finished",
+                reservation.id(), reservation.userId());
+            addUsage(reservation.userId(), reservation.bytes());
+        }
+    }
+    
+    /** Returns a reservation's bytes to the quota; a no-op once committed or released. */
+    public void release(Reservation reservation) {
+        mongoTemplate.updateFirst(held(reservation), settle(reservation), User.class);
+    }
+    
+    /** Pushes out the expiry of a reservation whose upload is still making progress. */
+    public void extend(Reservation reservation, Duration ttl) {
+        mongoTemplate.updateFirst(held(reservation),
+            new Update().set("reservations.$.expiresAt", LocalDateTime.now().plus(ttl)), User.class);
+    }
+    
+    public void addUsage(String userId, long bytes) {
+        mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(userId)),
+            new Update().inc("storageUsed", bytes), User.class);
+    }
+    
+    @Scheduled(fixedDelayString = "${storage.quota.sweep-interval-ms:300000}")
+    public void releaseExpired() {
+        LocalDateTime now = LocalDateTime.now();
+        Query query = new Query(Criteria.where("reservations.expiresAt").lt(now));
+        query.fields().include("reservations");
+        
+        int released = 0;
+        try (Stream<User> users = mongoTemplate.stream(query, User.class)) {
+            for (User user : (Iterable<User>) users::iterator) {
+                for (QuotaReservation r : user.getReservations()) {
+                    if (r.getExpiresAt().isBefore(now)) {
+                        release(new Reservation(user.getId(), r.getReservationId(), r.getBytes()));
+                        released++;
+                    }
+                }
+            }
+        }
+        
+        if (released > 0) {
+            expiredCounter.increment(released);
+            log.info("Released {} expired quota reservations", released);
+        }
+    }
+    
+    private static Query held(Reservation reservation) {
+        return new Query(Criteria.where("_id").is(reservation.userId())
+            .and("reservations.reservationId").is(reservation.id()));
+    }
+    
+    private static Update settle(Reservation reservation) {
+        return new Update()
+            .inc("storageReserved", -reservation.bytes())
+            .pull("reservations", new Document("reservationId", reservation.id()));
+    }
+    
+    public record Reservation(String userId, String id, long bytes) {
+    }
+}
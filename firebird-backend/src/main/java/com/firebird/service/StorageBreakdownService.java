@@ -0,0 +1,282 @@
+package com.firebird.service;
+
+import com.firebird.dto.StorageBreakdown;
+import com.firebird.dto.StorageBucket;
+import com.firebird.model.FileMetadata;
+import com.firebird.model.StorageCount;
+import com.firebird.model.User;
+import com.firebird.repository.StorageCountRepository;
+import com.mongodb.bulk.BulkWriteResult;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+/**
+ * Per-owner storage split by file category and extension. Uploads and permanent deletes
+ * move one {@code storage_counts} counter each with an upserted {@code $inc}, so reading
+ * the breakdown folds a few dozen small documents however many files the owner has.
+ * Trashed files still count against the quota and stay counted until deleted for good.
+ * {@link #reconcileAll} recounts them from the files nightly and repairs any drift
+ * through {@link CounterSettler}.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class StorageBreakdownService {
+    
+    public static final int MAX_EXTENSIONS = 1000;
+    
+    private static final String IMAGES = "images";
+    private static final String VIDEOS = "videos";
+    private static final String AUDIO = "audio";
+    private static final String DOCUMENTS = "documents";
+    private static final String ARCHIVES = "archives";
+    private static final String OTHER = "other";
+    
+    private static final Set<String> IMAGE_EXTENSIONS = Set.of(
+        "jpg", "jpeg", "png", "gif", "bmp", "webp", "svg", "heic", "tif", "tiff");
+    private static final Set<String> VIDEO_EXTENSIONS = Set.of("mp4", "mov", "mkv", "avi", "webm", "m4v", "wmv");
+    private static final Set<String> AUDIO_EXTENSIONS = Set.of("mp3", "wav", "flac", "aac", "ogg", "m4a", "opus");
+    private static final Set<String> DOCUMENT_EXTENSIONS = Set.of(
+        "pdf", "doc", "docx", "xls", "xlsx", "ppt", "pptx", "odt", "ods", "odp", "rtf", "txt", "md", "csv");
+    private static final Set<String> ARCHIVE_EXTENSIONS = Set.of("zip", "rar", "7z", "tar", "gz", "tgz", "bz2", "xz");
+    
+    private static final Comparator<StorageBucket> LARGEST_FIRST =
+        Comparator.comparingLong(StorageBucket::getBytes).reversed().thenComparing(StorageBucket::getName);
+    
+    private final MongoTemplate mongoTemplate;
+    private final StorageCountRepository storageCountRepository;
+    private final CounterSettler settler;
+    
+    @Value("${storage.breakdown.reconcile-enabled:true}")
+    private boolean reconcileEnabled;
+    
+    public void fileStored(FileMetadata file) {
+        adjust(file.getOwnerId(), file.getMimeType(), file.getExtension(), file.getSize(), 1);
+    }
+    
+    public void fileDeleted(FileMetadata file) {
+        adjust(file.getOwnerId(), file.getMimeType(), file.getExtension(), -file.getSize(), -1);
+    }
+    
+    /** Same as {@link #fileDeleted} for each file, with one write per counter touched. */
+    public void filesDeleted(Collection<FileMetadata> files) {
+        Map<List<String>, long[]> deltas = new HashMap<>();
+        for (FileMetadata file : files) {
+            String ext = normalizeExtension(file.getExtension());
+            long[] sums = deltas.computeIfAbsent(
+                List.of(file.getOwnerId(), categorize(file.getMimeType(), ext), ext), k -> new long[2]);
+            sums[0] -= file.getSize();
+            sums[1]--;
+        }
+        
+        BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, StorageCount.class);
+        deltas.forEach((counter, sums) -> bulk.upsert(
+            counterQuery(counter.get(0), counter.get(1), counter.get(2)),
+            new Update().inc("bytes", sums[0]).inc("files", sums[1]).inc(CounterSettler.REVISION, 1)));
+        if (!deltas.isEmpty()) {
+            bulk.execute();
+        }
+    }
+    
+    public StorageBreakdown getBreakdown(String ownerId, int extensionLimit) {
+        Map<String, StorageBucket> categories = new HashMap<>();
+        Map<String, StorageBucket> extensions = new HashMap<>();
+        long used = 0;
+        
+        for (StorageCount count : storageCountRepository.findByOwnerId(ownerId)) {
+            if (count.getFiles() <= 0) {
+                continue;
+            }
+            used += count.getBytes();
+            add(categories, count.getCategory(), count);
+            add(extensions, count.getExtension(), count);
+        }
+        
+        int limit = Math.min(Math.max(extensionLimit, 0), MAX_EXTENSIONS);
+        return new StorageBreakdown(used, sorted(categories.values(), categories.size()),
+            sorted(extensions.values(), limit));
+    }
+    
+    /**
+     * Category of a file by MIME type, falling back to the extension for generic types
+     * such as {@code application/octet-stream}.
+     */
+    static String categorize(String mimeType, String extension) {
+        String mime = mimeType != null ? mimeType.toLowerCase(Locale.ROOT) : "";
+        String ext = normalizeExtension(extension);
+        
+        if (mime.startsWith("image/") || IMAGE_EXTENSIONS.contains(ext)) {
+            return IMAGES;
+        }
+        if (mime.startsWith("video/") || VIDEO_EXTENSIONS.contains(ext)) {
+            return VIDEOS;
+        }
+        if (mime.startsWith("audio/") || AUDIO_EXTENSIONS.contains(ext)) {
+            return AUDIO;
+        }
+        if (mime.startsWith("text/") || mime.contains("pdf") || mime.contains("document")
+                || mime.contains("msword") || mime.contains("spreadsheet") || mime.contains("presentation")
+                || DOCUMENT_EXTENSIONS.contains(ext)) {
+            return DOCUMENTS;
+        }
+        if (mime.contains("zip") || mime.contains("rar") || mime.contains("compressed")
+                || mime.endsWith("/x-tar") || ARCHIVE_EXTENSIONS.contains(ext)) {
+            return ARCHIVES;
+        }
+        return OTHER;
+    }
+    
+    /**
+     * Seeds the counters from the files collection the first time the application starts
+     * with this feature; afterwards they are adjusted per file and reconciled nightly.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void backfill() {
+        if (mongoTemplate.exists(new Query(), StorageCount.class)
+                || !mongoTemplate.exists(new Query(), FileMetadata.class)) {
+            return;
+        }
+        Thread backfill = new Thread(this::reconcileOwners, "storage-breakdown-backfill");
+        backfill.setDaemon(true);
+        backfill.start();
+    }
+    
+    @Scheduled(cron = "${storage.breakdown.reconcile-cron:0 15 4 * * *}")
+    public void reconcileAll() {
+        if (reconcileEnabled) {
+            reconcileOwners();
+        }
+    }
+    
+    private void reconcileOwners() {
+        long start = System.nanoTime();
+        List<CompletableFuture<Long>> corrected = new ArrayList<>();
+        Query users = new Query();
+        users.fields().include("_id");
+        try (Stream<User> stream = mongoTemplate.stream(users, User.class)) {
+            for (User user : (Iterable<User>) stream::iterator) {
+                String ownerId = user.getId();
+                try {
+                    corrected.add(reconcile(ownerId).exceptionally(e -> {
+                        log.warn("Storage breakdown reconciliation failed for owner {}: {}", ownerId, e.getMessage());
+                        return 0L;
+                    }));
+                } catch (RuntimeException e) {
+                    log.warn("Storage breakdown reconciliation failed for owner {}: {}", ownerId, e.getMessage());
+                }
+            }
+        }
+        CompletableFuture.allOf(corrected.toArray(CompletableFuture[]::new)).thenRun(() ->
+            log.info("Reconciled storage breakdown counters in {} ms, {} counters corrected",
+                (System.nanoTime() - start) / 1_000_000, corrected.stream().mapToLong(CompletableFuture::join).sum()));
+    }
+    
+    /**
+     * Recounts the owner's counters from the files and rewrites those that differ once
+     * {@link CounterSettler} lets them. A counter that took a delta since it was read is
+     * left for the next run; one created by a delta since then is only ever seeded.
+     *
+     * @return the number of counters corrected, known once the rewrites ran
+     */
+    public CompletableFuture<Long> reconcile(String ownerId) {
+        Map<List<String>, StorageCount> stored = new HashMap<>();
+        for (StorageCount count : storageCountRepository.findByOwnerId(ownerId)) {
+            stored.put(List.of(count.getCategory(), count.getExtension()), count);
+        }
+        
+        Aggregation aggregation = Aggregation.newAggregation(
+            Aggregation.match(Criteria.where("ownerId").is(ownerId)),
+            Aggregation.group("mimeType", "extension").sum("size").as("bytes").count().as("files"));
+        
+        // Several MIME types can land in one category, so fold before comparing
+        Map<List<String>, long[]> actual = new HashMap<>();
+        mongoTemplate.aggregate(aggregation, FileMetadata.class, Document.class).forEach(group -> {
+            Document key = group.get("_id", Document.class);
+            String ext = normalizeExtension(key.getString("extension"));
+            long[] sums = actual.computeIfAbsent(List.of(categorize(key.getString("mimeType"), ext), ext), k -> new long[2]);
+            sums[0] += ((Number) group.get("bytes")).longValue();
+            sums[1] += ((Number) group.get("files")).longValue();
+        });
+        
+        Set<List<String>> drifted = new HashSet<>();
+        stored.forEach((counter, count) -> {
+            long[] sums = {count.getBytes(), count.getFiles()};
+            if (!Arrays.equals(sums, actual.getOrDefault(counter, new long[2]))) {
+                drifted.add(counter);
+            }
+        });
+        actual.keySet().stream().filter(counter -> !stored.containsKey(counter)).forEach(drifted::add);
+        if (drifted.isEmpty()) {
+            return CompletableFuture.completedFuture(0L);
+        }
+        return settler.afterSettle(() -> rewrite(ownerId, drifted, stored, actual));
+    }
+    
+    private long rewrite(String ownerId, Set<List<String>> drifted, Map<List<String>, StorageCount> stored,
+                         Map<List<String>, long[]> actual) {
+        BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, StorageCount.class);
+        for (List<String> counter : drifted) {
+            Query query = counterQuery(ownerId, counter.get(0), counter.get(1));
+            long[] sums = actual.getOrDefault(counter, new long[2]);
+            StorageCount before = stored.get(counter);
+            if (before != null) {
+                query.addCriteria(CounterSettler.unchangedSince(before.getRevision()));
+                bulk.updateOne(query,
+                    new Update().set("bytes", sums[0]).set("files", sums[1]).inc(CounterSettler.REVISION, 1));
+            } else {
+                bulk.upsert(query, new Update().setOnInsert("bytes", sums[0]).setOnInsert("files", sums[1]));
+            }
+        }
+        BulkWriteResult result = bulk.execute();
+        return result.getModifiedCount() + result.getUpserts().size();
+    }
+    
+    private void adjust(String ownerId, String mimeType, String extension, long bytes, long files) {
+        String ext = normalizeExtension(extension);
+        mongoTemplate.upsert(counterQuery(ownerId, categorize(mimeType, ext), ext),
+            new Update().inc("bytes", bytes).inc("files", files).inc(CounterSettler.REVISION, 1), StorageCount.class);
+    }
+    
+    private static Query counterQuery(String ownerId, String category, String extension) {
+        return new Query(Criteria.where("ownerId").is(ownerId).and("category").is(category).and("extension").is(extension));
+    }
+    
+    private static void add(Map<String, StorageBucket> buckets, String name, StorageCount count) {
+        StorageBucket bucket = buckets.computeIfAbsent(name, n -> new StorageBucket(n, 0, 0));
+        bucket.setBytes(bucket.getBytes() + count.getBytes());
+        bucket.setFiles(bucket.getFiles() + count.getFiles());
+    }
+    
+    private static List<StorageBucket> sorted(Collection<StorageBucket> buckets, int limit) {
+        return buckets.stream().sorted(LARGEST_FIRST).limit(limit).toList();
+    }
+    
+    private static String normalizeExtension(String extension) {
+        return extension != null ? extension.toLowerCase(Locale.ROOT) : "";
+    }
+}
@@ -0,0 +1,178 @@
+package com.firebird.service;
+
+import com.firebird.model.FileMetadata;
+import com.firebird.model.PendingRelease;
+import com.firebird.repository.FileMetadataRepository;
+import com.mongodb.client.result.UpdateResult;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Moves blobs between the primary (hot) backend and the compressed cold tier based on
+ * {@code lastAccessedAt}. Files keep resolving through their recorded backend, so
+ * downloads work the same wherever the bytes currently are. The old copy of a moved file
+ * is released only after a delay, recorded as a {@link PendingRelease} so that a restart
+ * neither cuts off running downloads nor leaks the copy.
+ */
+@Slf4j
+@Service
+public class StorageTieringService {
+    
+    private final FileMetadataRepository fileMetadataRepository;
+    private final MongoTemplate mongoTemplate;
+    private final BlobStorageService blobStorageService;
+    // A moved file's old copy outlives the switch, since downloads may still be reading it
+    private static final long RELEASE_DELAY_SECONDS = 300;
+    
+    private final ExecutorService promotionExecutor = Executors.newSingleThreadExecutor();
+    private final Set<String> promotionsInFlight = ConcurrentHashMap.newKeySet();
+    
+    private final boolean enabled;
+    private final long coldAfterDays;
+    private final int batchSize;
+    
+    public StorageTieringService(FileMetadataRepository fileMetadataRepository,
+                                 MongoTemplate mongoTemplate,
+                                 BlobStorageService blobStorageService,
+                                 @Value("${storage.tiering.enabled:false}") boolean enabled,
+                                 @Value("${storage.tiering.cold-after-days:90}") long coldAfterDays,
+                                 @Value("${storage.tiering.batch-size:100}") int batchSize) {
+        this.fileMetadataRepository = fileMetadataRepository;
+        this.mongoTemplate = mongoTemplate;
+        this.blobStorageService = blobStorageService;
+        this.enabled = enabled;
+        this.coldAfterDays = coldAfterDays;
+        this.batchSize = batchSize;
+    }
+    
+    @Scheduled(fixedDelayString = "${storage.tiering.interval-ms:3600000}")
+    public void demoteColdFiles() {
+        if (!enabled) {
+            return;
+        }
+        
+        BlobStore coldStore = blobStorageService.getStore(CompressedBlobStore.NAME);
+        LocalDateTime cutoff = LocalDateTime.now().minusDays(coldAfterDays);
+        PageRequest page = PageRequest.of(0, batchSize, Sort.by("lastAccessedAt", "_id"));
+        
+        int moved = 0;
+        List<FileMetadata> candidates = fileMetadataRepository.findTieringCandidates(CompressedBlobStore.NAME, cutoff, page);
+        while (!candidates.isEmpty()) {
+            for (FileMetadata file : candidates) {
+                if (migrate(file, coldStore)) {
+                    moved++;
+                }
+            }
+            if (candidates.size() < batchSize) {
+                break;
+            }
+            // Continue after the last candidate rather than from the start, so files that failed to move are not retried forever
+            FileMetadata last = candidates.get(candidates.size() - 1);
+            candidates = fileMetadataRepository.findTieringCandidatesAfter(CompressedBlobStore.NAME, cutoff,
+                last.getLastAccessedAt(), new ObjectId(last.getId()), page);
+        }
+        
+        if (moved > 0) {
+            log.info("Moved {} files to the cold tier", moved);
+        }
+    }
+    
+    /**
+     * Schedules a read of a cold file to bring it back to the primary backend.
+     */
+    public void promoteIfCold(FileMetadata file) {
+        if (!CompressedBlobStore.NAME.equals(file.getStorageBackend())) {
+            return;
+        }
+        if (!promotionsInFlight.add(file.getId())) {
+            return;
+        }
+        
+        promotionExecutor.execute(() -> {
+            try {
+                migrate(file, blobStorageService.getPrimary());
+            } finally {
+                promotionsInFlight.remove(file.getId());
+            }
+        });
+    }
+    
+    /**
+     * Drops the old copies of moved files whose grace period is over. Each record is
+     * claimed by removing it first, so a copy is never released twice.
+     */
+    @Scheduled(fixedDelayString = "${storage.tiering.release-interval-ms:60000}")
+    public void releaseDue() {
+        Query due = new Query(Criteria.where("releaseAt").lte(LocalDateTime.now())).with(Sort.by("releaseAt"));
+        PendingRelease pending;
+        while ((pending = mongoTemplate.findAndRemove(due, PendingRelease.class)) != null) {
+            try {
+                blobStorageService.getStore(pending.getBackend()).release(pending.getBlobId());
+            } catch (RuntimeException e) {
+                log.warn("Failed to release blob {} in {}", pending.getBlobId(), pending.getBackend(), e);
+            }
+        }
+    }
+    
+    @PreDestroy
+    public void shutdown() {
+        promotionExecutor.shutdownNow();
+    }
+    
+    private boolean migrate(FileMetadata file, BlobStore target) {
+        BlobStore source = blobStorageService.getStore(file.getStorageBackend());
+        if (source == target) {
+            return false;
+        }
+        
+        StoredBlob stored;
+        try {
+            Resource resource = source.open(file.getGridFsId());
+            try (InputStream in = resource.getInputStream()) {
+                stored = target.store(in, file.getName(), file.getMimeType(), file.getSize());
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("Failed to move file {} from {} to {}", file.getId(), source.getName(), target.getName(), e);
+            return false;
+        }
+        
+        // Only switch the file over if nothing else re-pointed or removed it while we were copying
+        Query query = new Query(Criteria.where("_id").is(file.getId())
+            .and("gridFsId").is(file.getGridFsId())
+            .and("storageBackend").is(file.getStorageBackend()));
+        Update update = new Update()
+            .set("storageBackend", target.getName())
+            .set("gridFsId", stored.id())
+            .set("storedSize", stored.storedSize());
+        UpdateResult result = mongoTemplate.updateFirst(query, update, FileMetadata.class);
+        
+        if (result.getModifiedCount() == 0) {
+            target.release(stored.id());
+            return false;
+        }
+        
+        mongoTemplate.insert(new PendingRelease(null, source.getName(), file.getGridFsId(),
+            LocalDateTime.now().plusSeconds(RELEASE_DELAY_SECONDS)));
+        return true;
+    }
+}
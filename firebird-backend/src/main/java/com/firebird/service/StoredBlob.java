@@ -0,0 +1,8 @@
+package com.firebird.service;
+
+/**
+ * Result of writing a blob: its id in the backend and the bytes it occupies there,
+ * which differs from the content length when the backend compresses.
+ */
+public record StoredBlob(String id, long storedSize) {
+}
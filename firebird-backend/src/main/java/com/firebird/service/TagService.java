@@ -0,0 +1,286 @@
+package com.firebird.service;
+
+import com.firebird.dto.CursorPage;
+import com.firebird.dto.FileListItem;
+import com.firebird.dto.TagFacet;
+import com.firebird.dto.TaggedFiles;
+import com.firebird.model.FileMetadata;
+import com.firebird.model.TagCount;
+import com.firebird.model.User;
+import com.firebird.repository.FileMetadataRepository;
+import com.firebird.repository.TagCountRepository;
+import com.mongodb.bulk.BulkWriteResult;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+/**
+ * File tags and tag-faceted browsing. Drive-wide tag counts come from the maintained
+ * {@code tag_counts} collection; filtered facets aggregate over the matches, which the
+ * multikey {@code tag_facets} index narrows to the files carrying the selected tags.
+ * The counts are reconciled against the files nightly through {@link CounterSettler}.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class TagService {
+    
+    private static final int MAX_TAG_LENGTH = 64;
+    private static final Sort FACET_SORT = Sort.by(Sort.Direction.DESC, "count").and(Sort.by("tag"));
+    
+    private final MongoTemplate mongoTemplate;
+    private final FileMetadataRepository fileMetadataRepository;
+    private final TagCountRepository tagCountRepository;
+    private final CounterSettler settler;
+    
+    @Value("${tags.reconcile-enabled:true}")
+    private boolean reconcileEnabled;
+    
+    public FileMetadata addTag(String fileId, String tag, String userId) {
+        FileMetadata file = getOwnedFile(fileId, userId);
+        String normalized = normalize(tag);
+        
+        // Conditional on the tag being absent, so concurrent adds move the counter only once
+        Query query = new Query(Criteria.where("_id").is(fileId).and("tags").ne(normalized));
+        FileMetadata updated = mongoTemplate.findAndModify(query, new Update().push("tags", normalized),
+            FindAndModifyOptions.options().returnNew(true), FileMetadata.class);
+        if (updated == null) {
+            return file;
+        }
+        
+        if (!updated.isTrashed()) {
+            adjustCount(userId, normalized, 1);
+        }
+        return updated;
+    }
+    
+    public FileMetadata removeTag(String fileId, String tag, String userId) {
+        FileMetadata file = getOwnedFile(fileId, userId);
+        String normalized = normalize(tag);
+        
+        Query query = new Query(Criteria.where("_id").is(fileId).and("tags").is(normalized));
+        FileMetadata updated = mongoTemplate.findAndModify(query, new Update().pull("tags", normalized),
+            FindAndModifyOptions.options().returnNew(true), FileMetadata.class);
+        if (updated == null) {
+            return file;
+        }
+        
+        if (!updated.isTrashed()) {
+            adjustCount(userId, normalized, -1);
+        }
+        return updated;
+    }
+    
+    /**
+     * Takes a file's tags out of the counts when it leaves the drive (trash or delete).
+     */
+    public void releaseTags(FileMetadata file) {
+        releaseTags(file.getOwnerId(), List.of(file));
+    }
+    
+    public void releaseTags(String ownerId, Collection<FileMetadata> files) {
+        adjustCounts(ownerId, files, -1);
+    }
+    
+    /**
+     * Puts restored files' tags back into the counts.
+     */
+    public void restoreTags(String ownerId, Collection<FileMetadata> files) {
+        adjustCounts(ownerId, files, 1);
+    }
+    
+    public List<TagFacet> listTags(String userId) {
+        return tagCountRepository.findByOwnerIdAndCountGreaterThan(userId, 0, FACET_SORT).stream()
+            .map(count -> new TagFacet(count.getTag(), count.getCount()))
+            .toList();
+    }
+    
+    /**
+     * Files carrying every one of {@code tags}, optionally limited to one folder, one
+     * keyset page at a time, plus per-tag counts across all of them.
+     */
+    public TaggedFiles findTagged(String userId, List<String> tags, String folderId, String cursor, int limit) {
+        Criteria matches = Criteria.where("ownerId").is(userId).and("trashed").is(false);
+        if (tags != null && !tags.isEmpty()) {
+            matches.and("tags").all(tags.stream().map(TagService::normalize).toList());
+        }
+        if (folderId != null) {
+            matches.and("folderId").is(folderId);
+        }
+        
+        Query query = new Query(matches).with(PageCursor.SORT).limit(PageCursor.fetchLimit(limit));
+        if (cursor != null) {
+            PageCursor after = PageCursor.decode(cursor);
+            query.addCriteria(new Criteria().orOperator(
+                Criteria.where("name").gt(after.name()),
+                Criteria.where("name").is(after.name()).and("_id").gt(after.id())));
+        }
+        
+        List<FileListItem> fetched = mongoTemplate.query(FileMetadata.class)
+            .as(FileListItem.class)
+            .matching(query)
+            .all();
+        CursorPage<FileListItem> page = PageCursor.page(fetched, limit, FileListItem::getName, FileListItem::getId);
+        
+        List<TagFacet> facets = null;
+        if (cursor == null) {
+            boolean wholeDrive = (tags == null || tags.isEmpty()) && folderId == null;
+            facets = wholeDrive ? listTags(userId) : aggregateFacets(matches);
+        }
+        
+        return new TaggedFiles(page.getItems(), page.getNextCursor(), facets);
+    }
+    
+    @Scheduled(cron = "${tags.reconcile-cron:0 45 3 * * *}")
+    public void reconcileAll() {
+        if (!reconcileEnabled) {
+            return;
+        }
+        
+        long start = System.nanoTime();
+        List<CompletableFuture<Long>> corrected = new ArrayList<>();
+        Query users = new Query();
+        users.fields().include("_id");
+        try (Stream<User> stream = mongoTemplate.stream(users, User.class)) {
+            for (User user : (Iterable<User>) stream::iterator) {
+                String ownerId = user.getId();
+                try {
+                    corrected.add(reconcile(ownerId).exceptionally(e -> {
+                        log.warn("Tag count reconciliation failed for owner {}: {}", ownerId, e.getMessage());
+                        return 0L;
+                    }));
+                } catch (RuntimeException e) {
+                    log.warn("Tag count reconciliation failed for owner {}: {}", ownerId, e.getMessage());
+                }
+            }
+        }
+        CompletableFuture.allOf(corrected.toArray(CompletableFuture[]::new)).thenRun(() ->
+            log.info("Reconciled tag counts in {} ms, {} counts corrected", (System.nanoTime() - start) / 1_000_000,
+                corrected.stream().mapToLong(CompletableFuture::join).sum()));
+    }
+    
+    /**
+     * Recounts the owner's tags from the files and rewrites the counts that differ once
+     * {@link CounterSettler} lets them. A count that took a delta since it was read is
+     * left for the next run.
+     *
+     * @return the number of counts corrected, known once the rewrites ran
+     */
+    public CompletableFuture<Long> reconcile(String ownerId) {
+        Map<String, TagCount> stored = new HashMap<>();
+        tagCountRepository.findByOwnerId(ownerId).forEach(count -> stored.put(count.getTag(), count));
+        
+        Map<String, Long> actual = new HashMap<>();
+        Aggregation recount = Aggregation.newAggregation(
+            Aggregation.match(Criteria.where("ownerId").is(ownerId).and("trashed").is(false).and("tags.0").exists(true)),
+            Aggregation.project("tags"),
+            Aggregation.unwind("tags"),
+            Aggregation.group("tags").count().as("count"));
+        mongoTemplate.aggregate(recount, FileMetadata.class, Document.class).forEach(row ->
+            actual.put(row.getString("_id"), ((Number) row.get("count")).longValue()));
+        
+        Set<String> drifted = new HashSet<>();
+        stored.forEach((tag, count) -> {
+            if (count.getCount() != actual.getOrDefault(tag, 0L)) {
+                drifted.add(tag);
+            }
+        });
+        actual.keySet().stream().filter(tag -> !stored.containsKey(tag)).forEach(drifted::add);
+        if (drifted.isEmpty()) {
+            return CompletableFuture.completedFuture(0L);
+        }
+        return settler.afterSettle(() -> rewrite(ownerId, drifted, stored, actual));
+    }
+    
+    private long rewrite(String ownerId, Set<String> drifted, Map<String, TagCount> stored, Map<String, Long> actual) {
+        BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, TagCount.class);
+        for (String tag : drifted) {
+            Criteria counter = Criteria.where("ownerId").is(ownerId).and("tag").is(tag);
+            long count = actual.getOrDefault(tag, 0L);
+            if (stored.containsKey(tag)) {
+                Criteria unchanged = CounterSettler.unchangedSince(stored.get(tag).getRevision());
+                bulk.updateOne(new Query(counter.andOperator(unchanged)),
+                    new Update().set("count", count).inc(CounterSettler.REVISION, 1));
+            } else {
+                // Created by a delta since the snapshot: leave it for the next run
+                bulk.upsert(new Query(counter), new Update().setOnInsert("count", count));
+            }
+        }
+        BulkWriteResult result = bulk.execute();
+        return result.getModifiedCount() + result.getUpserts().size();
+    }
+    
+    private List<TagFacet> aggregateFacets(Criteria matches) {
+        Aggregation aggregation = Aggregation.newAggregation(
+            Aggregation.match(matches),
+            Aggregation.project("tags"),
+            Aggregation.unwind("tags"),
+            Aggregation.group("tags").count().as("count"),
+            Aggregation.project("count").and("tag").previousOperation(),
+            Aggregation.sort(FACET_SORT));
+        
+        return mongoTemplate.aggregate(aggregation, FileMetadata.class, TagFacet.class).getMappedResults();
+    }
+    
+    private void adjustCounts(String ownerId, Collection<FileMetadata> files, long sign) {
+        Map<String, Long> deltas = new HashMap<>();
+        files.forEach(file -> file.getTags().forEach(tag -> deltas.merge(tag, sign, Long::sum)));
+        if (deltas.isEmpty()) {
+            return;
+        }
+        
+        BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, TagCount.class);
+        deltas.forEach((tag, delta) -> bulk.upsert(
+            new Query(Criteria.where("ownerId").is(ownerId).and("tag").is(tag)),
+            new Update().inc("count", delta).inc(CounterSettler.REVISION, 1)));
+        bulk.execute();
+    }
+    
+    private void adjustCount(String ownerId, String tag, long delta) {
+        Query query = new Query(Criteria.where("ownerId").is(ownerId).and("tag").is(tag));
+        mongoTemplate.upsert(query, new Update().inc("count", delta).inc(CounterSettler.REVISION, 1), TagCount.class);
+    }
+    
+    private FileMetadata getOwnedFile(String fileId, String userId) {
+        FileMetadata file = fileMetadataRepository.findById(fileId)
+            .orElseThrow(() -> new RuntimeException("File not found"));
+        
+        if (!file.getOwnerId().equals(userId)) {
+            throw new RuntimeException("Access denied");
+        }
+        
+        return file;
+    }
+    
+    private static String normalize(String tag) {
+        String trimmed = tag == null ? "" : tag.trim();
+        if (trimmed.isEmpty()) {
+            throw new RuntimeException("Tag must not be empty");
+        }
+        if (trimmed.length() > MAX_TAG_LENGTH) {
+            throw new RuntimeException("Tag must be at most " + MAX_TAG_LENGTH + " characters");
+        }
+        return trimmed;
+    }
+}
@@ -0,0 +1,256 @@
+package com.firebird.service;
+
+import com.firebird.dto.TrashPurgeStatus;
+import com.firebird.model.FileMetadata;
+import com.firebird.model.Folder;
+import com.firebird.repository.FileMetadataRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Permanently deletes files that have sat in the trash longer than the retention period.
+ * A background worker visits every owner with expired trash and works through their
+ * files in batches: each file is claimed by removing its metadata, only then is its blob
+ * released, and the owner's {@code storageUsed} drops by the batch total in one
+ * {@code $inc}. A file restored or deleted by hand in the meantime simply fails the
+ * claim, so nothing is counted twice. A crash between claim and release leaves an
+ * unreferenced blob behind rather than a file without content. Expired trashed folders
+ * are removed after the files, for every owner that has any.
+ * <p>
+ * Deletes are paced to {@code max-files-per-second} so a large backlog does not compete
+ * with user traffic, and the worker can be paused between batches.
+ */
+@Slf4j
+@Service
+public class TrashPurgeService {
+    
+    private final MongoTemplate mongoTemplate;
+    private final FileMetadataRepository fileMetadataRepository;
+    private final BlobStorageService blobStorageService;
+    private final QuotaService quotaService;
+    private final StorageBreakdownService storageBreakdownService;
+    private final Counter purgedFilesCounter;
+    private final Counter purgedBytesCounter;
+    private final Counter failedCounter;
+    private final Timer batchTimer;
+    
+    private final boolean enabled;
+    private final long retentionDays;
+    private final int batchSize;
+    private final long intervalMs;
+    private final long nanosPerFile;
+    
+    private final AtomicLong backlog = new AtomicLong();
+    private volatile boolean paused;
+    private volatile boolean running;
+    private volatile LocalDateTime lastPassStartedAt;
+    private volatile LocalDateTime lastPassFinishedAt;
+    
+    private ScheduledExecutorService purger;
+    
+    public TrashPurgeService(MongoTemplate mongoTemplate,
+                             FileMetadataRepository fileMetadataRepository,
+                             BlobStorageService blobStorageService,
+                             QuotaService quotaService,
+                             StorageBreakdownService storageBreakdownService,
+                             MeterRegistry meterRegistry,
+                             @Value("${storage.trash.purge.enabled:true}") boolean enabled,
+                             @Value("${storage.trash.retention-days:30}") long retentionDays,
+                             @Value("${storage.trash.purge.batch-size:100}") int batchSize,
+                             @Value("${storage.trash.purge.interval-ms:600000}") long intervalMs,
+                             @Value("${storage.trash.purge.max-files-per-second:50}") double maxFilesPerSecond) {
+        this.mongoTemplate = mongoTemplate;
+        this.fileMetadataRepository = fileMetadataRepository;
+        this.blobStorageService = blobStorageService;
+        this.quotaService = quotaService;
+        this.storageBreakdownService = storageBreakdownService;
+        this.enabled = enabled;
+        this.retentionDays = retentionDays;
+        this.batchSize = batchSize;
+        this.intervalMs = intervalMs;
+        this.nanosPerFile = maxFilesPerSecond > 0 ? (long) (1_000_000_000L / maxFilesPerSecond) : 0;
+        this.purgedFilesCounter = Counter.builder("firebird.trash.purge.files")
+            .description("Expired trash files deleted permanently")
+            .register(meterRegistry);
+        this.purgedBytesCounter = Counter.builder("firebird.trash.purge.bytes")
+            .description("Bytes freed by deleting expired trash")
+            .baseUnit("bytes")
+            .register(meterRegistry);
+        this.failedCounter = Counter.builder("firebird.trash.purge.failed")
+            .description("Expired trash files whose blob could not be released")
+            .register(meterRegistry);
+        this.batchTimer = Timer.builder("firebird.trash.purge.batch")
+            .description("Time to purge one batch of expired trash, pacing excluded")
+            .register(meterRegistry);
+        Gauge.builder("firebird.trash.purge.backlog", backlog, AtomicLong::get)
+            .description("Expired trash files waiting to be purged")
+            .register(meterRegistry);
+        Gauge.builder("firebird.trash.purge.paused", this, purge -> purge.paused ? 1 : 0)
+            .description("1 while the trash purge is paused")
+            .register(meterRegistry);
+    }
+    
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        purger = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "trash-purger");
+            thread.setDaemon(true);
+            return thread;
+        });
+        purger.scheduleWithFixedDelay(this::purgeExpired, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+    
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        if (purger != null) {
+            // The pass stops at its next batch boundary
+            paused = true;
+            purger.shutdownNow();
+            purger.awaitTermination(30, TimeUnit.SECONDS);
+        }
+    }
+    
+    /** Stops the worker after its current batch; passes are skipped until {@link #resume}. */
+    public void pause() {
+        paused = true;
+        log.info("Trash purge paused");
+    }
+    
+    public void resume() {
+        paused = false;
+        log.info("Trash purge resumed");
+        if (purger != null && !running) {
+            purger.execute(this::purgeExpired);
+        }
+    }
+    
+    public TrashPurgeStatus getStatus() {
+        return new TrashPurgeStatus(enabled, paused, running, retentionDays, backlog.get(),
+            (long) purgedFilesCounter.count(), (long) purgedBytesCounter.count(),
+            lastPassStartedAt, lastPassFinishedAt);
+    }
+    
+    public void purgeExpired() {
+        if (paused || running) {
+            return;
+        }
+        running = true;
+        lastPassStartedAt = LocalDateTime.now();
+        try {
+            LocalDateTime cutoff = lastPassStartedAt.minusDays(retentionDays);
+            Query expired = new Query(Criteria.where("trashed").is(true).and("trashedAt").lt(cutoff));
+            backlog.set(mongoTemplate.count(expired, FileMetadata.class));
+            
+            long purged = 0;
+            for (String ownerId : mongoTemplate.findDistinct(expired, "ownerId", FileMetadata.class, String.class)) {
+                if (paused) {
+                    break;
+                }
+                purged += purgeOwner(ownerId, cutoff);
+            }
+            
+            // Folders hold no content, so they go in one delete per owner once the files are done.
+            // Owners are looked up separately, since some have only folders left in the trash.
+            long folders = 0;
+            for (String ownerId : mongoTemplate.findDistinct(expired, "ownerId", Folder.class, String.class)) {
+                if (paused) {
+                    break;
+                }
+                folders += mongoTemplate.remove(new Query(Criteria.where("ownerId").is(ownerId)
+                    .and("trashed").is(true).and("trashedAt").lt(cutoff)), Folder.class).getDeletedCount();
+            }
+            
+            if (purged > 0 || folders > 0) {
+                log.info("Purged {} expired trash files and {} folders", purged, folders);
+            }
+        } catch (RuntimeException e) {
+            log.error("Trash purge pass failed", e);
+        } finally {
+            lastPassFinishedAt = LocalDateTime.now();
+            running = false;
+        }
+    }
+    
+    private long purgeOwner(String ownerId, LocalDateTime cutoff) {
+        long purged = 0;
+        int fetched;
+        do {
+            long start = System.nanoTime();
+            // Purged files drop out of the query, so the first page is always the next batch
+            List<FileMetadata> batch =
+                fileMetadataRepository.findFilesForPermanentDeletion(ownerId, cutoff, Limit.of(batchSize));
+            fetched = batch.size();
+            purged += batchTimer.record(() -> purgeBatch(ownerId, cutoff, batch));
+            pace(start, fetched);
+        } while (fetched == batchSize && !paused);
+        return purged;
+    }
+    
+    private int purgeBatch(String ownerId, LocalDateTime cutoff, List<FileMetadata> batch) {
+        List<FileMetadata> claimed = new ArrayList<>(batch.size());
+        long bytes = 0;
+        
+        for (FileMetadata file : batch) {
+            // Claim the file by deleting it, unless it was restored or deleted since it was read
+            Query query = new Query(Criteria.where("_id").is(file.getId())
+                .and("trashed").is(true).and("trashedAt").lt(cutoff));
+            if (mongoTemplate.remove(query, FileMetadata.class).getDeletedCount() == 0) {
+                continue;
+            }
+            claimed.add(file);
+            bytes += file.getSize();
+            
+            try {
+                blobStorageService.getStore(file.getStorageBackend()).release(file.getGridFsId());
+            } catch (RuntimeException e) {
+                failedCounter.increment();
+                log.warn("Failed to release blob {} of purged file {}", file.getGridFsId(), file.getId(), e);
+            }
+        }
+        
+        if (!claimed.isEmpty()) {
+            quotaService.addUsage(ownerId, -bytes);
+            storageBreakdownService.filesDeleted(claimed);
+            purgedFilesCounter.increment(claimed.size());
+            purgedBytesCounter.increment(bytes);
+        }
+        backlog.updateAndGet(remaining -> Math.max(0, remaining - batch.size()));
+        return claimed.size();
+    }
+    
+    /** Sleeps off whatever is left of the time budget for {@code files} deletes. */
+    private void pace(long startNanos, int files) {
+        long remaining = startNanos + files * nanosPerFile - System.nanoTime();
+        if (remaining <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(remaining);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            paused = true;
+        }
+    }
+}
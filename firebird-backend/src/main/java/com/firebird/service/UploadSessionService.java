@@ -0,0 +1,252 @@
+package com.firebird.service;
+
+import com.firebird.model.FileMetadata;
+import com.firebird.model.UploadSession;
+import com.firebird.repository.UploadSessionRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * Resumable uploads: a session pre-allocates a GridFS id and every part is written
+ * straight into {@code fs.chunks} under that id as it arrives. Parts are aligned to
+ * the GridFS chunk size, so committing only has to insert the {@code fs.files} entry.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class UploadSessionService {
+    
+    private static final long DEFAULT_PART_SIZE = 8L * 1024 * 1024;
+    
+    // A commit is two inserts; one still claimed after this long was cut short
+    private static final Duration COMMIT_TIMEOUT = Duration.ofHours(1);
+    
+    private final UploadSessionRepository uploadSessionRepository;
+    private final MongoTemplate mongoTemplate;
+    private final GridFSService gridFSService;
+    private final FileService fileService;
+    private final QuotaService quotaService;
+    private final ChunkSizePolicy chunkSizePolicy;
+    
+    @Value("${storage.upload-session.ttl-hours:24}")
+    private long sessionTtlHours;
+    
+    public UploadSession openSession(String fileName, String contentType, long totalSize, Long partSize,
+                                     String folderId, String userId) {
+        if (totalSize <= 0) {
+            throw new RuntimeException("File size must be positive");
+        }
+        
+        QuotaService.Reservation reservation = quotaService.reserve(userId, totalSize, Duration.ofHours(sessionTtlHours));
+        
+        int chunkSize = chunkSizePolicy.chunkSizeFor(totalSize);
+        long requested = partSize != null ? partSize : DEFAULT_PART_SIZE;
+        long alignedPartSize = Math.max(1, requested / chunkSize) * chunkSize;
+        long partCount = (totalSize + alignedPartSize - 1) / alignedPartSize;
+        
+        UploadSession session = new UploadSession();
+        session.setOwnerId(userId);
+        session.setFolderId(folderId);
+        session.setFileName(fileName);
+        session.setContentType(contentType);
+        session.setGridFsId(new ObjectId().toHexString());
+        session.setReservationId(reservation.id());
+        session.setTotalSize(totalSize);
+        session.setChunkSize(chunkSize);
+        session.setPartSize(alignedPartSize);
+        session.setPartCount((int) partCount);
+        session.setExpiresAt(LocalDateTime.now().plusHours(sessionTtlHours));
+        
+        try {
+            return uploadSessionRepository.save(session);
+        } catch (RuntimeException e) {
+            quotaService.release(reservation);
+            throw e;
+        }
+    }
+    
+    public UploadSession getSession(String sessionId, String userId) {
+        UploadSession session = uploadSessionRepository.findById(sessionId)
+            .orElseThrow(() -> new RuntimeException("Upload session not found"));
+        
+        if (!session.getOwnerId().equals(userId)) {
+            throw new RuntimeException("Access denied");
+        }
+        
+        return session;
+    }
+    
+    public UploadSession uploadPart(String sessionId, int partNumber, InputStream inputStream,
+                                    String userId) throws IOException {
+        UploadSession session = getSession(sessionId, userId);
+        
+        if (!"OPEN".equals(session.getStatus())) {
+            throw new RuntimeException("Upload session is not open");
+        }
+        if (partNumber < 0 || partNumber >= session.getPartCount()) {
+            throw new RuntimeException("Invalid part number: " + partNumber);
+        }
+        
+        long expectedSize = expectedPartSize(session, partNumber);
+        int chunksPerPart = (int) (session.getPartSize() / session.getChunkSize());
+        
+        InputStream bounded = new BoundedInputStream(inputStream, expectedSize);
+        long written = gridFSService.writeChunks(session.getGridFsId(), session.getChunkSize(),
+                                                 partNumber * chunksPerPart, bounded);
+        
+        if (written != expectedSize || inputStream.read() != -1) {
+            throw new RuntimeException("Part " + partNumber + " must be exactly " + expectedSize + " bytes");
+        }
+        
+        // Parts may arrive in parallel, so record them with an atomic $addToSet
+        Query query = new Query(Criteria.where("_id").is(sessionId));
+        Update update = new Update()
+            .addToSet("receivedParts", partNumber)
+            .set("expiresAt", LocalDateTime.now().plusHours(sessionTtlHours));
+        
+        UploadSession updated = mongoTemplate.findAndModify(query, update,
+            FindAndModifyOptions.options().returnNew(true), UploadSession.class);
+        
+        // The reservation lives as long as the session does
+        QuotaService.Reservation reservation = reservationOf(session);
+        if (reservation != null) {
+            quotaService.extend(reservation, Duration.ofHours(sessionTtlHours));
+        }
+        return updated;
+    }
+    
+    public FileMetadata commit(String sessionId, String userId) {
+        UploadSession session = getSession(sessionId, userId);
+        
+        if (session.getReceivedParts().size() != session.getPartCount()) {
+            throw new RuntimeException("Upload incomplete: received " + session.getReceivedParts().size()
+                + " of " + session.getPartCount() + " parts");
+        }
+        
+        // Guard against two concurrent commits of the same session. The claim expires, so
+        // the cleanup job finds it if this instance dies before the commit finishes.
+        Query query = new Query(Criteria.where("_id").is(sessionId).and("status").is("OPEN"));
+        UploadSession claimed = mongoTemplate.findAndModify(query,
+            new Update().set("status", "COMMITTING").set("expiresAt", LocalDateTime.now().plus(COMMIT_TIMEOUT)),
+            UploadSession.class);
+        if (claimed == null) {
+            throw new RuntimeException("Upload session is already being committed");
+        }
+        
+        QuotaService.Reservation reservation = reservationOf(session);
+        if (reservation == null) {
+            // Opened before sessions reserved quota up front
+            try {
+                reservation = fileService.reserveQuota(userId, session.getTotalSize());
+            } catch (RuntimeException e) {
+                reopen(sessionId);
+                throw e;
+            }
+        }
+        
+        FileMetadata file;
+        try {
+            gridFSService.finalizeFile(session.getGridFsId(), session.getFileName(), session.getContentType(),
+                                       session.getTotalSize(), session.getChunkSize());
+            file = fileService.completeUpload(reservation, session.getFolderId(), session.getFileName(),
+                                              session.getContentType(), session.getGridFsId());
+        } catch (RuntimeException e) {
+            // Past the metadata save the file exists and points at the finalized blob, so the
+            // commit stands; the totals that missed their update are repaired by reconciliation
+            FileMetadata saved = mongoTemplate.findOne(new Query(Criteria.where("gridFsId").is(session.getGridFsId())),
+                FileMetadata.class);
+            if (saved != null) {
+                log.warn("Upload session {} committed as file {} but a follow-up step failed", sessionId, saved.getId(), e);
+                uploadSessionRepository.deleteById(sessionId);
+                return saved;
+            }
+            // The parts stay, so the client can fix the cause and commit again
+            gridFSService.deleteFileEntry(session.getGridFsId());
+            if (session.getReservationId() == null) {
+                quotaService.release(reservation);
+            }
+            reopen(sessionId);
+            throw e;
+        }
+        
+        uploadSessionRepository.deleteById(sessionId);
+        return file;
+    }
+    
+    private void reopen(String sessionId) {
+        mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(sessionId)),
+            new Update().set("status", "OPEN").set("expiresAt", LocalDateTime.now().plusHours(sessionTtlHours)),
+            UploadSession.class);
+    }
+    
+    public void abort(String sessionId, String userId) {
+        UploadSession session = getSession(sessionId, userId);
+        
+        if (!"OPEN".equals(session.getStatus())) {
+            throw new RuntimeException("Upload session is being committed");
+        }
+        
+        gridFSService.deleteChunks(session.getGridFsId());
+        releaseReservation(session);
+        uploadSessionRepository.delete(session);
+    }
+    
+    /**
+     * Removes sessions past their expiry: open ones that were abandoned, and commits that
+     * never finished because their instance went down. Such a commit may have saved the
+     * file before dying, in which case only the session is left to remove.
+     */
+    @Scheduled(fixedDelayString = "${storage.upload-session.cleanup-interval-ms:3600000}")
+    public void cleanupExpiredSessions() {
+        List<UploadSession> expired = uploadSessionRepository.findByExpiresAtBefore(LocalDateTime.now());
+        for (UploadSession session : expired) {
+            if ("COMMITTING".equals(session.getStatus())
+                    && mongoTemplate.exists(new Query(Criteria.where("gridFsId").is(session.getGridFsId())),
+                        FileMetadata.class)) {
+                uploadSessionRepository.delete(session);
+                continue;
+            }
+            gridFSService.deleteFileEntry(session.getGridFsId());
+            gridFSService.deleteChunks(session.getGridFsId());
+            releaseReservation(session);
+            uploadSessionRepository.delete(session);
+        }
+        
+        if (!expired.isEmpty()) {
+            log.debug("Removed {} expired upload sessions", expired.size());
+        }
+    }
+    
+    private static QuotaService.Reservation reservationOf(UploadSession session) {
+        return session.getReservationId() != null
+            ? new QuotaService.Reservation(session.getOwnerId(), session.getReservationId(), session.getTotalSize())
+            : null;
+    }
+    
+    private void releaseReservation(UploadSession session) {
+        QuotaService.Reservation reservation = reservationOf(session);
+        if (reservation != null) {
+            quotaService.release(reservation);
+        }
+    }
+    
+    private long expectedPartSize(UploadSession session, int partNumber) {
+        long offset = partNumber * session.getPartSize();
+        return Math.min(session.getPartSize(), session.getTotalSize() - offset);
+    }
+}
@@ -0,0 +1,41 @@
+package com.firebird.benchmark;
+
+import java.io.InputStream;
+import java.util.SplittableRandom;
+
+/**
+ * Incompressible pseudo-random content of a fixed length, generated on the fly so
+ * benchmarks can upload multi-GB files without holding them in memory.
+ */
+class BenchmarkData extends InputStream {
+    
+    private final SplittableRandom random;
+    private long remaining;
+    
+    BenchmarkData(long length, long seed) {
+        this.random = new SplittableRandom(seed);
+        this.remaining = length;
+    }
+    
+    @Override
+    public int read() {
+        if (remaining <= 0) {
+            return -1;
+        }
+        remaining--;
+        return random.nextInt(256);
+    }
+    
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (remaining <= 0) {
+            return -1;
+        }
+        int count = (int) Math.min(len, remaining);
+        for (int i = 0; i < count; i++) {
+            b[off + i] = (byte) random.nextInt(256);
+        }
+        remaining -= count;
+        return count;
+    }
+}
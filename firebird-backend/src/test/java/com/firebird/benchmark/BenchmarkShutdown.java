@@ -0,0 +1,28 @@
+package com.firebird.benchmark;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.CommandLineRunner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+/**
+ * Stops the application once every benchmark runner has finished; the scheduler
+ * threads would otherwise keep a non-web context alive.
+ */
+@Component
+@Profile("benchmark")
+@Order(Ordered.LOWEST_PRECEDENCE)
+@RequiredArgsConstructor
+public class BenchmarkShutdown implements CommandLineRunner {
+    
+    private final ConfigurableApplicationContext context;
+    
+    @Override
+    public void run(String... args) {
+        System.exit(SpringApplication.exit(context, () -> 0));
+    }
+}
@@ -0,0 +1,76 @@
+package com.firebird.benchmark;
+
+import com.firebird.service.GridFSService;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.CommandLineRunner;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.mongodb.gridfs.GridFsTemplate;
+import org.springframework.data.mongodb.gridfs.GridFsUpload;
+import org.springframework.stereotype.Component;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Measures GridFS upload and download throughput for each combination of chunk size
+ * and file size, against the MongoDB instance configured for the application. Run with
+ * {@code mvn spring-boot:test-run -Dspring-boot.run.profiles=benchmark,benchmark-chunks}.
+ */
+@Slf4j
+@Component
+@Profile("benchmark-chunks")
+@RequiredArgsConstructor
+public class ChunkSizeBenchmark implements CommandLineRunner {
+    
+    private final GridFsTemplate gridFsTemplate;
+    private final GridFSService gridFSService;
+    
+    @Value("${benchmark.chunk-sizes}")
+    private List<Integer> chunkSizes;
+    
+    @Value("${benchmark.file-sizes}")
+    private List<Long> fileSizes;
+    
+    @Value("${benchmark.iterations:3}")
+    private int iterations;
+    
+    @Override
+    public void run(String... args) throws Exception {
+        log.info(String.format("%12s %12s %14s %14s", "file size", "chunk size", "upload MB/s", "download MB/s"));
+        
+        for (long fileSize : fileSizes) {
+            for (int chunkSize : chunkSizes) {
+                double uploadRate = 0;
+                double downloadRate = 0;
+                
+                for (int i = 0; i < iterations; i++) {
+                    long start = System.nanoTime();
+                    ObjectId id = gridFsTemplate.store(GridFsUpload.fromStream(new BenchmarkData(fileSize, i))
+                        .filename("benchmark-" + fileSize + "-" + chunkSize)
+                        .chunkSize(chunkSize)
+                        .build());
+                    uploadRate += megabytesPerSecond(fileSize, System.nanoTime() - start);
+                    
+                    start = System.nanoTime();
+                    try (InputStream in = gridFSService.openResource(id.toHexString()).getInputStream()) {
+                        in.transferTo(OutputStream.nullOutputStream());
+                    }
+                    downloadRate += megabytesPerSecond(fileSize, System.nanoTime() - start);
+                    
+                    gridFSService.deleteFile(id.toHexString());
+                }
+                
+                log.info(String.format("%12d %12d %14.1f %14.1f",
+                    fileSize, chunkSize, uploadRate / iterations, downloadRate / iterations));
+            }
+        }
+    }
+    
+    static double megabytesPerSecond(long bytes, long nanos) {
+        return (bytes / (1024.0 * 1024.0)) / (nanos / 1_000_000_000.0);
+    }
+}
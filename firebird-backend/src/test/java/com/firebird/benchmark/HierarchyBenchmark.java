@@ -0,0 +1,185 @@
+package com.firebird.benchmark;
+
+import com.firebird.model.Activity;
+import com.firebird.model.Folder;
+import com.firebird.service.FolderService;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.CommandLineRunner;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Seeds a synthetic folder tree (one million folders by default) and times create,
+ * rename, move, subtree and breadcrumb operations through {@link FolderService}. The
+ * tree and its activity entries are removed afterwards. Run with
+ * {@code mvn spring-boot:test-run -Dspring-boot.run.profiles=benchmark,benchmark-hierarchy}.
+ */
+@Slf4j
+@Component
+@Profile("benchmark-hierarchy")
+@RequiredArgsConstructor
+public class HierarchyBenchmark implements CommandLineRunner {
+    
+    private static final int INSERT_BATCH_SIZE = 10_000;
+    private static final int SAMPLES_PER_DEPTH = 1000;
+    
+    private final FolderService folderService;
+    private final MongoTemplate mongoTemplate;
+    
+    @Value("${benchmark.hierarchy.folders:1000000}")
+    private int folderCount;
+    
+    @Value("${benchmark.hierarchy.fan-out:10}")
+    private int fanOut;
+    
+    @Value("${benchmark.hierarchy.iterations:100}")
+    private int iterations;
+    
+    private final Random random = new Random(42);
+    private final Map<Integer, List<Folder>> samples = new HashMap<>();
+    private final Map<Integer, Integer> seen = new HashMap<>();
+    private final List<Folder> pending = new ArrayList<>();
+    private int seeded;
+    
+    @Override
+    public void run(String... args) {
+        String ownerId = "benchmark-" + new ObjectId().toHexString();
+        
+        // Shallowest full tree with this fan-out that holds folderCount folders
+        int maxDepth = 1;
+        long levelSize = fanOut;
+        long capacity = fanOut;
+        while (capacity < folderCount) {
+            levelSize *= fanOut;
+            capacity += levelSize;
+            maxDepth++;
+        }
+        
+        try {
+            long start = System.nanoTime();
+            seed(ownerId, null, 1, maxDepth);
+            flush();
+            log.info("Seeded {} folders, depth {}, in {} s", seeded, maxDepth, (System.nanoTime() - start) / 1_000_000_000);
+            
+            int renameDepth = Math.max(1, maxDepth - 3);
+            int moveDepth = Math.max(2, maxDepth - 2);
+            
+            Latencies create = new Latencies();
+            Latencies rename = new Latencies();
+            Latencies move = new Latencies();
+            Latencies subtree = new Latencies();
+            Latencies breadcrumbs = new Latencies();
+            
+            for (int i = 0; i < iterations; i++) {
+                String parentId = sample(maxDepth - 1).getId();
+                String name = "bench-create-" + i;
+                create.time(() -> folderService.createFolder(name, parentId, ownerId));
+                
+                String renamedId = sample(renameDepth).getId();
+                String newName = "bench-rename-" + i;
+                rename.time(() -> folderService.renameFolder(renamedId, newName, ownerId));
+                
+                String movedId = sample(moveDepth).getId();
+                String targetId = sample(Math.max(1, moveDepth - 2)).getId();
+                long moveStart = System.nanoTime();
+                try {
+                    folderService.moveFolder(movedId, targetId, ownerId);
+                    move.record(System.nanoTime() - moveStart);
+                } catch (RuntimeException e) {
+                    // Target inside the moved subtree or a name clash; not a timing sample
+                }
+                
+                String subtreeRootId = sample(Math.min(2, maxDepth)).getId();
+                subtree.time(() -> mongoTemplate.count(
+                    new Query(Criteria.where("ownerId").is(ownerId).and("ancestorIds").is(subtreeRootId)), Folder.class));
+                
+                String leafId = sample(maxDepth).getId();
+                breadcrumbs.time(() -> folderService.getBreadcrumbs(leafId, ownerId));
+            }
+            
+            log.info(String.format("%12s %8s %10s %10s", "operation", "samples", "p50 ms", "p99 ms"));
+            report("create", create);
+            report("rename", rename);
+            report("move", move);
+            report("subtree", subtree);
+            report("breadcrumbs", breadcrumbs);
+        } finally {
+            mongoTemplate.remove(new Query(Criteria.where("ownerId").is(ownerId)), Folder.class);
+            mongoTemplate.remove(new Query(Criteria.where("userId").is(ownerId)), Activity.class);
+        }
+    }
+    
+    private void report(String operation, Latencies latencies) {
+        log.info(String.format("%12s %8d %10.2f %10.2f", operation, latencies.count(),
+            latencies.percentileMillis(0.50), latencies.percentileMillis(0.99)));
+    }
+    
+    /** Depth-first, so only the current branch is held in memory while inserting. */
+    private void seed(String ownerId, Folder parent, int depth, int maxDepth) {
+        LocalDateTime now = LocalDateTime.now();
+        for (int i = 0; i < fanOut && seeded < folderCount; i++) {
+            Folder folder = new Folder();
+            folder.setId(new ObjectId().toHexString());
+            folder.setName("folder-" + i);
+            folder.setOwnerId(ownerId);
+            folder.setParentId(parent != null ? parent.getId() : null);
+            folder.setPath((parent != null ? parent.getPath() : "") + "/" + folder.getName());
+            if (parent != null) {
+                folder.getAncestorIds().addAll(parent.getAncestorIds());
+                folder.getAncestorIds().add(parent.getId());
+            }
+            folder.setCreatedAt(now);
+            folder.setUpdatedAt(now);
+            
+            pending.add(folder);
+            seeded++;
+            keepSample(depth, folder);
+            if (pending.size() >= INSERT_BATCH_SIZE) {
+                flush();
+            }
+            
+            if (depth < maxDepth) {
+                seed(ownerId, folder, depth + 1, maxDepth);
+            }
+        }
+    }
+    
+    private void flush() {
+        if (!pending.isEmpty()) {
+            mongoTemplate.insert(pending, Folder.class);
+            pending.clear();
+        }
+    }
+    
+    /** Reservoir sampling, so every depth gets a uniform sample across the whole tree. */
+    private void keepSample(int depth, Folder folder) {
+        List<Folder> kept = samples.computeIfAbsent(depth, d -> new ArrayList<>());
+        int count = seen.merge(depth, 1, Integer::sum);
+        if (kept.size() < SAMPLES_PER_DEPTH) {
+            kept.add(folder);
+        } else {
+            int slot = random.nextInt(count);
+            if (slot < SAMPLES_PER_DEPTH) {
+                kept.set(slot, folder);
+            }
+        }
+    }
+    
+    private Folder sample(int depth) {
+        List<Folder> kept = samples.get(Math.max(1, Math.min(depth, samples.size())));
+        return kept.get(random.nextInt(kept.size()));
+    }
+}
@@ -0,0 +1,38 @@
+package com.firebird.benchmark;
+
+import java.util.Arrays;
+
+/**
+ * Per-operation timings, reported as percentiles in milliseconds.
+ */
+final class Latencies {
+    
+    private long[] nanos = new long[64];
+    private int size;
+    
+    void time(Runnable operation) {
+        long start = System.nanoTime();
+        operation.run();
+        record(System.nanoTime() - start);
+    }
+    
+    void record(long elapsedNanos) {
+        if (size == nanos.length) {
+            nanos = Arrays.copyOf(nanos, size * 2);
+        }
+        nanos[size++] = elapsedNanos;
+    }
+    
+    int count() {
+        return size;
+    }
+    
+    double percentileMillis(double p) {
+        if (size == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(nanos, size);
+        Arrays.sort(sorted);
+        return sorted[Math.min(size - 1, (int) Math.ceil(p * size) - 1)] / 1_000_000.0;
+    }
+}
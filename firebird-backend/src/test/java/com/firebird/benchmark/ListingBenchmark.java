@@ -0,0 +1,108 @@
+package com.firebird.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.firebird.model.FileMetadata;
+import com.firebird.repository.FileMetadataRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.CommandLineRunner;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Compares a folder listing served from full {@code FileMetadata} entities against the
+ * projected {@code FileListItem} path: serialized JSON size and p50/p99 latency of
+ * query plus Jackson serialization. Seeds a synthetic owner and removes it afterwards.
+ * Run with {@code mvn spring-boot:test-run -Dspring-boot.run.profiles=benchmark,benchmark-listing}.
+ */
+@Slf4j
+@Component
+@Profile("benchmark-listing")
+@RequiredArgsConstructor
+public class ListingBenchmark implements CommandLineRunner {
+    
+    private final FileMetadataRepository fileMetadataRepository;
+    private final MongoTemplate mongoTemplate;
+    private final ObjectMapper objectMapper;
+    
+    @Value("${benchmark.listing.folder-sizes}")
+    private List<Integer> folderSizes;
+    
+    @Value("${benchmark.listing.iterations:200}")
+    private int iterations;
+    
+    @Override
+    public void run(String... args) throws Exception {
+        String ownerId = "benchmark-" + new ObjectId().toHexString();
+        
+        try {
+            log.info(String.format("%8s %10s %12s %10s %10s", "files", "path", "json bytes", "p50 ms", "p99 ms"));
+            
+            for (int folderSize : folderSizes) {
+                String folderId = new ObjectId().toHexString();
+                seed(ownerId, folderId, folderSize);
+                
+                report(folderSize, "entity",
+                    () -> fileMetadataRepository.findByOwnerIdAndFolderIdAndTrashedFalse(ownerId, folderId));
+                report(folderSize, "projected",
+                    () -> fileMetadataRepository.findItemsByOwnerIdAndFolderIdAndTrashedFalse(ownerId, folderId));
+            }
+        } finally {
+            mongoTemplate.remove(new Query(Criteria.where("ownerId").is(ownerId)), FileMetadata.class);
+        }
+    }
+    
+    private void report(int folderSize, String label, Supplier<List<?>> listing) throws Exception {
+        int bytes = objectMapper.writeValueAsBytes(listing.get()).length;
+        
+        // Warm up the query plan and Jackson's serializers before timing
+        for (int i = 0; i < Math.min(iterations, 20); i++) {
+            objectMapper.writeValueAsBytes(listing.get());
+        }
+        
+        Latencies latencies = new Latencies();
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            objectMapper.writeValueAsBytes(listing.get());
+            latencies.record(System.nanoTime() - start);
+        }
+        
+        log.info(String.format("%8d %10s %12d %10.2f %10.2f", folderSize, label, bytes,
+            latencies.percentileMillis(0.50), latencies.percentileMillis(0.99)));
+    }
+    
+    private void seed(String ownerId, String folderId, int count) {
+        LocalDateTime now = LocalDateTime.now();
+        List<FileMetadata> files = new ArrayList<>(count);
+        
+        for (int i = 0; i < count; i++) {
+            FileMetadata file = new FileMetadata();
+            file.setName(String.format("document-%06d.pdf", i));
+            file.setOwnerId(ownerId);
+            file.setFolderId(folderId);
+            file.setPath("/benchmark/" + folderId + "/" + file.getName());
+            file.setGridFsId(new ObjectId().toHexString());
+            file.setSize(1024L * (i + 1));
+            file.setStoredSize(file.getSize());
+            file.setMimeType("application/pdf");
+            file.setExtension("pdf");
+            file.setTags(List.of("benchmark", "listing", "tag-" + (i % 10)));
+            file.setLastAccessedAt(now);
+            file.setCreatedAt(now);
+            file.setUpdatedAt(now);
+            files.add(file);
+        }
+        
+        mongoTemplate.insertAll(files);
+    }
+}
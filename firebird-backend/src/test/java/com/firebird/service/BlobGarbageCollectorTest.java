@@ -0,0 +1,249 @@
+package com.firebird.service;
+
+import com.firebird.model.FileMetadata;
+import com.firebird.model.PendingRelease;
+import com.firebird.model.UploadSession;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.result.UpdateResult;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.BsonDocument;
+import org.bson.BsonObjectId;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.quality.Strictness;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.RETURNS_SELF;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+@ExtendWith(MockitoExtension.class)
+class BlobGarbageCollectorTest {
+    
+    private static final String METADATA_COLLECTION = "files";
+    
+    @Mock
+    private MongoTemplate mongoTemplate;
+    @Mock
+    private GridFSService gridFSService;
+    @Mock
+    private MongoCollection<Document> files;
+    @Mock
+    private MongoCollection<Document> chunks;
+    @Mock
+    private MongoCollection<Document> metadata;
+    
+    private SimpleMeterRegistry meterRegistry;
+    private BlobGarbageCollector collector;
+    
+    @BeforeEach
+    void setUp() {
+        when(mongoTemplate.getCollection(GridFSService.FILES_COLLECTION)).thenReturn(files);
+        when(mongoTemplate.getCollection(GridFSService.CHUNKS_COLLECTION)).thenReturn(chunks);
+        when(mongoTemplate.getCollectionName(FileMetadata.class)).thenReturn(METADATA_COLLECTION);
+        when(mongoTemplate.getCollection(METADATA_COLLECTION)).thenReturn(metadata);
+        meterRegistry = new SimpleMeterRegistry();
+        collector = new BlobGarbageCollector(mongoTemplate, gridFSService, meterRegistry, true, 48, 500);
+    }
+    
+    @Test
+    @SuppressWarnings("unchecked")
+    void sweepsOnlyBlobsThatStayUnreferencedWhileClaimed() {
+        ObjectId orphan = new ObjectId();
+        ObjectId referenced = new ObjectId();
+        ObjectId deduplicated = new ObjectId();
+        ObjectId saved = new ObjectId();
+        FindIterable<Document> blobs = found(
+            blob(orphan, 1, 100), blob(referenced, 1, 200), blob(deduplicated, 1, 300), blob(saved, 0, 400));
+        FindIterable<Document> blobsOfChunks = found();
+        FindIterable<Document> fileRefs = found(new Document("gridFsId", referenced.toHexString()));
+        FindIterable<Document> thumbnailRefs = found();
+        FindIterable<Document> orphanChunks = found();
+        when(files.find(any(Bson.class))).thenReturn(blobs, blobsOfChunks);
+        when(metadata.find(any(Bson.class))).thenReturn(fileRefs, thumbnailRefs);
+        when(chunks.find(any(Bson.class))).thenReturn(orphanChunks);
+        // Deduplication took a reference on one blob after it was marked, so its claim misses
+        when(files.updateOne(any(Bson.class), any(Bson.class))).thenAnswer(invocation ->
+            render(invocation.getArgument(0)).toJson().contains(deduplicated.toHexString())
+                ? UpdateResult.acknowledged(0, 0L, null)
+                : UpdateResult.acknowledged(1, 1L, null));
+        // And an upload saved its metadata for another one after it was claimed
+        FileMetadata file = new FileMetadata();
+        file.setGridFsId(saved.toHexString());
+        when(mongoTemplate.find(any(Query.class), eq(FileMetadata.class))).thenReturn(List.of(file));
+        when(mongoTemplate.find(any(Query.class), eq(PendingRelease.class))).thenReturn(List.of());
+        when(gridFSService.deleteUnreferenced(anyList())).thenReturn(List.of(orphan));
+        
+        collector.collect();
+        
+        ArgumentCaptor<Collection<ObjectId>> swept = ArgumentCaptor.forClass(Collection.class);
+        verify(gridFSService).deleteUnreferenced(swept.capture());
+        assertThat(swept.getValue()).containsExactly(orphan);
+        
+        ArgumentCaptor<Bson> filters = ArgumentCaptor.forClass(Bson.class);
+        ArgumentCaptor<Bson> updates = ArgumentCaptor.forClass(Bson.class);
+        verify(files, times(4)).updateOne(filters.capture(), updates.capture());
+        List<String> claimed = filters.getAllValues().stream().map(f -> render(f).toJson()).toList();
+        assertThat(claimed).noneMatch(f -> f.contains(referenced.toHexString()));
+        // The claim only applies while the count is still the one seen while marking
+        assertThat(claimed).anySatisfy(f -> assertThat(f).contains(orphan.toHexString(), "\"metadata.refCount\": 1"));
+        // The blob that gained a reference gets its count back instead of being deleted
+        assertThat(claimed.get(3)).contains(saved.toHexString());
+        assertThat(render(updates.getAllValues().get(3)).toJson()).contains("\"metadata.refCount\": 1");
+        
+        assertThat(meterRegistry.counter("firebird.gc.blobs.reclaimed").count()).isEqualTo(1);
+        assertThat(meterRegistry.counter("firebird.gc.bytes.reclaimed").count()).isEqualTo(100);
+    }
+    
+    @Test
+    void deletesOrphanedChunksButKeepsThoseOfOpenUploadSessions() {
+        ObjectId live = new ObjectId();
+        ObjectId orphan = new ObjectId();
+        ObjectId session = new ObjectId();
+        FindIterable<Document> blobs = found(blob(live, 1, 100));
+        FindIterable<Document> blobsOfChunks = found(new Document("_id", live));
+        FindIterable<Document> stillOrphaned = found();
+        FindIterable<Document> fileRefs = found(new Document("gridFsId", live.toHexString()));
+        FindIterable<Document> thumbnailRefs = found();
+        FindIterable<Document> chunkFiles = found(
+            new Document("files_id", live), new Document("files_id", orphan),
+            new Document("files_id", orphan), new Document("files_id", session));
+        when(files.find(any(Bson.class))).thenReturn(blobs, blobsOfChunks, stillOrphaned);
+        when(metadata.find(any(Bson.class))).thenReturn(fileRefs, thumbnailRefs);
+        when(chunks.find(any(Bson.class))).thenReturn(chunkFiles);
+        UploadSession open = new UploadSession();
+        open.setGridFsId(session.toHexString());
+        when(mongoTemplate.find(any(Query.class), eq(UploadSession.class))).thenReturn(new ArrayList<>(List.of(open)));
+        when(chunks.deleteMany(any(Bson.class))).thenReturn(DeleteResult.acknowledged(2));
+        
+        collector.collect();
+        
+        ArgumentCaptor<Bson> deleted = ArgumentCaptor.forClass(Bson.class);
+        verify(chunks).deleteMany(deleted.capture());
+        assertThat(render(deleted.getValue()).getDocument("files_id").getArray("$in"))
+            .containsExactly(new BsonObjectId(orphan));
+        verify(gridFSService, never()).deleteUnreferenced(anyList());
+        assertThat(meterRegistry.counter("firebird.gc.chunks.reclaimed").count()).isEqualTo(2);
+    }
+    
+    @Test
+    void keepsBlobAnUploadDeduplicatedOntoBeforeItWasMarked() {
+        ObjectId target = new ObjectId();
+        // The upload took its reference but has not saved its file metadata yet
+        Document acquired = blob(target, 2, 100);
+        acquired.get("metadata", Document.class).append("acquiredAt", new Date());
+        onlyBlobs(acquired);
+        
+        collector.collect();
+        
+        verify(files, never()).updateOne(any(Bson.class), any(Bson.class));
+        verify(gridFSService, never()).deleteUnreferenced(anyList());
+    }
+    
+    @Test
+    void keepsBlobAnUploadDeduplicatedOntoAfterItWasMarked() {
+        ObjectId target = new ObjectId();
+        onlyBlobs(blob(target, 1, 100));
+        // Between marking and claiming an upload acquires the blob and then fails, restoring the count
+        Date acquiredAt = new Date();
+        when(files.updateOne(any(Bson.class), any(Bson.class))).thenAnswer(invocation -> {
+            BsonDocument guard = clause(render(invocation.getArgument(0)), GridFSService.ACQUIRED_AT);
+            boolean excluded = guard != null
+                && acquiredAt.getTime() >= guard.getDocument("$not").getDateTime("$gte").getValue();
+            return excluded ? UpdateResult.acknowledged(0, 0L, null) : UpdateResult.acknowledged(1, 1L, null);
+        });
+        
+        collector.collect();
+        
+        verify(gridFSService, never()).deleteUnreferenced(anyList());
+    }
+    
+    @Test
+    void keepsOldCopyOfAMovedFileUntilItsReleaseIsDue() {
+        ObjectId moved = new ObjectId();
+        onlyBlobs(blob(moved, 1, 100));
+        when(mongoTemplate.find(any(Query.class), eq(PendingRelease.class))).thenReturn(List.of(
+            new PendingRelease("p1", GridFSService.NAME, moved.toHexString(), LocalDateTime.now().plusMinutes(5))));
+        
+        collector.collect();
+        
+        verify(files, never()).updateOne(any(Bson.class), any(Bson.class));
+        verify(gridFSService, never()).deleteUnreferenced(anyList());
+    }
+    
+    /** Marking finds {@code blobs} and no references at all; there are no chunks to check. */
+    private void onlyBlobs(Document... blobs) {
+        FindIterable<Document> marked = found(blobs);
+        FindIterable<Document> blobsOfChunks = found();
+        FindIterable<Document> fileRefs = found();
+        FindIterable<Document> thumbnailRefs = found();
+        FindIterable<Document> chunkFiles = found();
+        when(files.find(any(Bson.class))).thenReturn(marked, blobsOfChunks);
+        when(metadata.find(any(Bson.class))).thenReturn(fileRefs, thumbnailRefs);
+        when(chunks.find(any(Bson.class))).thenReturn(chunkFiles);
+    }
+    
+    /** The clause of an {@code $and} filter on {@code field}, or null if there is none. */
+    private static BsonDocument clause(BsonDocument filter, String field) {
+        List<BsonDocument> clauses = filter.containsKey("$and")
+            ? filter.getArray("$and").stream().map(BsonValue::asDocument).toList()
+            : List.of(filter);
+        return clauses.stream().filter(c -> c.containsKey(field)).map(c -> c.getDocument(field)).findFirst().orElse(null);
+    }
+    
+    private static Document blob(ObjectId id, int refCount, long length) {
+        return new Document("_id", id).append("length", length).append("metadata", new Document("refCount", refCount));
+    }
+    
+    /** A find whose builder calls return itself and whose cursor walks {@code documents}. */
+    @SuppressWarnings("unchecked")
+    private static FindIterable<Document> found(Document... documents) {
+        FindIterable<Document> iterable = mock(FindIterable.class, withSettings().defaultAnswer(RETURNS_SELF)
+            .strictness(Strictness.LENIENT));
+        MongoCursor<Document> cursor = mock(MongoCursor.class, withSettings().strictness(Strictness.LENIENT));
+        Iterator<Document> iterator = List.of(documents).iterator();
+        when(cursor.hasNext()).thenAnswer(invocation -> iterator.hasNext());
+        when(cursor.next()).thenAnswer(invocation -> iterator.next());
+        when(iterable.cursor()).thenReturn(cursor);
+        doAnswer(invocation -> {
+            Consumer<Document> action = invocation.getArgument(0);
+            iterator.forEachRemaining(action);
+            return null;
+        }).when(iterable).forEach(any());
+        return iterable;
+    }
+    
+    private static BsonDocument render(Bson bson) {
+        return bson.toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry());
+    }
+}
@@ -0,0 +1,163 @@
+package com.firebird.service;
+
+import com.firebird.model.FileMetadata;
+import com.firebird.model.Folder;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.AggregateIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.RETURNS_SELF;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class FolderRollupServiceTest {
+    
+    @Mock
+    private MongoTemplate mongoTemplate;
+    @Mock
+    private FolderTreeCache folderTreeCache;
+    
+    private SimpleMeterRegistry meterRegistry;
+    private FolderRollupService rollupService;
+    
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        rollupService = new FolderRollupService(mongoTemplate, folderTreeCache, new CounterSettler(0), meterRegistry, true);
+    }
+    
+    @Test
+    void fileAddedIncrementsFolderAndAncestorsInOneUpdate() {
+        when(mongoTemplate.findOne(any(Query.class), eq(Folder.class))).thenReturn(folder("f", List.of("root", "mid"), false));
+        
+        rollupService.fileAdded("u1", "f", 100);
+        
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        ArgumentCaptor<Update> update = ArgumentCaptor.forClass(Update.class);
+        verify(mongoTemplate).updateMulti(query.capture(), update.capture(), eq(Folder.class));
+        assertThat(query.getValue().getQueryObject()).isEqualTo(
+            new Document("_id", new Document("$in", List.of("root", "mid", "f"))).append("ownerId", "u1"));
+        assertThat(update.getValue().getUpdateObject()).isEqualTo(new Document("$inc",
+            new Document("totalSize", 100L).append("fileCount", 1L).append("folderCount", 0L).append("revision", 1)));
+    }
+    
+    @Test
+    void fileAddedToTrashedFolderLeavesTotalsAlone() {
+        when(mongoTemplate.findOne(any(Query.class), eq(Folder.class))).thenReturn(folder("f", List.of("root"), true));
+        
+        rollupService.fileAdded("u1", "f", 100);
+        
+        verify(mongoTemplate, never()).updateMulti(any(Query.class), any(Update.class), eq(Folder.class));
+    }
+    
+    @Test
+    void cachedTreeTakesTheStoredTotalsRatherThanTheDelta() {
+        when(mongoTemplate.findOne(any(Query.class), eq(Folder.class))).thenReturn(folder("f", List.of(), false));
+        when(folderTreeCache.getIfPresent("u1")).thenReturn(FolderTree.of(List.of()));
+        List<Folder> stored = List.of(folder("f", List.of(), false));
+        when(mongoTemplate.find(any(Query.class), eq(Folder.class))).thenReturn(stored);
+        
+        rollupService.fileRemoved("u1", "f", 100);
+        
+        verify(folderTreeCache).updateTotals("u1", stored);
+    }
+    
+    @Test
+    void subtreeMovedSkipsAncestorsBothChainsShare() {
+        Folder moved = folder("f", List.of("root", "to"), false);
+        moved.setTotalSize(100);
+        moved.setFileCount(2);
+        moved.setFolderCount(1);
+        
+        rollupService.subtreeMoved(moved, List.of("root", "from"));
+        
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        ArgumentCaptor<Update> update = ArgumentCaptor.forClass(Update.class);
+        verify(mongoTemplate, times(2)).updateMulti(query.capture(), update.capture(), eq(Folder.class));
+        assertThat(query.getAllValues().get(0).getQueryObject().get("_id")).isEqualTo(new Document("$in", List.of("from")));
+        assertThat(update.getAllValues().get(0).getUpdateObject()).isEqualTo(new Document("$inc",
+            new Document("totalSize", -100L).append("fileCount", -2L).append("folderCount", -2L).append("revision", 1)));
+        assertThat(query.getAllValues().get(1).getQueryObject().get("_id")).isEqualTo(new Document("$in", List.of("to")));
+        assertThat(update.getAllValues().get(1).getUpdateObject()).isEqualTo(new Document("$inc",
+            new Document("totalSize", 100L).append("fileCount", 2L).append("folderCount", 2L).append("revision", 1)));
+    }
+    
+    @Test
+    @SuppressWarnings("unchecked")
+    void reconcileRewritesDriftedTotalsOnlyIfNoDeltaReachedThemSinceRead() {
+        Folder accurate = folder("a", List.of(), false);
+        accurate.setTotalSize(10);
+        accurate.setFileCount(1);
+        Folder drifted = folder("b", List.of(), false);
+        drifted.setTotalSize(5);
+        drifted.setFileCount(1);
+        drifted.setRevision(7);
+        when(mongoTemplate.stream(any(Query.class), eq(Folder.class))).thenReturn(Stream.of(accurate, drifted));
+        
+        MongoCollection<Document> files = mock(MongoCollection.class);
+        AggregateIterable<Document> aggregate = mock(AggregateIterable.class, RETURNS_SELF);
+        MongoCursor<Document> rows = mock(MongoCursor.class);
+        Iterator<Document> computed = List.of(
+            new Document("_id", "a").append("size", 10L).append("files", 1).append("folders", 0)).iterator();
+        when(rows.hasNext()).thenAnswer(invocation -> computed.hasNext());
+        when(rows.next()).thenAnswer(invocation -> computed.next());
+        when(aggregate.iterator()).thenReturn(rows);
+        when(files.aggregate(anyList())).thenReturn(aggregate);
+        when(mongoTemplate.getCollectionName(FileMetadata.class)).thenReturn("files");
+        when(mongoTemplate.getCollectionName(Folder.class)).thenReturn("folders");
+        when(mongoTemplate.getCollection("files")).thenReturn(files);
+        
+        BulkOperations bulk = mock(BulkOperations.class);
+        BulkWriteResult result = mock(BulkWriteResult.class);
+        when(result.getModifiedCount()).thenReturn(1);
+        when(bulk.execute()).thenReturn(result);
+        when(mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Folder.class)).thenReturn(bulk);
+        
+        assertThat(rollupService.reconcile("u1", null).join()).isEqualTo(1);
+        
+        // The folder the aggregation found nothing under is reset, but only if no delta reached it meanwhile
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        ArgumentCaptor<Update> update = ArgumentCaptor.forClass(Update.class);
+        verify(bulk).updateOne(query.capture(), update.capture());
+        assertThat(query.getValue().getQueryObject()).isEqualTo(new Document("_id", "b")
+            .append("$and", List.of(new Document("revision", 7L))));
+        assertThat(update.getValue().getUpdateObject()).isEqualTo(new Document("$set",
+            new Document("totalSize", 0L).append("fileCount", 0L).append("folderCount", 0L))
+            .append("$inc", new Document("revision", 1)));
+        assertThat(meterRegistry.counter("firebird.folders.rollup.corrected").count()).isEqualTo(1);
+    }
+    
+    private static Folder folder(String id, List<String> ancestorIds, boolean trashed) {
+        Folder folder = new Folder();
+        folder.setId(id);
+        folder.setOwnerId("u1");
+        folder.setAncestorIds(ancestorIds);
+        folder.setTrashed(trashed);
+        return folder;
+    }
+}
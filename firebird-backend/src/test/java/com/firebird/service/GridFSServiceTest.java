@@ -0,0 +1,162 @@
+package com.firebird.service;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.Updates;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.gridfs.GridFsTemplate;
+import org.springframework.data.mongodb.gridfs.GridFsUpload;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class GridFSServiceTest {
+    
+    private static final byte[] CONTENT = "same bytes".getBytes(StandardCharsets.UTF_8);
+    
+    @Mock
+    private GridFsTemplate gridFsTemplate;
+    @Mock
+    private MongoTemplate mongoTemplate;
+    @Mock
+    private MongoCollection<Document> files;
+    @Mock
+    private GridFsChunkCache chunkCache;
+    @Mock
+    private ChunkSizePolicy chunkSizePolicy;
+    
+    private GridFSService service;
+    
+    @BeforeEach
+    void setUp() {
+        when(mongoTemplate.getCollection(GridFSService.FILES_COLLECTION)).thenReturn(files);
+        service = new GridFSService(gridFsTemplate, mongoTemplate, chunkCache, new CompressionPolicy(false), chunkSizePolicy);
+    }
+    
+    @Test
+    void storeFileReusesExistingBlobWithSameContent() throws Exception {
+        ObjectId newId = new ObjectId();
+        ObjectId existingId = new ObjectId();
+        storesAs(newId);
+        when(files.findOneAndUpdate(any(Bson.class), any(Bson.class)))
+            .thenReturn(new Document("_id", existingId).append("length", (long) CONTENT.length));
+        
+        StoredBlob stored = service.storeFile(new ByteArrayInputStream(CONTENT), "a.bin", "application/octet-stream", CONTENT.length);
+        
+        assertThat(stored).isEqualTo(new StoredBlob(existingId.toString(), CONTENT.length));
+        ArgumentCaptor<Bson> filter = ArgumentCaptor.forClass(Bson.class);
+        ArgumentCaptor<Bson> update = ArgumentCaptor.forClass(Bson.class);
+        verify(files).findOneAndUpdate(filter.capture(), update.capture());
+        assertThat(render(filter.getValue())).isEqualTo(render(Filters.and(
+            Filters.eq(GridFSService.SHA256, sha256(CONTENT)),
+            Filters.ne("_id", newId),
+            Filters.gt(GridFSService.REF_COUNT, 0))));
+        assertThat(render(update.getValue()).getDocument("$inc")).isEqualTo(new BsonDocument(GridFSService.REF_COUNT, new BsonInt32(1)));
+        // Marks the blob as just acquired so garbage collection keeps it until the metadata is saved
+        assertThat(render(update.getValue()).getDocument("$set").containsKey(GridFSService.ACQUIRED_AT)).isTrue();
+        // The copy just written is dropped rather than kept as a second blob
+        verify(gridFsTemplate).delete(argThat(query -> newId.toString().equals(query.getQueryObject().get("_id"))));
+        verify(files, never()).findOneAndUpdate(any(Bson.class), any(Bson.class), any(FindOneAndUpdateOptions.class));
+    }
+    
+    @Test
+    void storeFileRecordsHashOfNewContent() throws Exception {
+        ObjectId newId = new ObjectId();
+        storesAs(newId);
+        when(files.findOneAndUpdate(any(Bson.class), any(Bson.class))).thenReturn(null);
+        when(files.findOneAndUpdate(any(Bson.class), any(Bson.class), any(FindOneAndUpdateOptions.class)))
+            .thenReturn(new Document("_id", newId).append("length", (long) CONTENT.length));
+        
+        StoredBlob stored = service.storeFile(new ByteArrayInputStream(CONTENT), "a.bin", "application/octet-stream", CONTENT.length);
+        
+        assertThat(stored).isEqualTo(new StoredBlob(newId.toString(), CONTENT.length));
+        ArgumentCaptor<Bson> update = ArgumentCaptor.forClass(Bson.class);
+        verify(files).findOneAndUpdate(any(Bson.class), update.capture(), any(FindOneAndUpdateOptions.class));
+        assertThat(render(update.getValue())).isEqualTo(render(Updates.set(GridFSService.SHA256, sha256(CONTENT))));
+        verify(gridFsTemplate, never()).delete(any());
+    }
+    
+    @Test
+    void releaseFileKeepsBlobWhileReferenced() {
+        ObjectId id = new ObjectId();
+        when(files.findOneAndUpdate(any(Bson.class), any(Bson.class), any(FindOneAndUpdateOptions.class)))
+            .thenReturn(new Document("_id", id).append("metadata", new Document("refCount", 1)));
+        
+        service.releaseFile(id.toString());
+        
+        ArgumentCaptor<Bson> update = ArgumentCaptor.forClass(Bson.class);
+        verify(files).findOneAndUpdate(any(Bson.class), update.capture(), any(FindOneAndUpdateOptions.class));
+        assertThat(render(update.getValue())).isEqualTo(render(Updates.inc(GridFSService.REF_COUNT, -1)));
+        verify(gridFsTemplate, never()).delete(any());
+    }
+    
+    @Test
+    void releaseFileDeletesLastReferenceOnlyIfStillUnreferenced() {
+        ObjectId id = new ObjectId();
+        when(files.findOneAndUpdate(any(Bson.class), any(Bson.class), any(FindOneAndUpdateOptions.class)))
+            .thenReturn(new Document("_id", id).append("metadata", new Document("refCount", 0)));
+        
+        service.releaseFile(id.toString());
+        
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        verify(gridFsTemplate).delete(query.capture());
+        // A concurrent dedup hit may have taken a new reference after the decrement
+        assertThat(query.getValue().getQueryObject()).isEqualTo(new Document("_id", id.toString())
+            .append(GridFSService.REF_COUNT, new Document("$lte", 0)));
+        verify(chunkCache).invalidate(id);
+    }
+    
+    @Test
+    void releaseFileDeletesLegacyBlobWithoutRefCount() {
+        ObjectId id = new ObjectId();
+        
+        service.releaseFile(id.toString());
+        
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        verify(gridFsTemplate).delete(query.capture());
+        assertThat(query.getValue().getQueryObject()).isEqualTo(new Document("_id", id.toString()));
+        verify(chunkCache).invalidate(id);
+    }
+    
+    /** Lets the mocked store drain the upload, as GridFS would, so the content gets hashed. */
+    private void storesAs(ObjectId id) {
+        when(gridFsTemplate.store(any(GridFsUpload.class))).thenAnswer(invocation -> {
+            GridFsUpload<?> upload = invocation.getArgument(0);
+            upload.getContent().transferTo(OutputStream.nullOutputStream());
+            return id;
+        });
+    }
+    
+    private static BsonDocument render(Bson bson) {
+        return bson.toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry());
+    }
+    
+    private static String sha256(byte[] content) throws Exception {
+        return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+    }
+}
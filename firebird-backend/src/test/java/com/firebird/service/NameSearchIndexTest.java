@@ -0,0 +1,118 @@
+package com.firebird.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@ExtendWith(MockitoExtension.class)
+class NameSearchIndexTest {
+    
+    @Mock
+    private MongoTemplate mongoTemplate;
+    
+    private SimpleMeterRegistry meterRegistry;
+    private NameSearchIndex index;
+    
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        index = new NameSearchIndex(mongoTemplate, meterRegistry);
+        ReflectionTestUtils.setField(index, "enabled", true);
+    }
+    
+    @Test
+    void ranksExactThenPrefixThenWordStartThenAnywhere() {
+        index.putFile("u1", "anywhere", "myreport.pdf");
+        index.putFile("u1", "word", "q3 report.pdf");
+        index.putFile("u1", "prefix", "report-final.pdf");
+        index.putFile("u1", "exact", "report.pdf");
+        index.putFile("u1", "shorter-prefix", "Report.md");
+        
+        // Within a rank the shorter name wins
+        assertThat(index.searchFiles("u1", "REPORT", 10))
+            .containsExactly("shorter-prefix", "exact", "prefix", "word", "anywhere");
+        assertThat(index.searchFiles("u1", "report.pdf", 10))
+            .containsExactly("exact", "word", "anywhere");
+        assertThat(index.searchFiles("u1", "report", 2)).containsExactly("shorter-prefix", "exact");
+    }
+    
+    @Test
+    void shortQueriesScanEveryName() {
+        index.putFile("u1", "a", "ab.txt");
+        index.putFile("u1", "b", "cab.txt");
+        
+        assertThat(index.searchFiles("u1", "ab", 10)).containsExactly("a", "b");
+    }
+    
+    @Test
+    void keepsFilesFoldersAndOwnersApart() {
+        index.putFile("u1", "file", "photos.zip");
+        index.putFolder("u1", "folder", "photos");
+        index.putFile("u2", "other", "photos.zip");
+        
+        assertThat(index.searchFiles("u1", "photos", 10)).containsExactly("file");
+        assertThat(index.searchFolders("u1", "photos", 10)).containsExactly("folder");
+        assertThat(index.searchFiles("u3", "photos", 10)).isEmpty();
+    }
+    
+    @Test
+    void renameReplacesTheOldName() {
+        index.putFile("u1", "f", "draft.txt");
+        index.putFile("u1", "f", "final.txt");
+        
+        assertThat(index.searchFiles("u1", "draft", 10)).isEmpty();
+        assertThat(index.searchFiles("u1", "final", 10)).containsExactly("f");
+        assertThat(entries()).isEqualTo(1);
+    }
+    
+    @Test
+    void removeDropsTheEntry() {
+        index.putFile("u1", "f", "notes.txt");
+        index.putFolder("u1", "f", "notes");
+        
+        index.removeFile("u1", "f");
+        
+        assertThat(index.searchFiles("u1", "notes", 10)).isEmpty();
+        // Same id as a folder is a different entry
+        assertThat(index.searchFolders("u1", "notes", 10)).containsExactly("f");
+    }
+    
+    @Test
+    void searchStaysCorrectAfterCompaction() {
+        int total = NameSearchIndex.COMPACT_THRESHOLD + 100;
+        IntStream.range(0, total).forEach(i -> index.putFile("u1", "f" + i, "scan-" + i + ".png"));
+        
+        // Removing most entries leaves more than half the slots dead, which rewrites the index
+        List<String> kept = new ArrayList<>();
+        for (int i = 0; i < total; i++) {
+            if (i % 10 == 0) {
+                kept.add("f" + i);
+            } else {
+                index.removeFile("u1", "f" + i);
+            }
+        }
+        index.putFile("u1", "f0", "renamed.png");
+        kept.remove("f0");
+        
+        assertThat(index.searchFiles("u1", "scan-", total)).containsExactlyInAnyOrderElementsOf(kept);
+        assertThat(index.searchFiles("u1", "scan-10.png", 10)).containsExactly("f10");
+        assertThat(index.searchFiles("u1", "renamed", 10)).containsExactly("f0");
+        assertThat(index.searchFiles("u1", "scan-11.png", 10)).isEmpty();
+        assertThat(entries()).isEqualTo(kept.size() + 1);
+    }
+    
+    private double entries() {
+        return meterRegistry.get("firebird.search.name-index.entries").gauge().value();
+    }
+}
@@ -0,0 +1,144 @@
+package com.firebird.service;
+
+import com.firebird.model.QuotaReservation;
+import com.firebird.model.User;
+import com.mongodb.client.result.UpdateResult;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class QuotaServiceTest {
+    
+    @Mock
+    private MongoTemplate mongoTemplate;
+    
+    private SimpleMeterRegistry meterRegistry;
+    private QuotaService quotaService;
+    
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        quotaService = new QuotaService(mongoTemplate, meterRegistry);
+    }
+    
+    @Test
+    void reserveHoldsBytesInTheSameWriteThatChecksTheQuota() {
+        when(mongoTemplate.updateFirst(any(Query.class), any(Update.class), eq(User.class))).thenReturn(modified(1));
+        
+        QuotaService.Reservation reservation = quotaService.reserve("u1", 100, Duration.ofMinutes(5));
+        
+        assertThat(reservation.userId()).isEqualTo("u1");
+        assertThat(reservation.bytes()).isEqualTo(100);
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        ArgumentCaptor<Update> update = ArgumentCaptor.forClass(Update.class);
+        verify(mongoTemplate).updateFirst(query.capture(), update.capture(), eq(User.class));
+        assertThat(query.getValue().getQueryObject().get("_id")).isEqualTo("u1");
+        assertThat(query.getValue().getQueryObject().getList("$and", Document.class))
+            .singleElement().satisfies(fits -> assertThat(fits).containsKey("$expr"));
+        Document updateObject = update.getValue().getUpdateObject();
+        assertThat(updateObject.get("$inc", Document.class).get("storageReserved")).isEqualTo(100L);
+        QuotaReservation pushed = (QuotaReservation) updateObject.get("$push", Document.class).get("reservations");
+        assertThat(pushed.getReservationId()).isEqualTo(reservation.id());
+        assertThat(pushed.getBytes()).isEqualTo(100);
+    }
+    
+    @Test
+    void reserveRejectsUploadThatDoesNotFit() {
+        when(mongoTemplate.updateFirst(any(Query.class), any(Update.class), eq(User.class))).thenReturn(modified(0));
+        when(mongoTemplate.exists(any(Query.class), eq(User.class))).thenReturn(true);
+        
+        assertThatThrownBy(() -> quotaService.reserve("u1", 100, Duration.ofMinutes(5)))
+            .isInstanceOf(RuntimeException.class)
+            .hasMessage("Storage quota exceeded");
+        assertThat(meterRegistry.counter("firebird.quota.reservations.rejected").count()).isEqualTo(1);
+    }
+    
+    @Test
+    void reserveReportsMissingUser() {
+        when(mongoTemplate.updateFirst(any(Query.class), any(Update.class), eq(User.class))).thenReturn(modified(0));
+        when(mongoTemplate.exists(any(Query.class), eq(User.class))).thenReturn(false);
+        
+        assertThatThrownBy(() -> quotaService.reserve("u1", 100, Duration.ofMinutes(5)))
+            .hasMessage("User not found");
+        assertThat(meterRegistry.counter("firebird.quota.reservations.rejected").count()).isZero();
+    }
+    
+    @Test
+    void commitMovesReservedBytesToUsedOnlyWhileTheReservationIsHeld() {
+        when(mongoTemplate.updateFirst(any(Query.class), any(Update.class), eq(User.class))).thenReturn(modified(1));
+        
+        quotaService.commit(new QuotaService.Reservation("u1", "r1", 100));
+        
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        ArgumentCaptor<Update> update = ArgumentCaptor.forClass(Update.class);
+        verify(mongoTemplate).updateFirst(query.capture(), update.capture(), eq(User.class));
+        assertThat(query.getValue().getQueryObject())
+            .isEqualTo(new Document("_id", "u1").append("reservations.reservationId", "r1"));
+        Document inc = update.getValue().getUpdateObject().get("$inc", Document.class);
+        assertThat(inc).isEqualTo(new Document("storageReserved", -100L).append("storageUsed", 100L));
+        assertThat(update.getValue().getUpdateObject().get("$pull", Document.class).get("reservations"))
+            .isEqualTo(new Document("reservationId", "r1"));
+    }
+    
+    @Test
+    void commitOfExpiredReservationStillCountsTheBytes() {
+        when(mongoTemplate.updateFirst(any(Query.class), any(Update.class), eq(User.class)))
+            .thenReturn(modified(0), modified(1));
+        
+        quotaService.commit(new QuotaService.Reservation("u1", "r1", 100));
+        
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        ArgumentCaptor<Update> update = ArgumentCaptor.forClass(Update.class);
+        verify(mongoTemplate, times(2)).updateFirst(query.capture(), update.capture(), eq(User.class));
+        assertThat(query.getAllValues().get(1).getQueryObject()).isEqualTo(new Document("_id", "u1"));
+        assertThat(update.getAllValues().get(1).getUpdateObject())
+            .isEqualTo(new Document("$inc", new Document("storageUsed", 100L)));
+    }
+    
+    @Test
+    void releaseExpiredReleasesOnlyReservationsPastTheirExpiry() {
+        User user = new User();
+        user.setId("u1");
+        user.setReservations(List.of(
+            new QuotaReservation("expired", 100, LocalDateTime.now().minusMinutes(1)),
+            new QuotaReservation("live", 50, LocalDateTime.now().plusMinutes(10))));
+        when(mongoTemplate.stream(any(Query.class), eq(User.class))).thenReturn(Stream.of(user));
+        
+        quotaService.releaseExpired();
+        
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        ArgumentCaptor<Update> update = ArgumentCaptor.forClass(Update.class);
+        verify(mongoTemplate).updateFirst(query.capture(), update.capture(), eq(User.class));
+        assertThat(query.getValue().getQueryObject())
+            .isEqualTo(new Document("_id", "u1").append("reservations.reservationId", "expired"));
+        assertThat(update.getValue().getUpdateObject().get("$inc", Document.class))
+            .isEqualTo(new Document("storageReserved", -100L));
+        assertThat(meterRegistry.counter("firebird.quota.reservations.expired").count()).isEqualTo(1);
+    }
+    
+    private static UpdateResult modified(long count) {
+        return UpdateResult.acknowledged(count, count, null);
+    }
+}
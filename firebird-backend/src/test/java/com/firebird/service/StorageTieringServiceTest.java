@@ -0,0 +1,134 @@
+package com.firebird.service;
+
+import com.firebird.model.FileMetadata;
+import com.firebird.model.PendingRelease;
+import com.firebird.repository.FileMetadataRepository;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.io.InputStream;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class StorageTieringServiceTest {
+    
+    @Mock
+    private FileMetadataRepository fileMetadataRepository;
+    @Mock
+    private MongoTemplate mongoTemplate;
+    @Mock
+    private BlobStorageService blobStorageService;
+    @Mock
+    private BlobStore hotStore;
+    @Mock
+    private BlobStore coldStore;
+    
+    private StorageTieringService tieringService;
+    private FileMetadata file;
+    
+    @BeforeEach
+    void setUp() {
+        tieringService = new StorageTieringService(fileMetadataRepository, mongoTemplate, blobStorageService, true, 90, 100);
+        
+        file = new FileMetadata();
+        file.setId(new ObjectId().toHexString());
+        file.setName("report.pdf");
+        file.setMimeType("application/pdf");
+        file.setSize(3L);
+        file.setGridFsId("hot-blob");
+        file.setStorageBackend(GridFSService.NAME);
+        file.setLastAccessedAt(LocalDateTime.now().minusDays(120));
+    }
+    
+    @AfterEach
+    void tearDown() {
+        tieringService.shutdown();
+    }
+    
+    @Test
+    void demoteSwitchesFileOnlyIfItStillPointsAtTheCopiedBlob() throws Exception {
+        coldFile();
+        when(mongoTemplate.updateFirst(any(Query.class), any(Update.class), eq(FileMetadata.class)))
+            .thenReturn(UpdateResult.acknowledged(1, 1L, null));
+        
+        tieringService.demoteColdFiles();
+        
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        ArgumentCaptor<Update> update = ArgumentCaptor.forClass(Update.class);
+        verify(mongoTemplate).updateFirst(query.capture(), update.capture(), eq(FileMetadata.class));
+        assertThat(query.getValue().getQueryObject()).isEqualTo(new Document("_id", file.getId())
+            .append("gridFsId", "hot-blob")
+            .append("storageBackend", GridFSService.NAME));
+        assertThat(update.getValue().getUpdateObject().get("$set", Document.class)).isEqualTo(
+            new Document("storageBackend", CompressedBlobStore.NAME).append("gridFsId", "cold-blob").append("storedSize", 2L));
+        
+        // The old copy is released later, not right away, so running downloads can finish
+        ArgumentCaptor<PendingRelease> pending = ArgumentCaptor.forClass(PendingRelease.class);
+        verify(mongoTemplate).insert(pending.capture());
+        assertThat(pending.getValue().getBackend()).isEqualTo(GridFSService.NAME);
+        assertThat(pending.getValue().getBlobId()).isEqualTo("hot-blob");
+        assertThat(pending.getValue().getReleaseAt()).isAfter(LocalDateTime.now());
+        verify(hotStore, never()).release(anyString());
+        verify(coldStore, never()).release(anyString());
+    }
+    
+    @Test
+    void demoteDropsTheCopyWhenTheFileChangedMeanwhile() throws Exception {
+        coldFile();
+        when(mongoTemplate.updateFirst(any(Query.class), any(Update.class), eq(FileMetadata.class)))
+            .thenReturn(UpdateResult.acknowledged(0, 0L, null));
+        
+        tieringService.demoteColdFiles();
+        
+        verify(coldStore).release("cold-blob");
+        verify(hotStore, never()).release(anyString());
+        verify(mongoTemplate, never()).insert(any(PendingRelease.class));
+    }
+    
+    @Test
+    void releaseDueClaimsEachPendingReleaseBeforeReleasing() {
+        when(mongoTemplate.findAndRemove(any(Query.class), eq(PendingRelease.class)))
+            .thenReturn(new PendingRelease("p1", GridFSService.NAME, "hot-blob", LocalDateTime.now().minusMinutes(1)), (PendingRelease) null);
+        when(blobStorageService.getStore(GridFSService.NAME)).thenReturn(hotStore);
+        
+        tieringService.releaseDue();
+        
+        verify(hotStore).release("hot-blob");
+    }
+    
+    private void coldFile() throws Exception {
+        when(blobStorageService.getStore(CompressedBlobStore.NAME)).thenReturn(coldStore);
+        when(blobStorageService.getStore(GridFSService.NAME)).thenReturn(hotStore);
+        lenient().when(hotStore.getName()).thenReturn(GridFSService.NAME);
+        lenient().when(coldStore.getName()).thenReturn(CompressedBlobStore.NAME);
+        when(fileMetadataRepository.findTieringCandidates(eq(CompressedBlobStore.NAME), any(LocalDateTime.class),
+            any(Pageable.class))).thenReturn(List.of(file));
+        when(hotStore.open("hot-blob")).thenReturn(new ByteArrayResource(new byte[] {1, 2, 3}));
+        when(coldStore.store(any(InputStream.class), eq("report.pdf"), eq("application/pdf"), anyLong()))
+            .thenReturn(new StoredBlob("cold-blob", 2));
+    }
+}
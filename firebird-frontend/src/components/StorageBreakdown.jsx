@@ -1,48 +1,39 @@
+import { useEffect, useState } from 'react'
 import { Image, FileText, Film, File, Music, Archive } from 'lucide-react'
 import { useSelector } from 'react-redux'
+import { storageService } from '../services/storageService'
+
+const CATEGORY_STYLES = {
+  images: { name: 'Images', icon: Image, color: 'bg-blue-500' },
+  documents: { name: 'Documents', icon: FileText, color: 'bg-cyan-500' },
+  videos: { name: 'Videos', icon: Film, color: 'bg-red-500' },
+  audio: { name: 'Audio', icon: Music, color: 'bg-green-500' },
+  archives: { name: 'Archives', icon: Archive, color: 'bg-orange-500' },
+  other: { name: 'Other Files', icon: File, color: 'bg-gray-500' },
+}
 
 const StorageBreakdown = ({ totalStorage = 16106127360 }) => {
   const { files } = useSelector((state) => state.files)
+  const [breakdown, setBreakdown] = useState(null)
+
+  // Served from per-category counters on the backend, so refetching on every change is cheap
+  useEffect(() => {
+    storageService.getBreakdown()
+      .then((response) => setBreakdown(response.data))
+      .catch(() => setBreakdown(null))
+  }, [files])
 
   const formatSize = (bytes) => {
     return (bytes / (1024 * 1024 * 1024)).toFixed(1) + ' GB'
   }
 
-  // Calculate real storage usage by file type
-  const calculateCategoryStorage = () => {
-    const categories = {
-      images: { name: 'Images', size: 0, icon: Image, color: 'bg-blue-500' },
-      documents: { name: 'Documents', size: 0, icon: FileText, color: 'bg-cyan-500' },
-      videos: { name: 'Videos', size: 0, icon: Film, color: 'bg-red-500' },
-      audio: { name: 'Audio', size: 0, icon: Music, color: 'bg-green-500' },
-      archives: { name: 'Archives', size: 0, icon: Archive, color: 'bg-orange-500' },
-      other: { name: 'Other Files', size: 0, icon: File, color: 'bg-gray-500' },
-    }
-
-    files.forEach(file => {
-      const type = file.mimeType?.split('/')[0]
-      const size = file.size || 0
-
-      if (type === 'image') {
-        categories.images.size += size
-      } else if (type === 'video') {
-        categories.videos.size += size
-      } else if (type === 'audio') {
-        categories.audio.size += size
-      } else if (file.mimeType?.includes('pdf') || file.mimeType?.includes('document') || file.mimeType?.includes('text')) {
-        categories.documents.size += size
-      } else if (file.mimeType?.includes('zip') || file.mimeType?.includes('rar') || file.mimeType?.includes('compressed')) {
-        categories.archives.size += size
-      } else {
-        categories.other.size += size
-      }
-    })
-
-    return Object.values(categories).filter(cat => cat.size > 0)
-  }
-
-  const categories = calculateCategoryStorage()
-  const usedStorage = files.reduce((total, file) => total + (file.size || 0), 0)
+  const categories = (breakdown?.categories || [])
+    .filter((category) => category.bytes > 0)
+    .map((category) => ({
+      ...(CATEGORY_STYLES[category.name] || CATEGORY_STYLES.other),
+      size: category.bytes,
+    }))
+  const usedStorage = breakdown?.usedBytes || 0
   const percentage = (usedStorage / totalStorage) * 100
 
   return (
@@ -4,4 +4,8 @@ export const storageService = {
   getUsage: async () => {
     return await api.get('/storage/usage')
   },
+
+  getBreakdown: async (extensions = 20) => {
+    return await api.get('/storage/breakdown', { params: { extensions } })
+  },
 }